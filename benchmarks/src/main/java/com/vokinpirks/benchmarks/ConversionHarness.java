@@ -0,0 +1,308 @@
+package com.vokinpirks.benchmarks;
+
+import com.bitwig.extension.controller.ControllerExtension;
+import com.vokinpirks.BitTableExtensionDefinition;
+import com.vokinpirks.metrics.Histogram;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the whole extension on a {@link HeadlessHost}: conversions are started by pushing "Convert and Load new
+ * Sampler" with the File setting pointing to an input, okwt is a shell script that waits, writes an output of the
+ * given size and fails now and then. Reports the latency from the push to the file being inserted into the device
+ * chain, and conversions per second. Doesn't need Bitwig or okwt, a POSIX shell is enough.
+ * <p>
+ * {@code java -cp benchmarks/target/benchmarks.jar com.vokinpirks.benchmarks.ConversionHarness --conversions 200 --concurrency 4 --latency-ms 50}
+ * <p>
+ * With {@code --workers} above 0 conversions go to okwt workers running in the fake mode instead, which needs python3
+ * and ignores the failure rate and the output size.
+ */
+public final class ConversionHarness {
+
+    private static final String USAGE = "Options: --conversions 200 --warmup 20 --concurrency 2 --latency-ms 100 "
+            + "--failure-rate 0.0 --output-kb 256 --input-kb 512 --workers 0 --verbose";
+
+    private enum Outcome {
+        SUCCEEDED, FAILED, REJECTED
+    }
+
+    private record Completion(int slot, Outcome outcome, long nanos) {
+    }
+
+    private final Map<String, String> options;
+
+    private final boolean verbose;
+
+    private final HeadlessHost host = new HeadlessHost();
+
+    private final BlockingQueue<Completion> completions = new LinkedBlockingQueue<>();
+
+    // per slot, a slot is a conversion in flight with an input of its own
+    private Path[] inputs;
+
+    private Path[] outputs;
+
+    private long[] startedAt;
+
+    // slots in the order they have been started, touched on the host thread only
+    private final Deque<Integer> inFlight = new ArrayDeque<>();
+
+    private int firingSlot = -1;
+
+    private volatile boolean echoConsole;
+
+    private ConversionHarness(final Map<String, String> options) {
+        this.options = options;
+        this.verbose = options.containsKey("verbose");
+    }
+
+    public static void main(final String[] args) throws Exception {
+        final Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--")) {
+                System.err.println(USAGE);
+                System.exit(2);
+            }
+
+            final String name = args[i].substring(2);
+            final boolean isFlag = i + 1 == args.length || args[i + 1].startsWith("--");
+            options.put(name, isFlag ? "true" : args[++i]);
+        }
+
+        new ConversionHarness(options).run();
+    }
+
+    private void run() throws Exception {
+        final int conversions = intOption("conversions", 200);
+        final int warmup = intOption("warmup", 20);
+        final int concurrency = intOption("concurrency", 2);
+        final int workers = intOption("workers", 0);
+        final long latencyMillis = intOption("latency-ms", 100);
+
+        final Path workDirectory = Files.createTempDirectory("bittable-harness");
+        try {
+            final Path okwtDirectory = Files.createDirectories(workDirectory.resolve("bin"));
+            writeFakeOkwt(okwtDirectory.resolve("okwt"), latencyMillis, doubleOption("failure-rate", 0.0),
+                    intOption("output-kb", 256) * 1024L);
+
+            final Path outDirectory = Files.createDirectories(workDirectory.resolve("out"));
+            inputs = new Path[concurrency];
+            outputs = new Path[concurrency];
+            startedAt = new long[concurrency];
+            for (int slot = 0; slot < concurrency; slot++) {
+                inputs[slot] = workDirectory.resolve("in").resolve("input " + slot + ".wav");
+                outputs[slot] = outDirectory.resolve("input " + slot + ".wav");
+                Files.createDirectories(inputs[slot].getParent());
+                Files.write(inputs[slot], new byte[intOption("input-kb", 512) * 1024]);
+            }
+
+            // the extension mustn't touch the index and the cache of the real one
+            System.setProperty("bittable.data.dir", workDirectory.resolve("data").toString());
+            if (workers > 0) {
+                System.setProperty("bittable.okwt.worker", "fake");
+                System.setProperty("bittable.okwt.worker.delay", String.valueOf(latencyMillis / 1000.0));
+            }
+
+            host.onConsole(this::console);
+            host.onNotification(this::notification);
+            host.onInsertFile(this::fileInserted);
+
+            final ControllerExtension extension = new BitTableExtensionDefinition().createInstance(host.host());
+            host.execute(() -> {
+                extension.init();
+                host.fireInitialValues();
+
+                // workers first, so that setting the path doesn't warm up one
+                host.set("Misc", "okwt workers", (double) workers);
+                host.set("Misc", "Conversion cache size", 0.0);
+                host.set("Misc", "Append date and time", false);
+                host.set("Misc", "Built-in converter", false);
+                host.set("Misc", "Debug", verbose);
+                host.set("Paths", "okwt", okwtDirectory.toString());
+                host.set("Save Locations", "WAV Files", outDirectory.toString());
+            });
+
+            System.out.printf("Warming up with %s conversions%n", warmup);
+            runConversions(warmup, concurrency, new Histogram());
+
+            System.out.printf("Running %s conversions, %s at a time%n", conversions, concurrency);
+            final Histogram latency = new Histogram();
+            final long start = System.nanoTime();
+            final Map<Outcome, Integer> outcomes = runConversions(conversions, concurrency, latency);
+            final double seconds = (System.nanoTime() - start) / 1e9;
+
+            report(conversions, seconds, latency, outcomes);
+
+            echoConsole = true;
+            host.execute(() -> {
+                host.fire("Misc", "Show stats");
+                extension.exit();
+            });
+        } finally {
+            host.shutdown();
+            TreeGenerator.delete(workDirectory);
+        }
+    }
+
+    /**
+     * Keeps as many conversions in flight as there are slots until the given number is done.
+     */
+    private Map<Outcome, Integer> runConversions(final int count, final int concurrency, final Histogram latency)
+            throws InterruptedException {
+        final Map<Outcome, Integer> outcomes = new HashMap<>();
+        int started = 0;
+        for (int slot = 0; slot < Math.min(concurrency, count); slot++) {
+            start(slot);
+            started++;
+        }
+
+        for (int finished = 0; finished < count; finished++) {
+            final Completion completion = completions.poll(10, TimeUnit.MINUTES);
+            if (completion == null) {
+                throw new IllegalStateException("No conversion has finished for 10 minutes");
+            }
+
+            outcomes.merge(completion.outcome(), 1, Integer::sum);
+            if (completion.outcome() == Outcome.SUCCEEDED) {
+                latency.record(TimeUnit.NANOSECONDS.toMicros(completion.nanos()));
+            }
+
+            if (started < count) {
+                start(completion.slot());
+                started++;
+            }
+        }
+
+        return outcomes;
+    }
+
+    // pushes the button on the host thread, like a user would do
+    private void start(final int slot) {
+        host.execute(() -> {
+            host.set("File", "File", inputs[slot].toString());
+            inFlight.addLast(slot);
+            startedAt[slot] = System.nanoTime();
+            firingSlot = slot;
+            try {
+                host.fire("2", "Convert and");
+            } finally {
+                firingSlot = -1;
+            }
+        });
+    }
+
+    private void fileInserted(final String path) {
+        for (int slot = 0; slot < outputs.length; slot++) {
+            if (outputs[slot].toString().equals(path)) {
+                finish(slot, Outcome.SUCCEEDED);
+                return;
+            }
+        }
+
+        System.err.printf("Unexpected file has been inserted: %s%n", path);
+    }
+
+    private void notification(final String message) {
+        if (verbose) {
+            System.out.printf("Notification: %s%n", message);
+        }
+
+        final boolean isError = !message.startsWith("Conversion is finished") && !message.startsWith("Stats have been");
+        if (!isError) {
+            return;
+        }
+
+        // the conversion hasn't even been queued
+        if (host.isHostThread() && firingSlot >= 0) {
+            finish(firingSlot, Outcome.REJECTED);
+            return;
+        }
+
+        // the fake okwt leaves a marker next to the output it has failed to produce, anything else (i.e. a timeout)
+        // is put down to the conversion started first
+        for (Integer slot : inFlight) {
+            final Path marker = outputs[slot].resolveSibling(outputs[slot].getFileName() + ".failed");
+            if (marker.toFile().delete()) {
+                finish(slot, Outcome.FAILED);
+                return;
+            }
+        }
+
+        if (!inFlight.isEmpty()) {
+            finish(inFlight.getFirst(), Outcome.FAILED);
+        }
+    }
+
+    private void console(final String text) {
+        if (verbose || echoConsole) {
+            System.out.println(text);
+        }
+    }
+
+    // always on the host thread, that's where the extension reports results
+    private void finish(final int slot, final Outcome outcome) {
+        inFlight.remove(slot);
+        completions.add(new Completion(slot, outcome, System.nanoTime() - startedAt[slot]));
+    }
+
+    private static void report(final int conversions, final double seconds, final Histogram latency,
+                               final Map<Outcome, Integer> outcomes) {
+        final Histogram.Snapshot snapshot = latency.snapshot();
+        System.out.printf(Locale.ROOT, "%n%s conversions in %.2f s, %.1f conversions/s%n",
+                conversions, seconds, conversions / seconds);
+        System.out.printf("Succeeded: %s, failed: %s, rejected: %s%n",
+                outcomes.getOrDefault(Outcome.SUCCEEDED, 0),
+                outcomes.getOrDefault(Outcome.FAILED, 0),
+                outcomes.getOrDefault(Outcome.REJECTED, 0));
+        System.out.printf(Locale.ROOT, "Push to result: mean %.1f ms, p50 %.1f ms, p90 %.1f ms, p99 %.1f ms, max %.1f ms%n%n",
+                snapshot.mean() / 1000.0, snapshot.p50() / 1000.0, snapshot.p90() / 1000.0, snapshot.p99() / 1000.0,
+                snapshot.max() / 1000.0);
+    }
+
+    /**
+     * okwt as far as the extension can tell: takes --outfile, exits with 1 on failure. The latency varies from a half
+     * to one and a half of the given one.
+     */
+    private static void writeFakeOkwt(final Path file, final long latencyMillis, final double failureRate,
+                                      final long outputBytes) throws IOException {
+        final String script = String.join("\n",
+                "#!/bin/sh",
+                "out=''",
+                "while [ $# -gt 0 ]; do",
+                "  if [ \"$1\" = '--outfile' ]; then out=\"$2\"; shift; fi",
+                "  shift",
+                "done",
+                "set -- $(od -An -N4 -tu2 /dev/urandom)",
+                String.format(Locale.ROOT, "sleep $(awk -v r=\"$1\" 'BEGIN { printf \"%%.3f\", %s * (0.5 + r / 65536) }')",
+                        latencyMillis / 1000.0),
+                String.format(Locale.ROOT, "if awk -v r=\"$2\" 'BEGIN { exit !(r / 65536 < %s) }'; then", failureRate),
+                "  touch \"$out.failed\"",
+                "  echo 'fake okwt: failed on purpose' >&2",
+                "  exit 1",
+                "fi",
+                String.format("head -c %s /dev/zero > \"$out\"", outputBytes),
+                "");
+
+        Files.writeString(file, script);
+        Files.setPosixFilePermissions(file, PosixFilePermissions.fromString("rwxr-xr-x"));
+    }
+
+    private int intOption(final String name, final int defaultValue) {
+        return Integer.parseInt(options.getOrDefault(name, String.valueOf(defaultValue)));
+    }
+
+    private double doubleOption(final String name, final double defaultValue) {
+        return Double.parseDouble(options.getOrDefault(name, String.valueOf(defaultValue)));
+    }
+}
@@ -0,0 +1,120 @@
+package com.vokinpirks.benchmarks;
+
+import com.vokinpirks.wavetable.DspKernels;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scalar versus Vector API kernels on a full size table, 256 frames of 2048 samples.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+@State(Scope.Thread)
+public class DspKernelsBenchmark {
+
+    private static final int FRAME_SIZE = 2048;
+
+    private static final int FRAMES = 256;
+
+    @Param({"scalar", "vector"})
+    private String implementation;
+
+    // an odd length on purpose, real sources rarely fit the table
+    @Param({"300007"})
+    private int sourceLength;
+
+    private DspKernels kernels;
+
+    private float[] table;
+
+    private float[] source;
+
+    private float[] fade;
+
+    @Setup
+    public void setUp() {
+        kernels = implementation.equals("vector") ? DspKernels.vector() : DspKernels.scalar();
+        if (kernels == null) {
+            throw new IllegalStateException("The Vector API isn't available, run with --add-modules jdk.incubator.vector");
+        }
+
+        final Random random = new Random(42);
+        table = new float[FRAME_SIZE * FRAMES];
+        for (int i = 0; i < table.length; i++) {
+            table[i] = random.nextFloat() * 2.0f - 1.0f;
+        }
+
+        source = new float[sourceLength];
+        for (int i = 0; i < source.length; i++) {
+            source[i] = random.nextFloat() * 2.0f - 1.0f;
+        }
+
+        fade = new float[64];
+        for (int i = 0; i < fade.length; i++) {
+            fade[i] = (float) i / fade.length;
+        }
+    }
+
+    @Benchmark
+    public float peak() {
+        return kernels.peak(table, 0, table.length);
+    }
+
+    @Benchmark
+    public float[] maximize(final PristineTable pristine) {
+        final float[] table = pristine.table;
+        for (int offset = 0; offset < table.length; offset += FRAME_SIZE) {
+            final float peak = kernels.peak(table, offset, FRAME_SIZE);
+            kernels.scale(table, offset, FRAME_SIZE, 1.0f / peak);
+        }
+        return table;
+    }
+
+    @Benchmark
+    public float[] fade(final PristineTable pristine) {
+        final float[] table = pristine.table;
+        for (int offset = 0; offset < table.length; offset += FRAME_SIZE) {
+            kernels.multiply(table, offset, fade, fade.length);
+        }
+        return table;
+    }
+
+    @Benchmark
+    public float[] resampleLinear() {
+        kernels.resampleLinear(source, table);
+        return table;
+    }
+
+    @Benchmark
+    public float[] resampleCubic() {
+        kernels.resampleCubic(source, table);
+        return table;
+    }
+
+    /**
+     * The table for the kernels working in place, restored before every call, otherwise the samples would drift
+     * towards zeros and denormals over the iterations.
+     */
+    @State(Scope.Thread)
+    public static class PristineTable {
+        private float[] original;
+
+        private float[] table;
+
+        @Setup(Level.Trial)
+        public void setUp(final DspKernelsBenchmark benchmark) {
+            original = benchmark.table.clone();
+            table = new float[original.length];
+        }
+
+        @Setup(Level.Invocation)
+        public void restore() {
+            System.arraycopy(original, 0, table, 0, table.length);
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package com.vokinpirks.benchmarks;
+
+import com.vokinpirks.ConsoleLogger;
+import com.vokinpirks.FileNameIndexer;
+import com.vokinpirks.metrics.Metrics;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Indexing and lookups of FileNameIndexer on a generated library, the tree is described by the parameters.
+ * The library is on a local disk and listed over and over again, so this measures the index rather than the disk.
+ * <p>
+ * fullIndex is the wall time of indexing the whole library, indexFiles the same as files per second (the files
+ * counter), heapPerFile reports the heap retained by the index per file (the bytesPerFile counter).
+ * <p>
+ * The indexers keep no snapshot, and directories are watched only with {@code -p watch=true}, so that indexing is
+ * measured on its own.
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class FileNameIndexerBenchmark {
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Measurement(iterations = 10)
+    public FileNameIndexer fullIndex(final EmptyIndex index) {
+        index.indexer.indexDirectory(index.library.tree.root(), 0).join();
+        return index.indexer;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public FileNameIndexer indexFiles(final EmptyIndex index, final IndexedFiles counters) {
+        index.clear();
+        index.indexer.indexDirectory(index.library.tree.root(), 0).join();
+        counters.files += index.library.tree.files();
+        return index.indexer;
+    }
+
+    // the counter is summed over iterations, hence a single one
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 1)
+    @Measurement(iterations = 1)
+    public FileNameIndexer heapPerFile(final EmptyIndex index, final RetainedHeap heap) {
+        final long before = usedHeapAfterGc();
+        index.indexer.indexDirectory(index.library.tree.root(), 0).join();
+        heap.bytesPerFile = (usedHeapAfterGc() - before) / Math.max(1, index.library.tree.files());
+        return index.indexer;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Measurement(iterations = 10)
+    public FileNameIndexer removeDirectory(final FullIndex index) {
+        index.indexer.removeDirectory(index.library.tree.root());
+        return index.indexer;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public String getFullPath(final LookupIndex index, final Names names) {
+        return index.indexer.getFullPath(names.next(names.existing));
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public String getFullPathOfMissing(final LookupIndex index, final Names names) {
+        return index.indexer.getFullPath(names.next(names.missing));
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public String getFullPathIgnoringExtension(final LookupIndex index, final Names names) {
+        return index.indexer.getFullPathIgnoringExtension(names.next(names.baseNames));
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public boolean doesContain(final LookupIndex index, final Names names) {
+        return index.indexer.doesContain(names.next(names.existing));
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public boolean doesContainMissing(final LookupIndex index, final Names names) {
+        return index.indexer.doesContain(names.next(names.missing));
+    }
+
+    private static long usedHeapAfterGc() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * The generated library, shared by all benchmarks of a trial.
+     */
+    @State(Scope.Benchmark)
+    public static class Library {
+        @Param({"3"})
+        private int depth;
+
+        @Param({"8"})
+        private int fanOut;
+
+        @Param({"40"})
+        private int filesPerDirectory;
+
+        @Param({"0.2"})
+        private double collisionRate;
+
+        // registering a watch per directory, which the extension does while indexing
+        @Param({"false"})
+        private boolean watch;
+
+        private Path workDirectory;
+
+        private TreeGenerator.Tree tree;
+
+        private ConsoleLogger logger;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            workDirectory = Files.createTempDirectory("bittable-benchmark");
+            tree = TreeGenerator.generate(workDirectory.resolve("library"),
+                    new TreeGenerator.Spec(depth, fanOut, filesPerDirectory, collisionRate, 42L));
+            logger = new ConsoleLogger(StubHost.silent());
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            logger.close();
+            TreeGenerator.delete(workDirectory);
+        }
+
+        private FileNameIndexer newIndexer() {
+            return new FileNameIndexer(logger, new Metrics(logger), null, watch);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class EmptyIndex {
+        private Library library;
+
+        private FileNameIndexer indexer;
+
+        @Setup(Level.Trial)
+        public void setUp(final Library library) {
+            this.library = library;
+            this.indexer = library.newIndexer();
+        }
+
+        @Setup(Level.Iteration)
+        public void clear() {
+            indexer.clearIndex();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            indexer.close();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class FullIndex {
+        private Library library;
+
+        private FileNameIndexer indexer;
+
+        @Setup(Level.Trial)
+        public void setUp(final Library library) {
+            this.library = library;
+            this.indexer = library.newIndexer();
+        }
+
+        @Setup(Level.Iteration)
+        public void index() {
+            indexer.clearIndex();
+            indexer.indexDirectory(library.tree.root(), 0).join();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            indexer.close();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class LookupIndex {
+        private FileNameIndexer indexer;
+
+        @Setup(Level.Trial)
+        public void setUp(final Library library) {
+            indexer = library.newIndexer();
+            indexer.indexDirectory(library.tree.root(), 0).join();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            indexer.close();
+        }
+    }
+
+    // names to look up, picked at random from the library, and ones that aren't there
+    @State(Scope.Thread)
+    public static class Names {
+        private static final int COUNT = 1024;
+
+        private final String[] existing = new String[COUNT];
+
+        private final String[] baseNames = new String[COUNT];
+
+        private final String[] missing = new String[COUNT];
+
+        private int cursor;
+
+        @Setup(Level.Trial)
+        public void setUp(final Library library) {
+            final Random random = new Random(7L);
+            for (int i = 0; i < COUNT; i++) {
+                existing[i] = library.tree.fileNames().get(random.nextInt(library.tree.files()));
+                baseNames[i] = existing[i].substring(0, existing[i].lastIndexOf('.'));
+                missing[i] = "missing " + Long.toHexString(random.nextLong()) + ".wav";
+            }
+        }
+
+        private String next(final String[] names) {
+            cursor = (cursor + 1) & (COUNT - 1);
+            return names[cursor];
+        }
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class IndexedFiles {
+        public long files;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            files = 0;
+        }
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class RetainedHeap {
+        public long bytesPerFile;
+    }
+}
@@ -0,0 +1,312 @@
+package com.vokinpirks.benchmarks;
+
+import com.bitwig.extension.controller.api.ControllerHost;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.function.Consumer;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Stands in for Bitwig outside of Bitwig, enough to run the whole extension: settings of the preferences and of the
+ * document state keep their values and call their observers, tasks are run on a single thread playing the part of
+ * Bitwig's controller thread, anything else (tracks, devices, the popup browser) does nothing.
+ * <p>
+ * Settings are addressed by category and label, the way they are laid out in Bitwig.
+ */
+final class HeadlessHost {
+
+    private final ScheduledExecutorService hostThread = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "bittable-host");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // category/label -> setting
+    private final Map<String, Setting> settings = new ConcurrentHashMap<>();
+
+    private final List<Consumer<String>> consoleListeners = new CopyOnWriteArrayList<>();
+
+    private final List<Consumer<String>> notificationListeners = new CopyOnWriteArrayList<>();
+
+    private final List<Consumer<String>> insertedFileListeners = new CopyOnWriteArrayList<>();
+
+    private final ControllerHost host;
+
+    HeadlessHost() {
+        this.host = (ControllerHost) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[]{ControllerHost.class}, this::invokeHost);
+    }
+
+    ControllerHost host() {
+        return host;
+    }
+
+    /**
+     * @param listener gets whatever the extension prints to the controller script console
+     */
+    void onConsole(final Consumer<String> listener) {
+        consoleListeners.add(listener);
+    }
+
+    void onNotification(final Consumer<String> listener) {
+        notificationListeners.add(listener);
+    }
+
+    /**
+     * @param listener gets paths of files inserted into a device chain
+     */
+    void onInsertFile(final Consumer<String> listener) {
+        insertedFileListeners.add(listener);
+    }
+
+    boolean isHostThread() {
+        return Thread.currentThread().getName().equals("bittable-host");
+    }
+
+    /**
+     * Runs the action on the host thread and waits for it.
+     */
+    void execute(final Runnable action) {
+        call(() -> {
+            action.run();
+            return null;
+        });
+    }
+
+    <T> T call(final Callable<T> action) {
+        try {
+            return hostThread.submit(action).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Sets the value as if the user has entered it, numbers are raw values. Must be called on the host thread.
+     */
+    void set(final String category, final String label, final Object value) {
+        setting(category, label).setRaw(value);
+    }
+
+    /**
+     * Pushes the button. Must be called on the host thread.
+     */
+    void fire(final String category, final String label) {
+        setting(category, label).notifyObservers();
+    }
+
+    /**
+     * Calls every observer with the current value, which is what Bitwig does right after init().
+     */
+    void fireInitialValues() {
+        settings.values().stream()
+                .filter(setting -> setting.kind != Kind.SIGNAL)
+                .forEach(Setting::notifyObservers);
+    }
+
+    void shutdown() {
+        hostThread.shutdownNow();
+    }
+
+    private Setting setting(final String category, final String label) {
+        final Setting setting = settings.get(category + "/" + label);
+        if (setting == null) {
+            throw new IllegalArgumentException(String.format("There is no setting %s in %s", label, category));
+        }
+        return setting;
+    }
+
+    private Object invokeHost(final Object proxy, final Method method, final Object[] args) {
+        switch (method.getName()) {
+            case "println", "errorln" -> consoleListeners.forEach(listener -> listener.accept((String) args[0]));
+            case "showPopupNotification" -> notificationListeners.forEach(listener -> listener.accept((String) args[0]));
+            case "scheduleTask" -> hostThread.schedule(() -> runSafely(args[0]), (Long) args[1], MILLISECONDS);
+            case "getHostVersion" -> {
+                return "5.0";
+            }
+            case "getPreferences", "getDocumentState" -> {
+                return proxyOf(method.getReturnType(), this::invokeSettings);
+            }
+            default -> {
+                return inert(method);
+            }
+        }
+        return null;
+    }
+
+    private Object invokeSettings(final Object proxy, final Method method, final Object[] args) {
+        final Kind kind = switch (method.getName()) {
+            case "getStringSetting" -> Kind.STRING;
+            case "getBooleanSetting" -> Kind.BOOLEAN;
+            case "getNumberSetting" -> Kind.NUMBER;
+            case "getEnumSetting" -> Kind.ENUM;
+            case "getSignalSetting" -> Kind.SIGNAL;
+            default -> null;
+        };
+        if (kind == null) {
+            return inert(method);
+        }
+
+        // getXxxSetting(label, category, ..., initial value)
+        final Setting setting = new Setting(kind);
+        switch (kind) {
+            case STRING -> setting.value = args[3];
+            case BOOLEAN -> setting.value = args[2];
+            case NUMBER -> {
+                setting.min = ((Number) args[2]).doubleValue();
+                setting.max = ((Number) args[3]).doubleValue();
+                setting.value = ((Number) args[6]).doubleValue();
+            }
+            case ENUM -> setting.value = args[3];
+            case SIGNAL -> setting.value = null;
+        }
+
+        settings.put(args[1] + "/" + args[0], setting);
+        return proxyOf(method.getReturnType(), setting::invoke);
+    }
+
+    // nothing happens, though whatever a call returns can be called in turn
+    private Object inert(final Method method) {
+        final Class<?> type = method.getReturnType();
+        return type.isInterface() ? proxyOf(type, this::invokeInert) : StubHost.defaultValue(type);
+    }
+
+    private Object invokeInert(final Object proxy, final Method method, final Object[] args) {
+        if (method.getName().equals("insertFile")) {
+            insertedFileListeners.forEach(listener -> listener.accept((String) args[0]));
+            return null;
+        }
+        return inert(method);
+    }
+
+    private static Object proxyOf(final Class<?> type, final InvocationHandler handler) {
+        return Proxy.newProxyInstance(HeadlessHost.class.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> {
+            // a proxy is only ever compared and hashed by identity
+            return switch (method.getName()) {
+                case "equals" -> proxy == args[0];
+                case "hashCode" -> System.identityHashCode(proxy);
+                case "toString" -> type.getSimpleName();
+                default -> handler.invoke(proxy, method, args);
+            };
+        });
+    }
+
+    private static void runSafely(final Object task) {
+        try {
+            invokeCallback(task);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Calls an observer, which is a lambda of one of the many callback interfaces of the API, through its only
+     * abstract method that takes the arguments.
+     */
+    private static void invokeCallback(final Object callback, final Object... args) {
+        for (Class<?> type : callback.getClass().getInterfaces()) {
+            for (Method method : type.getMethods()) {
+                if (Modifier.isAbstract(method.getModifiers()) && method.getParameterCount() == args.length) {
+                    try {
+                        method.invoke(callback, args);
+                    } catch (IllegalAccessException e) {
+                        throw new IllegalStateException(e);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause() instanceof RuntimeException runtimeException
+                                ? runtimeException
+                                : new IllegalStateException(e.getCause());
+                    }
+                    return;
+                }
+            }
+        }
+
+        throw new IllegalArgumentException("Unable to call " + callback);
+    }
+
+    private enum Kind {
+        STRING, BOOLEAN, NUMBER, ENUM, SIGNAL
+    }
+
+    private static final class Setting {
+        private final Kind kind;
+
+        // raw value: String, Boolean or Double
+        private volatile Object value;
+
+        private double min;
+
+        private double max;
+
+        private final List<Object> observers = new CopyOnWriteArrayList<>();
+
+        private final List<Object> rawObservers = new CopyOnWriteArrayList<>();
+
+        private Setting(final Kind kind) {
+            this.kind = kind;
+        }
+
+        private Object invoke(final Object proxy, final Method method, final Object[] args) {
+            switch (method.getName()) {
+                case "get" -> {
+                    return kind == Kind.NUMBER ? normalized() : value;
+                }
+                case "getAsBoolean" -> {
+                    return value;
+                }
+                case "getRaw" -> {
+                    return value;
+                }
+                case "set" -> setRaw(kind == Kind.NUMBER ? min + ((Number) args[0]).doubleValue() * (max - min) : args[0]);
+                case "setRaw" -> setRaw(args[0]);
+                case "addValueObserver", "addSignalObserver" -> {
+                    // the value observers taking a range along with the callback are of no use here
+                    if (args.length == 1) {
+                        observers.add(args[0]);
+                    }
+                }
+                case "addRawValueObserver" -> rawObservers.add(args[0]);
+                default -> {
+                    return StubHost.defaultValue(method.getReturnType());
+                }
+            }
+            return null;
+        }
+
+        private void setRaw(final Object newValue) {
+            value = kind == Kind.NUMBER ? ((Number) newValue).doubleValue() : newValue;
+            notifyObservers();
+        }
+
+        private void notifyObservers() {
+            if (kind == Kind.SIGNAL) {
+                observers.forEach(HeadlessHost::invokeCallback);
+                return;
+            }
+
+            final Object current = kind == Kind.NUMBER ? normalized() : value;
+            observers.forEach(observer -> invokeCallback(observer, current));
+            rawObservers.forEach(observer -> invokeCallback(observer, value));
+        }
+
+        private double normalized() {
+            return max > min ? ((Double) value - min) / (max - min) : 0.0;
+        }
+    }
+}
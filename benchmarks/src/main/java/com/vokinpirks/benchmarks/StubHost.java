@@ -0,0 +1,40 @@
+package com.vokinpirks.benchmarks;
+
+import com.bitwig.extension.controller.api.ControllerHost;
+
+import java.lang.reflect.Proxy;
+
+/**
+ * Stands in for Bitwig's ControllerHost outside of Bitwig, every call does nothing.
+ */
+final class StubHost {
+
+    private StubHost() {
+    }
+
+    static ControllerHost silent() {
+        return (ControllerHost) Proxy.newProxyInstance(StubHost.class.getClassLoader(), new Class<?>[]{ControllerHost.class},
+                (proxy, method, args) -> defaultValue(method.getReturnType()));
+    }
+
+    static Object defaultValue(final Class<?> type) {
+        if (!type.isPrimitive() || type == void.class) {
+            return null;
+        } else if (type == boolean.class) {
+            return false;
+        } else if (type == char.class) {
+            return '\0';
+        } else if (type == long.class) {
+            return 0L;
+        } else if (type == float.class) {
+            return 0.0f;
+        } else if (type == double.class) {
+            return 0.0;
+        } else if (type == byte.class) {
+            return (byte) 0;
+        } else if (type == short.class) {
+            return (short) 0;
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,102 @@
+package com.vokinpirks.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Builds a sample library of empty files on disk: every directory down to the given depth has the same number of
+ * subdirectories and files. Some of the files get generic names shared across the library (kick 01.wav and alike),
+ * which is what makes lookups in real libraries pick between several candidates.
+ */
+public final class TreeGenerator {
+
+    private static final String[] GENERIC_NAMES = {"kick", "snare", "hat", "clap", "tom", "perc", "bass", "lead", "pad", "fx"};
+
+    private static final String[] EXTENSIONS = {".wav", ".wav", ".wav", ".aif", ".flac", ".mp3"};
+
+    /**
+     * @param depth             levels of subdirectories below the root
+     * @param fanOut            subdirectories of every directory above the deepest level
+     * @param filesPerDirectory files in every directory, the root included
+     * @param collisionRate     share of files named after one of 160 generic names, 0 to 1
+     */
+    public record Spec(int depth, int fanOut, int filesPerDirectory, double collisionRate, long seed) {
+    }
+
+    /**
+     * @param fileNames names of all generated files, with repetitions for collisions
+     */
+    public record Tree(Path root, int files, int directories, List<String> fileNames) {
+    }
+
+    private TreeGenerator() {
+    }
+
+    public static Tree generate(final Path root, final Spec spec) throws IOException {
+        final Random random = new Random(spec.seed());
+        final List<String> fileNames = new ArrayList<>();
+        final int directories = generate(root, spec, 0, random, fileNames);
+        return new Tree(root, fileNames.size(), directories, fileNames);
+    }
+
+    public static void delete(final Path root) throws IOException {
+        if (!Files.exists(root)) {
+            return;
+        }
+
+        Files.walkFileTree(root, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path directory, IOException e) throws IOException {
+                Files.delete(directory);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private static int generate(final Path directory, final Spec spec, final int level, final Random random,
+                                final List<String> fileNames) throws IOException {
+        Files.createDirectories(directory);
+
+        // a generic name can only be used once per directory
+        final Set<String> names = new HashSet<>();
+        for (int i = 0; i < spec.filesPerDirectory(); i++) {
+            String name = random.nextDouble() < spec.collisionRate() ? genericName(random) : null;
+            if (name == null || !names.add(name)) {
+                name = String.format("%s %s-%s%s", GENERIC_NAMES[random.nextInt(GENERIC_NAMES.length)],
+                        Long.toHexString(random.nextLong()), i, EXTENSIONS[random.nextInt(EXTENSIONS.length)]);
+                names.add(name);
+            }
+
+            Files.createFile(directory.resolve(name));
+            fileNames.add(name);
+        }
+
+        int directories = 1;
+        if (level < spec.depth()) {
+            for (int i = 0; i < spec.fanOut(); i++) {
+                directories += generate(directory.resolve("folder " + level + "-" + i), spec, level + 1, random, fileNames);
+            }
+        }
+
+        return directories;
+    }
+
+    private static String genericName(final Random random) {
+        return String.format("%s %02d.wav", GENERIC_NAMES[random.nextInt(GENERIC_NAMES.length)], 1 + random.nextInt(16));
+    }
+}
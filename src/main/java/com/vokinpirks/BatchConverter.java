@@ -0,0 +1,313 @@
+package com.vokinpirks;
+
+import com.bitwig.extension.controller.api.ControllerHost;
+import com.vokinpirks.enums.CallResult;
+import com.vokinpirks.util.Hashes;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import static java.lang.System.currentTimeMillis;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * Runs many conversions at once, e.g. of a whole sample pack, on a pool of workers sized to the number of cores.
+ * Only one batch runs at a time.
+ * <p>
+ * An output is skipped if it's newer than its input and has been converted with the same options. The options of
+ * every output are kept in a manifest, an output the manifest doesn't know is converted again.
+ */
+public class BatchConverter {
+
+    private static final int WORKER_COUNT = Math.max(1, Runtime.getRuntime().availableProcessors());
+
+    // popup notifications any more frequent than that would be unreadable
+    private static final long PROGRESS_INTERVAL = 2000L;
+
+    private final ControllerHost host;
+
+    private final Notifier notifier;
+
+    private final ConsoleLogger logger;
+
+    private final Function<ConversionJob, CallResult> converter;
+
+    private final Path manifestFile;
+
+    // output -> hash of the options it has been converted with
+    private final Map<Path, String> outputOptions = new ConcurrentHashMap<>();
+
+    private volatile boolean manifestLoaded;
+
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    private volatile ExecutorService executor;
+
+    public BatchConverter(
+            ControllerHost host,
+            Notifier notifier,
+            ConsoleLogger logger,
+            Path manifestFile,
+            Function<ConversionJob, CallResult> converter
+    ) {
+        this.host = host;
+        this.notifier = notifier;
+        this.logger = logger;
+        this.manifestFile = manifestFile;
+        this.converter = converter;
+    }
+
+    /**
+     * Looks for input files in the background, then builds the jobs on the host thread and runs them.
+     *
+     * @param inputs     finds the files to convert, runs on a worker thread
+     * @param jobFactory called on the host thread, returns nothing for files that can't be converted
+     * @return false if another batch is still running
+     */
+    public boolean start(
+            final String title,
+            final Callable<List<Path>> inputs,
+            final Function<Path, List<ConversionJob>> jobFactory
+    ) {
+        if (!running.compareAndSet(false, true)) {
+            return false;
+        }
+
+        final ExecutorService batchExecutor = Executors.newFixedThreadPool(WORKER_COUNT, runnable -> {
+            final Thread thread = new Thread(runnable, "bittable-batch");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor = batchExecutor;
+
+        batchExecutor.execute(() -> {
+            if (!manifestLoaded) {
+                loadManifest();
+            }
+
+            final List<Path> files;
+            try {
+                files = inputs.call();
+            } catch (Exception e) {
+                host.scheduleTask(() -> notifier.error("%s: unable to prepare files to convert: %s", title, e.getMessage()), 0L);
+                finish(batchExecutor);
+                return;
+            }
+
+            host.scheduleTask(() -> run(title, files, jobFactory, batchExecutor), 0L);
+        });
+
+        return true;
+    }
+
+    /**
+     * Drops the conversions of the running batch that haven't started yet, the running ones are left to the caller
+     * to stop.
+     *
+     * @return how many conversions have been dropped, -1 if no batch is running
+     */
+    public int cancel() {
+        final ExecutorService executor = this.executor;
+        if (!running.get() || executor == null) {
+            return -1;
+        }
+
+        final int dropped = executor.shutdownNow().size();
+        finish(executor);
+        return dropped;
+    }
+
+    public void shutdown() {
+        final ExecutorService executor = this.executor;
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    private void run(final String title, final List<Path> files, final Function<Path, List<ConversionJob>> jobFactory,
+                     final ExecutorService executor) {
+        // cancelled while the files were being looked for
+        if (executor.isShutdown()) {
+            return;
+        }
+
+        final List<ConversionJob> jobs = new ArrayList<>(files.size());
+        int rejected = 0;
+        for (Path file : files) {
+            final List<ConversionJob> fileJobs = jobFactory.apply(file);
+            if (fileJobs.isEmpty()) {
+                rejected++;
+            }
+            jobs.addAll(fileJobs);
+        }
+
+        if (jobs.isEmpty()) {
+            notifier.error("%s: there is nothing to convert", title);
+            finish(executor);
+            return;
+        }
+
+        notifier.info("%s: %s conversions to go", title, jobs.size());
+        final Progress progress = new Progress(title, jobs.size(), rejected, executor);
+        for (ConversionJob job : jobs) {
+            executor.execute(() -> progress.finished(job, convert(job)));
+        }
+    }
+
+    private Outcome convert(final ConversionJob job) {
+        try {
+            final String options = Hashes.sha1(0L, 0L, ConversionCache.optionsOf(job.getInFile(), job.getCommand(), job.getOutFile()));
+            if (isUpToDate(job, options)) {
+                return Outcome.SKIPPED;
+            }
+
+            Files.createDirectories(job.getOutFile().getParent());
+            final CallResult result = converter.apply(job);
+            if (result != CallResult.SUCCESS) {
+                logger.error("Conversion of %s has failed: %s", job.getInFile(), result);
+                return Outcome.FAILED;
+            }
+
+            outputOptions.put(job.getOutFile(), options);
+            return Outcome.CONVERTED;
+        } catch (IOException | RuntimeException e) {
+            logger.error("Conversion of %s has failed: %s", job.getInFile(), e);
+            return Outcome.FAILED;
+        }
+    }
+
+    // the output is newer than the input, so it was made from this very file, and the options haven't changed since
+    private boolean isUpToDate(final ConversionJob job, final String options) throws IOException {
+        return options.equals(outputOptions.get(job.getOutFile()))
+                && Files.exists(job.getOutFile())
+                && Files.getLastModifiedTime(job.getOutFile()).compareTo(Files.getLastModifiedTime(job.getInFile())) >= 0;
+    }
+
+    // outputs which have been deleted since are left out
+    private synchronized void loadManifest() {
+        if (manifestLoaded) {
+            return;
+        }
+        manifestLoaded = true;
+
+        if (!Files.exists(manifestFile)) {
+            return;
+        }
+
+        try {
+            for (String line : Files.readAllLines(manifestFile, UTF_8)) {
+                final String[] optionsAndPath = line.split("\t", 2);
+                if (optionsAndPath.length == 2) {
+                    final Path outFile = Path.of(optionsAndPath[1]);
+                    if (Files.exists(outFile)) {
+                        outputOptions.put(outFile, optionsAndPath[0]);
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // everything is converted again, that's all
+            logger.error("Unable to read the batch conversion manifest: %s", e.getMessage());
+        }
+    }
+
+    private synchronized void saveManifest() {
+        final Path temp = manifestFile.resolveSibling(manifestFile.getFileName() + ".tmp");
+        try {
+            Files.createDirectories(manifestFile.getParent());
+            try (BufferedWriter writer = Files.newBufferedWriter(temp, UTF_8)) {
+                for (Map.Entry<Path, String> entry : outputOptions.entrySet()) {
+                    writer.write(entry.getValue());
+                    writer.write('\t');
+                    writer.write(entry.getKey().toString());
+                    writer.newLine();
+                }
+            }
+            Files.move(temp, manifestFile, REPLACE_EXISTING, ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.error("Unable to write the batch conversion manifest: %s", e.getMessage());
+        }
+    }
+
+    private void finish(final ExecutorService batchExecutor) {
+        saveManifest();
+        batchExecutor.shutdown();
+        // a cancelled batch may finish after the next one has started
+        if (executor == batchExecutor) {
+            running.set(false);
+        }
+    }
+
+    private enum Outcome {
+        CONVERTED, SKIPPED, FAILED
+    }
+
+    private class Progress {
+        private final String title;
+
+        private final int total;
+
+        private final int rejected;
+
+        private final ExecutorService executor;
+
+        private final long startedAt = currentTimeMillis();
+
+        private final AtomicLong lastReportedAt = new AtomicLong(startedAt);
+
+        private final AtomicInteger done = new AtomicInteger();
+
+        private final AtomicInteger converted = new AtomicInteger();
+
+        private final AtomicInteger skipped = new AtomicInteger();
+
+        private final AtomicInteger failed = new AtomicInteger();
+
+        private Progress(String title, int total, int rejected, ExecutorService executor) {
+            this.title = title;
+            this.total = total;
+            this.rejected = rejected;
+            this.executor = executor;
+        }
+
+        private void finished(final ConversionJob job, final Outcome outcome) {
+            switch (outcome) {
+                case CONVERTED -> converted.incrementAndGet();
+                case SKIPPED -> skipped.incrementAndGet();
+                case FAILED -> failed.incrementAndGet();
+            }
+            logger.debug("%s: %s %s", title, job.getInFile(), outcome);
+
+            final int doneCount = done.incrementAndGet();
+            if (doneCount == total) {
+                final long elapsed = Math.max(1L, currentTimeMillis() - startedAt);
+                final String summary = String.format("%s: %s converted, %s up to date, %s failed in %.1f s (%.1f conversions/s)",
+                        title, converted.get(), skipped.get(), failed.get() + rejected,
+                        elapsed / 1000.0, converted.get() * 1000.0 / elapsed);
+                host.scheduleTask(() -> notifier.info(summary), 0L);
+                finish(executor);
+                return;
+            }
+
+            final long now = currentTimeMillis();
+            final long lastReport = lastReportedAt.get();
+            if (now - lastReport >= PROGRESS_INTERVAL && lastReportedAt.compareAndSet(lastReport, now)) {
+                host.scheduleTask(() -> notifier.info("%s: %s of %s done", title, doneCount, total), 0L);
+            }
+        }
+    }
+}
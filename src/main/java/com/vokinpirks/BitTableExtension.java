@@ -2,24 +2,35 @@ package com.vokinpirks;
 
 import com.bitwig.extension.controller.ControllerExtension;
 import com.bitwig.extension.controller.api.*;
+import com.vokinpirks.enums.CallResult;
 import com.vokinpirks.enums.FileFormat;
 import com.vokinpirks.enums.FileSystemItemType;
+import com.vokinpirks.metrics.Metrics;
 import com.vokinpirks.util.Filename;
-import com.vokinpirks.util.Processes;
+import com.vokinpirks.util.OS;
 import com.vokinpirks.util.Strings;
-import lombok.SneakyThrows;
+import com.vokinpirks.wavetable.WavetableEngine;
 
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.PathMatcher;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.function.Consumer;
 
 import static java.util.stream.Collectors.joining;
+import static java.util.stream.Collectors.toList;
 
 public class BitTableExtension extends ControllerExtension {
 
-    private static final long INDEXER_POLLING_INTERVAL = 2000L;
+    private static final long MEGABYTE = 1024L * 1024L;
 
     private final FileNameIndexer sampleNameIndexer;
 
@@ -37,12 +48,40 @@ public class BitTableExtension extends ControllerExtension {
 
     private final Notifier notifier;
 
+    private final Metrics metrics;
+
+    private final ConversionCache conversionCache;
+
+    private final ProcessSupervisor processSupervisor;
+
+    private final WavetableEngine wavetableEngine;
+
+    private final OkwtWorkerPool okwtWorkerPool;
+
+    private final ConversionExecutor conversionExecutor;
+
+    private final SelectionPrewarmer selectionPrewarmer;
+
+    private final BatchConverter batchConverter;
+
     protected BitTableExtension(BitTableExtensionDefinition definition, ControllerHost host) {
         super(definition, host);
 
         this.logger = new ConsoleLogger(host);
         this.notifier = new Notifier(host, logger);
-        this.sampleNameIndexer = new FileNameIndexer(logger);
+        this.metrics = new Metrics(logger);
+        this.sampleNameIndexer = new FileNameIndexer(logger, metrics, OS.dataDirectory().resolve("index.bin"));
+        this.conversionCache = new ConversionCache(OS.dataDirectory().resolve("cache"),
+                SettingsManager.DEFAULT_CACHE_SIZE_MB * MEGABYTE, logger);
+        this.processSupervisor = new ProcessSupervisor(logger, metrics);
+        this.wavetableEngine = new WavetableEngine(logger, processSupervisor);
+        this.okwtWorkerPool = new OkwtWorkerPool(logger, processSupervisor, metrics, OS.dataDirectory());
+        final Converter converter = new Converter(conversionCache, wavetableEngine, okwtWorkerPool, processSupervisor, metrics, logger);
+        this.conversionExecutor = new ConversionExecutor(host, logger, converter::convert);
+        metrics.gauge("conversion.queue", conversionExecutor::queueSize);
+        this.selectionPrewarmer = new SelectionPrewarmer(host, sampleNameIndexer, logger, converter::convert);
+        this.batchConverter = new BatchConverter(host, notifier, logger,
+                OS.dataDirectory().resolve("batch.tsv"), converter::convert);
     }
 
     @Override
@@ -51,18 +90,33 @@ public class BitTableExtension extends ControllerExtension {
 
         this.cursorTrack = getHost().createCursorTrack(16, 16);
         this.cursorDevice = cursorTrack.createCursorDevice();
-        cursorDevice.sampleName().markInterested();
+        cursorDevice.sampleName().addValueObserver(sampleName -> selectionPrewarmer.selectionChanged(sampleName, false));
 
         this.popupBrowser = getHost().createPopupBrowser();
         this.popupBrowser.exists().markInterested();
         this.cursorItem = popupBrowser.resultsColumn().createCursorItem();
-        cursorItem.name().markInterested();
-
-        this.settingsManager = new SettingsManager(getHost(), notifier, logger, sampleNameIndexer::indexDirectory);
+        cursorItem.name().addValueObserver(name -> selectionPrewarmer.selectionChanged(name, true));
+
+        this.settingsManager = new SettingsManager(getHost(), notifier, logger, sampleNameIndexer::indexDirectory,
+                sampleNameIndexer::removeDirectory);
+        settingsManager.getCacheSizeSetting().addRawValueObserver(megabytes ->
+                conversionCache.setMaxSize((long) megabytes * MEGABYTE));
+        settingsManager.getBuiltInConverterSetting().addValueObserver(wavetableEngine::setEnabled);
+        settingsManager.getOkwtWorkersSetting().addRawValueObserver(workers -> {
+            okwtWorkerPool.setSize((int) workers);
+            warmUpOkwtWorker();
+        });
+        settingsManager.getOkwtPathSetting().addValueObserver(newValue -> warmUpOkwtWorker());
+        selectionPrewarmer.setSpeculation(this::speculate);
 
         getHost().getPreferences().getSignalSetting(" ".repeat(SettingsManager.SAMPLE_LOCATION_COUNT + 2), "Samples Locations", "Force Reindex").addSignalObserver(() -> {
             sampleNameIndexer.clearIndex();
-            settingsManager.sampleLocations().forEach(sampleNameIndexer::indexDirectory);
+            settingsManager.forEachSampleLocation(sampleNameIndexer::indexDirectory);
+        });
+
+        getHost().getPreferences().getSignalSetting("Show stats", "Misc", "Show").addSignalObserver(() -> {
+            logger.info(metrics.summary());
+            notifier.info("Stats have been printed to the controller script console");
         });
 
         final var documentState = getHost().getDocumentState();
@@ -76,32 +130,92 @@ public class BitTableExtension extends ControllerExtension {
         documentState.getSignalSetting("Convert and", "3", "Load new Polymer")
                 .addSignalObserver(() -> performConversion(FileFormat.WT, true));
 
-        getHost().scheduleTask(this::touchIndexer, INDEXER_POLLING_INTERVAL);
+        documentState.getSignalSetting("Convert all", "Batch", "Start")
+                .addSignalObserver(this::performBatchConversion);
+
+        documentState.getSignalSetting("Render sweep", "Sweep", "Start")
+                .addSignalObserver(this::performSweep);
+
+        documentState.getSignalSetting("Cancel", "Convert", "Cancel")
+                .addSignalObserver(this::cancelConversions);
+
+        sampleNameIndexer.start();
+        metrics.start(OS.dataDirectory());
     }
 
     private void performConversion(final FileFormat fileFormat, final boolean shouldLoadDevice) {
+        final long start = System.nanoTime();
         if (saveLocation(fileFormat) == null) {
             notifier.error("You must specify save location for %s files first", fileFormat.primaryExtension());
             return;
         }
 
-        final Optional<String> sampleName = inferSampleName();
+        final Path inFilePath = selectedInputFile();
+        if (inFilePath == null) {
+            return;
+        }
 
-        final Path inFilePath;
+        final Path outFilePath = buildOutputFilePath(Filename.withoutExtension(inFilePath), fileFormat);
+
+        final ConversionJob job = createJob(inFilePath, outFilePath, notifier::error);
+        if (job == null) {
+            return;
+        }
+
+        metrics.histogram("conversion.resolve").recordSince(start);
+
+        // okwt may take a while, don't block the controller thread
+        final boolean queued = conversionExecutor.submit(job, result -> {
+            if (handleResult(result) && shouldLoadDevice) {
+                final long insertStart = System.nanoTime();
+                cursorTrack.endOfDeviceChainInsertionPoint().insertFile(outFilePath.toString());
+                metrics.histogram("conversion.insert_file").recordSince(insertStart);
+            }
+        });
+
+        if (!queued) {
+            notifier.error("Too many conversions are in progress, try again later");
+        }
+    }
+
+    /**
+     * The sample selected in the popup browser or in Sampler, or the file from the settings.
+     *
+     * @return null if there is no such file, the user has been notified then
+     */
+    private Path selectedInputFile() {
+        final boolean fromPopupBrowser = popupBrowser.exists().getAsBoolean();
+        final Optional<String> sampleName = inferSampleName(fromPopupBrowser);
+
+        // the popup browser reports filename without extension
+        final String sampleFullPath = sampleName
+                .map(name -> Optional.ofNullable(selectionPrewarmer.resolvedPath(name, fromPopupBrowser))
+                        .orElseGet(() -> fromPopupBrowser
+                                ? sampleNameIndexer.getFullPathIgnoringExtension(name)
+                                : sampleNameIndexer.getFullPath(name)))
+                .orElse(null);
+
+        // an item of the popup browser that doesn't match any indexed file isn't a sample
+        final boolean isSample = sampleName.isPresent() && (sampleFullPath != null || !fromPopupBrowser);
         if (sampleName.isPresent()) {
+            metrics.counter(sampleFullPath != null ? "lookup.hits" : "lookup.misses").increment();
+        }
+
+        final Path inFilePath;
+        if (isSample) {
             // name of a sample comes from either popup browser or sampler
             // need to determine its full path before calling okwt
-            final String sampleFullPath = sampleNameIndexer.getFullPath(sampleName.get());
             logger.debug("Sample: %s, full path: %s", sampleName.get(), sampleFullPath);
 
             if (sampleFullPath == null) {
                 // unable to determine full path, possibly the sample wasn't indexed
                 notifier.error("Unable to find full path to the sample '%s'. " +
                         "Consider adding the directory where it's located to samples locations in the controller settings", sampleName.get());
-                return;
+                return null;
             }
 
             inFilePath = Path.of(sampleFullPath);
+            sampleNameIndexer.markUsed(inFilePath);
         } else {
             inFilePath = settingsManager.infile();
         }
@@ -110,37 +224,185 @@ public class BitTableExtension extends ControllerExtension {
             notifier.error("There is nothing selected to convert. Specify path to a file, " +
                     "or select a sample in the popup browser, " +
                     "or select Sampler with a sample loaded in it");
-            return;
+            return null;
         }
 
         if (!inFilePath.toFile().exists()) {
-            notifier.error("The path '%s' points to nonexistent file", sampleName);
+            notifier.error("The path '%s' points to nonexistent file", inFilePath);
+            return null;
+        }
+
+        return inFilePath;
+    }
+
+    // renders the selected sample with every combination of the swept options
+    private void performSweep() {
+        final FileFormat fileFormat = settingsManager.fileFormat();
+        final Path saveLocation = saveLocation(fileFormat);
+        if (saveLocation == null) {
+            notifier.error("You must specify save location for %s files first", fileFormat.primaryExtension());
             return;
         }
 
-        final Path outFilePath = buildOutputFilePath(Filename.withoutExtension(inFilePath), fileFormat);
+        final ParameterSweep sweep = settingsManager.parameterSweep();
+        if (sweep.isEmpty()) {
+            notifier.error("Choose at least one option to sweep");
+            return;
+        }
+
+        final Path inFile = selectedInputFile();
+        if (inFile == null) {
+            return;
+        }
+
+        final FileFormat inFileFormat = FileFormat.fromExtension(Filename.extensionOf(inFile.toString()));
+        final boolean needsDecoding = inFileFormat != null && inFileFormat.doesRequireFfmpeg();
+        if (needsDecoding && !isFfmpegValid(inFileFormat, notifier::error)) {
+            return;
+        }
+
+        final String ffmpegPath = settingsManager.ffmpegPath();
+        final String baseName = Filename.withoutExtension(inFile);
+        final Path outDirectory = saveLocation.resolve(baseName + " sweep");
+        final List<ParameterSweep.Variant> variants = sweep.variants(new ParameterSweep.Variant(
+                settingsManager.resizeAlgorithm(),
+                settingsManager.normalize().asBoolean(),
+                settingsManager.maximize().asBoolean(),
+                settingsManager.trim().asBoolean(),
+                settingsManager.shuffle().asBoolean()
+        ));
+
+        final boolean started = batchConverter.start(
+                outDirectory.getFileName().toString(),
+                // otherwise every variant would decode the very same file again
+                () -> List.of(needsDecoding ? decodeToWav(inFile, ffmpegPath) : inFile),
+                source -> variants.stream()
+                        .map(variant -> {
+                            final Path outFile = outDirectory.resolve(
+                                    Filename.withExtension(baseName + " [" + variant.label() + "]", fileFormat));
+                            return createJob(variant.applyTo(createCommandBuilder(source, outFile)).build(), source, outFile, logger::error);
+                        })
+                        .filter(Objects::nonNull)
+                        .collect(toList())
+        );
+
+        if (!started) {
+            notifier.error("Another batch conversion is still in progress");
+        }
+    }
+
+    // runs on a batch worker
+    private Path decodeToWav(final Path inFile, final String ffmpegPath) throws IOException {
+        final Path decoded = OS.dataDirectory().resolve("sweep").resolve("decoded" + FileFormat.WAV.primaryExtension());
+        Files.createDirectories(decoded.getParent());
+
+        final List<String> command = List.of(
+                Path.of(ffmpegPath).resolve("ffmpeg").toString(),
+                "-y",
+                "-loglevel", "error",
+                "-i", inFile.toString(),
+                decoded.toString()
+        );
+
+        final CallResult result = processSupervisor.run(command, Optional.empty(), processSupervisor.timeoutFor(inFile));
+        if (result != CallResult.SUCCESS) {
+            throw new IOException(String.format("ffmpeg has failed to decode %s: %s", inFile, result));
+        }
+
+        return decoded;
+    }
+
+    // queued conversions are dropped, running ones are killed along with everything they have started
+    private void cancelConversions() {
+        final int queued = conversionExecutor.cancelQueued();
+        final int batch = batchConverter.cancel();
+        final int running = processSupervisor.cancelAll();
+        logger.debug("Cancelled %s queued conversions, %s of the batch and %s running processes", queued, Math.max(batch, 0), running);
+
+        if (queued == 0 && batch < 0 && running == 0) {
+            notifier.info("There is nothing to cancel");
+        } else if (batch >= 0) {
+            notifier.info("The batch conversion has been cancelled");
+        }
+    }
+
+    // converts every matching file of the batch folder, or every matching indexed file if no folder is set
+    private void performBatchConversion() {
+        final FileFormat fileFormat = settingsManager.fileFormat();
+        final Path saveLocation = saveLocation(fileFormat);
+        if (saveLocation == null) {
+            notifier.error("You must specify save location for %s files first", fileFormat.primaryExtension());
+            return;
+        }
+
+        final Path folder = settingsManager.batchFolder();
+        final String filter = settingsManager.batchFilter();
+        if (folder == null && filter == null) {
+            notifier.error("Specify a folder or a name filter to convert files in batch");
+            return;
+        }
 
-        if (convert(inFilePath, outFilePath) && shouldLoadDevice) {
-            cursorTrack.endOfDeviceChainInsertionPoint().insertFile(outFilePath.toString());
+        final PathMatcher nameMatcher;
+        try {
+            nameMatcher = FileSystems.getDefault().getPathMatcher("glob:" + (filter == null ? "*" : filter));
+        } catch (IllegalArgumentException e) {
+            notifier.error("Invalid name filter '%s': %s", filter, e.getMessage());
+            return;
+        }
+
+        // outputs keep the structure of the folder, outputs of an index query are put all together
+        final Path outputRoot = saveLocation.resolve(folder != null
+                ? folder.getFileName().toString()
+                : filter.replaceAll("[^\\w .-]", "_"));
+        final Set<Path> outputs = new HashSet<>();
+
+        final boolean started = batchConverter.start(
+                outputRoot.getFileName().toString(),
+                () -> folder != null
+                        ? listInputFiles(folder, nameMatcher, outputRoot)
+                        : sampleNameIndexer.findFiles(nameMatcher).stream()
+                                .filter(path -> !path.startsWith(outputRoot))
+                                .collect(toList()),
+                inFile -> {
+                    final Path relativeParent = folder != null ? folder.relativize(inFile).getParent() : null;
+                    final Path outDirectory = relativeParent != null ? outputRoot.resolve(relativeParent) : outputRoot;
+                    final Path outFile = outDirectory.resolve(
+                            Filename.withExtension(Filename.withoutExtension(inFile), fileFormat));
+
+                    // files with the same name in different places of the index
+                    if (!outputs.add(outFile)) {
+                        logger.error("Skipping %s, %s is produced from another file already", inFile, outFile);
+                        return List.of();
+                    }
+
+                    return Optional.ofNullable(createJob(inFile, outFile, logger::error)).stream().collect(toList());
+                }
+        );
+
+        if (!started) {
+            notifier.error("Another batch conversion is still in progress");
         }
     }
 
-    private void touchIndexer() {
-        sampleNameIndexer.checkForChanges();
-        getHost().scheduleTask(this::touchIndexer, INDEXER_POLLING_INTERVAL);
+    private static List<Path> listInputFiles(final Path folder, final PathMatcher nameMatcher, final Path outputRoot) throws IOException {
+        try (final var paths = Files.walk(folder)) {
+            return paths
+                    // the output folder may well be inside of the input one
+                    .filter(path -> !path.startsWith(outputRoot))
+                    .filter(path -> nameMatcher.matches(path.getFileName()))
+                    .filter(path -> {
+                        final String extension = Filename.extensionOf(path.getFileName().toString());
+                        final FileFormat format = extension == null ? null : FileFormat.fromExtension(extension.toLowerCase());
+                        return format != null && format.isInput();
+                    })
+                    .filter(Files::isRegularFile)
+                    .collect(toList());
+        }
     }
 
-    private Optional<String> inferSampleName() {
-        if (popupBrowser.exists().getAsBoolean()) {
-            // the popup browser reports filename without extension
-            return Strings.optional(cursorItem.name().get())
-                    .flatMap(sampleName  ->
-                        FileFormat.INPUT_FORMATS.stream()
-                                .flatMap(fileFormat -> fileFormat.getExtensions().stream())
-                                .map(extension -> Filename.withExtension(sampleName, extension))
-                                .filter(sampleNameIndexer::doesContain)
-                                .findFirst()
-                    );
+    private Optional<String> inferSampleName(final boolean fromPopupBrowser) {
+        if (fromPopupBrowser) {
+            return Strings.optional(cursorItem.name().get());
         } else {
             return Strings.optional(cursorDevice.sampleName().get());
         }
@@ -166,39 +428,108 @@ public class BitTableExtension extends ControllerExtension {
 
     }
 
+    // the selected sample is converted right away with the current settings, so that clicking
+    // "Convert and" later on only has to take the result from the conversion cache
+    private void speculate(final Path inFile) {
+        // shuffled tables aren't cached, the speculative result would never be used
+        if (!settingsManager.speculativeConversion() || !conversionCache.isEnabled()
+                || settingsManager.shuffle().asBoolean()) {
+            return;
+        }
+
+        final FileFormat fileFormat = settingsManager.fileFormat();
+        final Path outFile = OS.dataDirectory().resolve("speculative")
+                .resolve(Filename.withExtension(Filename.withoutExtension(inFile), fileFormat));
+
+        final ConversionJob job = createJob(inFile, outFile, logger::debug);
+        if (job != null) {
+            try {
+                Files.createDirectories(outFile.getParent());
+            } catch (IOException e) {
+                logger.error("Unable to create %s: %s", outFile.getParent(), e.getMessage());
+                return;
+            }
+
+            selectionPrewarmer.speculate(job);
+        }
+    }
+
+    // so that the first conversion doesn't wait for Python to start either
+    private void warmUpOkwtWorker() {
+        if (Strings.optional(settingsManager.getOkwtPathSetting().get()).isPresent()) {
+            okwtWorkerPool.warmUpFor(settingsManager.okwtExecutable());
+        }
+    }
+
     @Override
     public void exit() {
+        selectionPrewarmer.shutdown();
+        batchConverter.shutdown();
+        conversionExecutor.shutdown();
+        conversionCache.close();
+        okwtWorkerPool.shutdown();
+        processSupervisor.shutdown();
         sampleNameIndexer.close();
+        metrics.shutdown();
+        // the last one, what the others have logged while stopping is printed too
+        logger.close();
     }
 
     @Override
     public void flush() {
     }
 
-    @SneakyThrows
-    private boolean convert(Path inFile, Path outFile) {
-        final ConversionCommandBuilder conversionCommandBuilder = createCommandBuilder(inFile, outFile);
+    private ConversionJob createJob(Path inFile, Path outFile, Consumer<String> onError) {
+        return createJob(createCommandBuilder(inFile, outFile).build(), inFile, outFile, onError);
+    }
+
+    private ConversionJob createJob(
+            ConversionCommandBuilder conversionCommandBuilder,
+            Path inFile,
+            Path outFile,
+            Consumer<String> onError
+    ) {
         final List<String> command = conversionCommandBuilder.build();
-        logger.debug("Command to call okwt: %s",
-                command.stream().map(Strings::wrapWithQuotesIfContainsSpace).collect(joining(" ", "(", ")")));
+        if (logger.isDebug()) {
+            logger.debug("Command to call okwt: %s",
+                    command.stream().map(Strings::wrapWithQuotesIfContainsSpace).collect(joining(" ", "(", ")")));
+        }
 
         final Optional<String> ffmpegPath = Strings.optional(settingsManager.ffmpegPath());
 
         final FileFormat recognizedInFileFormat = FileFormat.fromExtension(Filename.extensionOf(inFile.toString()));
         // some audio files require ffmpeg
-        if (recognizedInFileFormat != null && recognizedInFileFormat.doesRequireFfmpeg()) {
-            if (ffmpegPath.isEmpty()) {
-                notifier.error("ffmpeg is required for files of type %s", recognizedInFileFormat.primaryExtension());
-                return false;
-            }
+        if (recognizedInFileFormat != null && recognizedInFileFormat.doesRequireFfmpeg()
+                && !isFfmpegValid(recognizedInFileFormat, onError)) {
+            return null;
+        }
 
-            if (Strings.isNotValidPath(ffmpegPath.get(), FileSystemItemType.DIRECTORY, logger::error)) {
-                notifier.error("ffmpeg path is invalid");
-                return false;
-            }
+        return ConversionJob.builder()
+                .inFile(inFile)
+                .outFile(outFile)
+                .command(command)
+                .options(conversionCommandBuilder)
+                .ffmpegPath(ffmpegPath)
+                .build();
+    }
+
+    private boolean isFfmpegValid(final FileFormat inFileFormat, final Consumer<String> onError) {
+        final Optional<String> ffmpegPath = Strings.optional(settingsManager.ffmpegPath());
+        if (ffmpegPath.isEmpty()) {
+            onError.accept(String.format("ffmpeg is required for files of type %s", inFileFormat.primaryExtension()));
+            return false;
+        }
+
+        if (Strings.isNotValidPath(ffmpegPath.get(), FileSystemItemType.DIRECTORY, logger::error)) {
+            onError.accept("ffmpeg path is invalid");
+            return false;
         }
 
-        switch (Processes.run(command, ffmpegPath, logger)) {
+        return true;
+    }
+
+    private boolean handleResult(final CallResult result) {
+        switch (result) {
             case SUCCESS -> {
                 notifier.info("Conversion is finished");
                 return true;
@@ -219,6 +550,11 @@ public class BitTableExtension extends ControllerExtension {
                 return false;
             }
 
+            case CANCELLED -> {
+                notifier.info("Conversion has been cancelled");
+                return false;
+            }
+
             case OKWT_ERROR -> {
                 notifier.error("Unable to convert the file as okwt has exited with error code");
                 return false;
@@ -228,9 +564,9 @@ public class BitTableExtension extends ControllerExtension {
         }
     }
 
-    private ConversionCommandBuilder createCommandBuilder(Path inFile, Path outFile) {
+    private ConversionCommandBuilder.ConversionCommandBuilderBuilder createCommandBuilder(Path inFile, Path outFile) {
         return ConversionCommandBuilder.builder()
-                .okwtPath(settingsManager.okwtPath().resolve("okwt").toString())
+                .okwtPath(settingsManager.okwtExecutable())
                 .inFile(inFile.toString())
                 .outFile(outFile.toString())
                 .resizeAlgorithm(settingsManager.resizeAlgorithm())
@@ -240,7 +576,6 @@ public class BitTableExtension extends ControllerExtension {
                 .trim(settingsManager.trim().asBoolean())
                 .trimThreshold(settingsManager.trimThreshold())
                 .shuffle(settingsManager.shuffle().asBoolean())
-                .shuffleChunks(settingsManager.shuffleChunks())
-                .build();
+                .shuffleChunks(settingsManager.shuffleChunks());
     }
 }
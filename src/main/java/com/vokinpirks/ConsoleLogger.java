@@ -1,32 +1,173 @@
 package com.vokinpirks;
 
 import com.bitwig.extension.controller.api.ControllerHost;
-import lombok.RequiredArgsConstructor;
+import lombok.Getter;
 import lombok.Setter;
 
-@RequiredArgsConstructor
+import java.util.Arrays;
+import java.util.IllegalFormatException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Logs to the controller script console of Bitwig.
+ * <p>
+ * Messages are only queued by the calling thread, a background one formats and prints them in batches, so logging
+ * never holds up conversions or indexing. If the queue is full the message is dropped, and how many have been is
+ * logged later on. Arguments are formatted only if the message is logged at all, and after the call has returned,
+ * so they must not be changed afterwards.
+ */
 public class ConsoleLogger {
 
+    private static final int CAPACITY = 4096;
+
+    private static final int BATCH_SIZE = 256;
+
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
     private final ControllerHost controllerHost;
 
+    private final LogBuffer buffer = new LogBuffer(CAPACITY);
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final Thread printer;
+
+    // only touched by the printer, consecutive messages of the same kind are printed at once
+    private final StringBuilder batch = new StringBuilder();
+
+    private boolean batchOfErrors;
+
+    @Getter
     @Setter
-    private boolean debug = false;
+    private volatile boolean debug = false;
+
+    private volatile boolean parked;
+
+    private volatile boolean closed;
+
+    public ConsoleLogger(final ControllerHost controllerHost) {
+        this.controllerHost = controllerHost;
+        this.printer = new Thread(this::print, "bittable-logger");
+        // must never keep Bitwig's JVM alive
+        printer.setDaemon(true);
+        printer.start();
+    }
 
     public void info(final String message, final Object... formatArgs) {
         log(false, message, formatArgs);
     }
 
     public void debug(final String message, final Object... formatArgs) {
-        log(true, message, formatArgs);
+        if (debug) {
+            log(false, message, formatArgs);
+        }
     }
 
     public void error(final String message, final Object... formatArgs) {
-        controllerHost.errorln(String.format(message, formatArgs));
+        log(true, message, formatArgs);
+    }
+
+    /**
+     * Prints whatever is still queued and stops the background thread, later messages are printed right away.
+     */
+    public void close() {
+        closed = true;
+        LockSupport.unpark(printer);
+        try {
+            printer.join(1000L);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void log(final boolean error, final String message, final Object... formatArgs) {
+        if (closed) {
+            synchronized (batch) {
+                append(error, message, formatArgs);
+                flush();
+            }
+            return;
+        }
+
+        if (!buffer.offer(error, message, formatArgs)) {
+            dropped.incrementAndGet();
+            return;
+        }
+
+        if (parked) {
+            LockSupport.unpark(printer);
+        }
+    }
+
+    // runs on the printer thread
+    private void print() {
+        while (!closed) {
+            if (printBatch() == 0) {
+                parked = true;
+                // a message may have been queued before the flag was seen
+                if (buffer.isEmpty()) {
+                    LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                }
+                parked = false;
+            }
+        }
+
+        while (printBatch() > 0) {
+            // the rest of the queue
+        }
+    }
+
+    private int printBatch() {
+        synchronized (batch) {
+            final int count = buffer.drain(this::append, BATCH_SIZE);
+
+            final long droppedCount = dropped.getAndSet(0L);
+            if (droppedCount > 0) {
+                append(true, "%s log messages have been dropped, logging couldn't keep up", new Object[]{droppedCount});
+            }
+
+            flush();
+            return count;
+        }
     }
 
-    private void log(final boolean debug, final String message, final Object... formatArgs) {
-        if (this.debug || !debug) {
-            controllerHost.println(String.format(message, formatArgs));
+    private void append(final boolean error, final String message, final Object[] formatArgs) {
+        if (batch.length() > 0 && error != batchOfErrors) {
+            flush();
+        }
+
+        if (batch.length() > 0) {
+            batch.append('\n');
+        }
+        batchOfErrors = error;
+        batch.append(format(message, formatArgs));
+    }
+
+    private void flush() {
+        if (batch.length() == 0) {
+            return;
+        }
+
+        if (batchOfErrors) {
+            controllerHost.errorln(batch.toString());
+        } else {
+            controllerHost.println(batch.toString());
+        }
+        batch.setLength(0);
+    }
+
+    // a message without arguments isn't a format, okwt's output may well contain %
+    private static String format(final String message, final Object[] formatArgs) {
+        if (formatArgs == null || formatArgs.length == 0) {
+            return message;
+        }
+
+        try {
+            return String.format(message, formatArgs);
+        } catch (IllegalFormatException e) {
+            return message + " " + Arrays.toString(formatArgs);
         }
     }
 }
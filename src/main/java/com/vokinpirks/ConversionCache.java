@@ -0,0 +1,239 @@
+package com.vokinpirks;
+
+import com.vokinpirks.util.Filename;
+import com.vokinpirks.util.Hashes;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Keeps results of previous conversions keyed by the content of the input file and okwt arguments.
+ * Entries are evicted in LRU order once the total size exceeds the limit. The manifest lists entries
+ * from the least to the most recently used one, so the order survives restarts. It's rewritten whenever entries are
+ * added or removed, a hit only reorders them, which is saved along with the next change or on {@link #close()}.
+ */
+public class ConversionCache {
+
+    private static final String MANIFEST_FILE = "manifest.tsv";
+
+    private static final String IN_FILE_PLACEHOLDER = "<infile>";
+
+    private final Path directory;
+
+    private final ConsoleLogger logger;
+
+    // key -> size in bytes, iteration order is access order
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(64, 0.75f, true);
+
+    private long totalSize;
+
+    private long maxSize;
+
+    // the order has changed since the manifest has been written
+    private boolean manifestDirty;
+
+    public ConversionCache(Path directory, long maxSize, ConsoleLogger logger) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        this.logger = logger;
+        loadManifest();
+    }
+
+    public synchronized boolean isEnabled() {
+        return maxSize > 0;
+    }
+
+    public synchronized void setMaxSize(final long maxSize) {
+        this.maxSize = maxSize;
+        if (evict()) {
+            saveManifest();
+        }
+    }
+
+    /**
+     * @return null if the input file can't be read
+     */
+    public String keyOf(final Path inFile, final List<String> command, final Path outFile) {
+        try {
+            return Hashes.sha1(Hashes.contentHash(inFile), Files.size(inFile), optionsOf(inFile, command, outFile));
+        } catch (IOException e) {
+            logger.error("Unable to hash %s: %s", inFile, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * The command with the paths of the files left out, the same input may live under different paths and output
+     * names differ with each call, only the content and the options matter.
+     */
+    static List<String> optionsOf(final Path inFile, final List<String> command, final Path outFile) {
+        final String in = inFile.toString();
+        final String out = outFile.toString();
+        return command.stream()
+                .map(argument -> argument.equals(in) ? IN_FILE_PLACEHOLDER : argument)
+                .map(argument -> argument.equals(out) ? Filename.extensionOf(out) : argument)
+                .collect(toList());
+    }
+
+    /**
+     * Puts the cached result of a conversion to the output path.
+     *
+     * @return false if there is no such entry
+     */
+    public synchronized boolean restore(final String key, final Path outFile) {
+        if (entries.get(key) == null) {
+            return false;
+        }
+
+        final Path cached = entryPath(key, outFile);
+        try {
+            link(cached, outFile);
+        } catch (IOException e) {
+            // the file has gone, forget about it
+            logger.error("Unable to restore %s from the cache: %s", outFile, e.getMessage());
+            remove(key, cached);
+            saveManifest();
+            return false;
+        }
+
+        manifestDirty = true;
+        return true;
+    }
+
+    public synchronized void store(final String key, final Path outFile) {
+        if (!isEnabled()) {
+            return;
+        }
+
+        final Path cached = entryPath(key, outFile);
+        try {
+            Files.createDirectories(directory);
+            link(outFile, cached);
+            final long size = Files.size(cached);
+            final Long previousSize = entries.put(key, size);
+            totalSize += size - (previousSize == null ? 0 : previousSize);
+        } catch (IOException e) {
+            logger.error("Unable to put %s to the cache: %s", outFile, e.getMessage());
+            return;
+        }
+
+        evict();
+        saveManifest();
+    }
+
+    public synchronized void close() {
+        if (manifestDirty) {
+            saveManifest();
+        }
+    }
+
+    private boolean evict() {
+        boolean evicted = false;
+        final Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+        while (totalSize > maxSize && iterator.hasNext()) {
+            final Map.Entry<String, Long> eldest = iterator.next();
+            iterator.remove();
+            totalSize -= eldest.getValue();
+            deleteEntryFiles(eldest.getKey());
+            evicted = true;
+            logger.debug("Conversion cache entry %s has been evicted", eldest.getKey());
+        }
+
+        return evicted;
+    }
+
+    private void remove(final String key, final Path cached) {
+        final Long size = entries.remove(key);
+        if (size != null) {
+            totalSize -= size;
+        }
+
+        try {
+            Files.deleteIfExists(cached);
+        } catch (IOException e) {
+            logger.error(e.getMessage());
+        }
+    }
+
+    private void deleteEntryFiles(final String key) {
+        for (String extension : List.of(".wav", ".wt")) {
+            try {
+                Files.deleteIfExists(directory.resolve(key + extension));
+            } catch (IOException e) {
+                logger.error(e.getMessage());
+            }
+        }
+    }
+
+    private Path entryPath(final String key, final Path outFile) {
+        return directory.resolve(key + Filename.extensionOf(outFile.toString()));
+    }
+
+    private void loadManifest() {
+        final Path manifest = directory.resolve(MANIFEST_FILE);
+        if (!Files.exists(manifest)) {
+            return;
+        }
+
+        try {
+            for (String line : Files.readAllLines(manifest, UTF_8)) {
+                final String[] keyAndSize = line.split("\t");
+                if (keyAndSize.length != 2) {
+                    continue;
+                }
+
+                final long size = Long.parseLong(keyAndSize[1]);
+                entries.put(keyAndSize[0], size);
+                totalSize += size;
+            }
+        } catch (IOException | NumberFormatException e) {
+            // a broken manifest only costs a few extra okwt runs
+            logger.error("Unable to read the conversion cache manifest: %s", e.getMessage());
+            entries.clear();
+            totalSize = 0;
+        }
+
+        logger.debug("Conversion cache: %s entries, %s bytes", entries.size(), totalSize);
+    }
+
+    private void saveManifest() {
+        final Path manifest = directory.resolve(MANIFEST_FILE);
+        final Path temp = directory.resolve(MANIFEST_FILE + ".tmp");
+        try {
+            Files.createDirectories(directory);
+            try (BufferedWriter writer = Files.newBufferedWriter(temp, UTF_8)) {
+                for (Map.Entry<String, Long> entry : entries.entrySet()) {
+                    writer.write(entry.getKey());
+                    writer.write('\t');
+                    writer.write(Long.toString(entry.getValue()));
+                    writer.newLine();
+                }
+            }
+            Files.move(temp, manifest, REPLACE_EXISTING, ATOMIC_MOVE);
+            manifestDirty = false;
+        } catch (IOException e) {
+            logger.error("Unable to write the conversion cache manifest: %s", e.getMessage());
+        }
+    }
+
+    // hard links are free, but don't work across volumes or on some file systems
+    private static void link(final Path existing, final Path link) throws IOException {
+        Files.deleteIfExists(link);
+        try {
+            Files.createLink(link, existing);
+        } catch (FileAlreadyExistsException e) {
+            throw e;
+        } catch (IOException | UnsupportedOperationException e) {
+            Files.copy(existing, link, REPLACE_EXISTING);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.vokinpirks;
+
+import com.bitwig.extension.controller.api.ControllerHost;
+import com.vokinpirks.enums.CallResult;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+public class ConversionExecutor {
+
+    private static final int WORKER_COUNT = 2;
+
+    private static final int QUEUE_CAPACITY = 16;
+
+    private final ControllerHost host;
+
+    private final ConsoleLogger logger;
+
+    private final Function<ConversionJob, CallResult> converter;
+
+    private final ThreadPoolExecutor executor;
+
+    public ConversionExecutor(
+            ControllerHost host,
+            ConsoleLogger logger,
+            Function<ConversionJob, CallResult> converter
+    ) {
+        this.host = host;
+        this.logger = logger;
+        this.converter = converter;
+        this.executor = new ThreadPoolExecutor(WORKER_COUNT, WORKER_COUNT, 0L, MILLISECONDS,
+                new ArrayBlockingQueue<>(QUEUE_CAPACITY),
+                workerThreadFactory(),
+                new ThreadPoolExecutor.AbortPolicy()
+        );
+    }
+
+    /**
+     * Queues the job to be run on one of the worker threads.
+     * The callback is always invoked on the host thread so it's safe to use the controller API from it.
+     *
+     * @return false if the queue is full and the job has been rejected
+     */
+    public boolean submit(final ConversionJob job, final Consumer<CallResult> onFinished) {
+        try {
+            executor.execute(() -> {
+                final CallResult result = runSafely(job);
+                host.scheduleTask(() -> onFinished.accept(result), 0L);
+            });
+        } catch (RejectedExecutionException e) {
+            logger.error("Conversion of %s has been rejected: %s jobs are already queued", job.getInFile(), queueSize());
+            return false;
+        }
+
+        logger.debug("Conversion of %s has been queued", job.getInFile());
+        return true;
+    }
+
+    /**
+     * @return how many jobs have been dropped, their callbacks are never invoked
+     */
+    public int cancelQueued() {
+        final List<Runnable> dropped = new ArrayList<>();
+        executor.getQueue().drainTo(dropped);
+        return dropped.size();
+    }
+
+    public int queueSize() {
+        return executor.getQueue().size();
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private CallResult runSafely(final ConversionJob job) {
+        try {
+            return converter.apply(job);
+        } catch (RuntimeException e) {
+            logger.error("Conversion of %s has failed: %s", job.getInFile(), e);
+            return CallResult.UNKNOWN_ERROR;
+        }
+    }
+
+    private static ThreadFactory workerThreadFactory() {
+        final AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            final Thread thread = new Thread(runnable, "bittable-conversion-" + counter.incrementAndGet());
+            // must never keep Bitwig's JVM alive
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
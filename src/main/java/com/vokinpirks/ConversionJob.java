@@ -0,0 +1,26 @@
+package com.vokinpirks;
+
+import lombok.Builder;
+import lombok.Getter;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Optional;
+
+// an immutable snapshot of everything a worker thread needs to run a conversion,
+// settings must not be read from outside the host thread
+@Builder
+@Getter
+public class ConversionJob {
+
+    private final Path inFile;
+
+    private final Path outFile;
+
+    private final List<String> command;
+
+    // the options the command has been built from, for converting without okwt
+    private final ConversionCommandBuilder options;
+
+    private final Optional<String> ffmpegPath;
+}
@@ -0,0 +1,116 @@
+package com.vokinpirks;
+
+import com.vokinpirks.enums.CallResult;
+import com.vokinpirks.metrics.Metrics;
+import com.vokinpirks.util.Hashes;
+import com.vokinpirks.wavetable.WavetableEngine;
+import lombok.RequiredArgsConstructor;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+
+// runs on conversion worker threads
+@RequiredArgsConstructor
+public class Converter {
+
+    private static final String BUILT_IN_ENGINE_MARKER = "<built-in>";
+
+    private final ConversionCache cache;
+
+    private final WavetableEngine engine;
+
+    private final OkwtWorkerPool workerPool;
+
+    private final ProcessSupervisor supervisor;
+
+    private final Metrics metrics;
+
+    private final ConsoleLogger logger;
+
+    public CallResult convert(final ConversionJob job) {
+        final long start = System.nanoTime();
+        final CallResult result = convertCached(job);
+        metrics.histogram("conversion.total").recordSince(start);
+        metrics.counter("conversion." + result.name().toLowerCase()).increment();
+        return result;
+    }
+
+    private CallResult convertCached(final ConversionJob job) {
+        final boolean inProcess = engine.supports(job.getOptions(), job.getInFile(), job.getOutFile(), job.getFfmpegPath());
+
+        // a shuffled table is meant to be different every time, replaying it from the cache would defeat that
+        final String okwtKey = cache.isEnabled() && !isShuffled(job)
+                ? cache.keyOf(job.getInFile(), job.getCommand(), job.getOutFile())
+                : null;
+        // the built-in engine doesn't produce bit-identical results, those are cached apart from okwt's
+        final String builtInKey = okwtKey != null && inProcess
+                ? Hashes.sha1(0L, 0L, List.of(okwtKey, BUILT_IN_ENGINE_MARKER))
+                : null;
+
+        // the engine may hand the input over to okwt, in which case okwt's result is what it would produce anyway
+        if (restore(builtInKey, job) || restore(okwtKey, job)) {
+            logger.debug("%s has been taken from the conversion cache", job.getOutFile());
+            metrics.counter("cache.hits").increment();
+            return CallResult.SUCCESS;
+        }
+        if (okwtKey != null) {
+            metrics.counter("cache.misses").increment();
+        }
+
+        try {
+            // the output may be a hard link to a cache entry, okwt must not write through it
+            Files.deleteIfExists(job.getOutFile());
+        } catch (IOException e) {
+            logger.error(e.getMessage());
+            return CallResult.IO_ERROR;
+        }
+
+        CallResult result = inProcess ? runEngine(job) : null;
+        // stored under the key of whichever has actually produced the file
+        final String cacheKey = result != null ? builtInKey : okwtKey;
+        if (result == null) {
+            result = runOkwt(job);
+        }
+
+        if (result == CallResult.SUCCESS && cacheKey != null) {
+            cache.store(cacheKey, job.getOutFile());
+        }
+
+        return result;
+    }
+
+    private boolean restore(final String cacheKey, final ConversionJob job) {
+        return cacheKey != null && cache.restore(cacheKey, job.getOutFile());
+    }
+
+    private static boolean isShuffled(final ConversionJob job) {
+        return job.getOptions() != null && Boolean.TRUE.equals(job.getOptions().getShuffle());
+    }
+
+    // null if the engine has turned the input down
+    private CallResult runEngine(final ConversionJob job) {
+        final long engineStart = System.nanoTime();
+        final CallResult result = engine.convert(job.getOptions(), job.getInFile(), job.getOutFile(), job.getFfmpegPath());
+        if (result != null) {
+            metrics.histogram("conversion.engine").recordSince(engineStart);
+        }
+        return result;
+    }
+
+    private CallResult runOkwt(final ConversionJob job) {
+        final long timeout = supervisor.timeoutFor(job.getInFile());
+        final long start = System.currentTimeMillis();
+
+        CallResult result = workerPool.run(job.getCommand(), job.getFfmpegPath(), timeout);
+        if (result == null) {
+            result = supervisor.run(job.getCommand(), job.getFfmpegPath(), timeout);
+        }
+
+        if (result == CallResult.SUCCESS) {
+            supervisor.record(job.getInFile(), System.currentTimeMillis() - start);
+            metrics.histogram("conversion.okwt").record((System.currentTimeMillis() - start) * 1000L);
+        }
+        return result;
+    }
+}
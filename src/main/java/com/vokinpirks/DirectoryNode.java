@@ -0,0 +1,149 @@
+package com.vokinpirks;
+
+import java.nio.file.Path;
+import java.nio.file.WatchKey;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.function.Consumer;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * An indexed directory. Only the leaf name is stored, so moving a subtree is a matter of
+ * changing a single node, and full paths are rebuilt from the chain of parents when needed.
+ * Files are ids in the {@link FileTable}.
+ * <p>
+ * Guarded by the file table lock, except for the watch key which is only touched by indexing code.
+ */
+final class DirectoryNode {
+
+    private static final int[] NO_FILES = new int[0];
+
+    // the full path for roots
+    private byte[] name;
+
+    DirectoryNode parent;
+
+    volatile long lastModified;
+
+    // tells the directory apart after a rename (the inode on Linux and macOS), null where there is no such thing
+    volatile Object fileKey;
+
+    volatile WatchKey watchKey;
+
+    // position of the sample location in the settings, only set for roots
+    int priority;
+
+    private List<DirectoryNode> children;
+
+    private int[] files = NO_FILES;
+
+    private int fileCount;
+
+    DirectoryNode(String name, DirectoryNode parent) {
+        this.name = name.getBytes(UTF_8);
+        this.parent = parent;
+    }
+
+    static DirectoryNode root(final Path path) {
+        return new DirectoryNode(path.toString(), null);
+    }
+
+    String name() {
+        return new String(name, UTF_8);
+    }
+
+    void rename(final String name) {
+        this.name = name.getBytes(UTF_8);
+    }
+
+    boolean isRoot() {
+        return parent == null;
+    }
+
+    DirectoryNode root() {
+        DirectoryNode node = this;
+        while (node.parent != null) {
+            node = node.parent;
+        }
+
+        return node;
+    }
+
+    Path path() {
+        return parent == null
+                ? Path.of(name())
+                : parent.path().resolve(name());
+    }
+
+    DirectoryNode child(final String name) {
+        if (children == null) {
+            return null;
+        }
+
+        final byte[] bytes = name.getBytes(UTF_8);
+        for (DirectoryNode child : children) {
+            if (Arrays.equals(child.name, bytes)) {
+                return child;
+            }
+        }
+
+        return null;
+    }
+
+    List<DirectoryNode> children() {
+        return children == null ? List.of() : children;
+    }
+
+    void addChild(final DirectoryNode child) {
+        if (children == null) {
+            children = new ArrayList<>(2);
+        }
+
+        children.add(child);
+        child.parent = this;
+    }
+
+    void removeChild(final DirectoryNode child) {
+        if (children != null) {
+            children.remove(child);
+        }
+    }
+
+    int fileCount() {
+        return fileCount;
+    }
+
+    int fileAt(final int index) {
+        return files[index];
+    }
+
+    void addFile(final int id) {
+        if (fileCount == files.length) {
+            files = Arrays.copyOf(files, Math.max(4, fileCount * 2));
+        }
+
+        files[fileCount++] = id;
+    }
+
+    void removeFileAt(final int index) {
+        files[index] = files[--fileCount];
+        if (fileCount == 0) {
+            files = NO_FILES;
+        }
+    }
+
+    // pre-order, iterative so deep trees don't blow the stack
+    void forEachInSubtree(final Consumer<DirectoryNode> action) {
+        final Deque<DirectoryNode> stack = new ArrayDeque<>();
+        stack.push(this);
+        while (!stack.isEmpty()) {
+            final DirectoryNode node = stack.pop();
+            action.accept(node);
+            node.children().forEach(stack::push);
+        }
+    }
+}
@@ -1,198 +1,1062 @@
 package com.vokinpirks;
 
 import com.vokinpirks.enums.FileFormat;
+import com.vokinpirks.metrics.Counter;
+import com.vokinpirks.metrics.Histogram;
+import com.vokinpirks.metrics.Metrics;
+import com.vokinpirks.util.Filename;
 
-import java.io.File;
 import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.PathMatcher;
 import java.nio.file.WatchEvent;
 import java.nio.file.WatchKey;
 import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.function.BiConsumer;
-import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 import static java.lang.System.currentTimeMillis;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
 import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
-import static java.util.concurrent.CompletableFuture.supplyAsync;
-import static java.util.concurrent.ForkJoinPool.commonPool;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.stream.Collectors.toSet;
 
 public class FileNameIndexer {
 
+    // events closer to each other than this are applied as a single batch
+    private static final long COALESCING_WINDOW = 200L;
+
+    // but the index shouldn't lag behind for too long during a long copy
+    private static final long MAX_COALESCING_DELAY = 2000L;
+
+    private static final int MAX_BATCH_SIZE = 50_000;
+
+    // how often the snapshot is rewritten at most, if anything has changed
+    private static final long SNAPSHOT_INTERVAL = 120_000L;
+
     private static final Set<String> AUDIO_FILES_EXTENSIONS = FileFormat.INPUT_FORMATS.stream()
             .map(FileFormat::getExtensions)
             .flatMap(Collection::stream)
             .collect(toSet());
 
-    private final Map<Path, WatchKey> watchableDirectories = new ConcurrentHashMap<>(128);
+    // every structural change of the index and every lookup is done while holding its monitor
+    private final FileTable files = new FileTable();
+
+    private final Map<Path, DirectoryNode> roots = new ConcurrentHashMap<>();
+
+    private final Map<WatchKey, DirectoryNode> watchedDirectories = new ConcurrentHashMap<>(128);
+
+    // watched directories from the least to the most recently active one, guarded by itself
+    private final Map<DirectoryNode, Boolean> watchActivity = new LinkedHashMap<>(128, 0.75f, true);
+
+    // learnt when the OS refuses to register one more watch
+    private volatile int watchLimit = Integer.MAX_VALUE;
+
+    private final PollingScanner pollingScanner;
+
+    private final TraversalEngine traversalEngine;
 
-    private final Map<String, String> filenameToPath = new ConcurrentHashMap<>(1024);
+    // directories loaded from the snapshot that haven't been attached to the index yet
+    private final Map<Path, IndexSnapshot.StoredDirectory> snapshotDirectories = new ConcurrentHashMap<>();
+
+    private final Map<Path, List<Path>> snapshotSubdirectories = new ConcurrentHashMap<>();
+
+    // the snapshot is only consistent when nothing is being indexed
+    private final AtomicInteger pendingIndexingTasks = new AtomicInteger();
+
+    // whether the index has changed since the snapshot was last written
+    private final AtomicBoolean snapshotDirty = new AtomicBoolean();
+
+    // changes of the sample locations wait for the snapshot to be read, in the order they have been made
+    private CompletableFuture<Void> snapshotLoaded;
+
+    private final Object snapshotLoadedLock = new Object();
+
+    private ScheduledExecutorService snapshotWriter;
 
     private final ConsoleLogger logger;
 
+    private final Counter watchEvents;
+
+    private final Counter watchOverflows;
+
+    private final Histogram watchApplyLatency;
+
+    private final Histogram walkLatency;
+
+    private final Histogram lookupLatency;
+
     private final WatchService watchService;
 
-    public FileNameIndexer(ConsoleLogger logger) {
+    private final Path snapshotFile;
+
+    private final boolean watching;
+
+    private final Thread watcherThread;
+
+    public FileNameIndexer(ConsoleLogger logger, Metrics metrics, Path snapshotFile) {
+        this(logger, metrics, snapshotFile, true);
+    }
+
+    /**
+     * @param snapshotFile null to keep the index in memory only
+     * @param watching false to leave indexed directories neither watched nor polled, i.e. to measure indexing alone
+     */
+    public FileNameIndexer(ConsoleLogger logger, Metrics metrics, Path snapshotFile, boolean watching) {
         this.logger = logger;
+        this.snapshotFile = snapshotFile;
+        this.watching = watching;
+        this.watchEvents = metrics.counter("watch.events");
+        this.watchOverflows = metrics.counter("watch.overflows");
+        this.watchApplyLatency = metrics.histogram("watch.apply");
+        this.walkLatency = metrics.histogram("index.walk");
+        this.lookupLatency = metrics.histogram("index.lookup");
         try {
             watchService = FileSystems.getDefault().newWatchService();
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
+
+        this.traversalEngine = new TraversalEngine(logger);
+        this.pollingScanner = new PollingScanner(this::pathOf, this::polledDirectoryChanged, logger);
+        this.watcherThread = new Thread(this::watchForChanges, "bittable-watcher");
+        this.watcherThread.setDaemon(true);
+
+        metrics.gauge("index.files", () -> {
+            synchronized (files) {
+                return files.size();
+            }
+        });
+        metrics.gauge("index.bytes", () -> {
+            synchronized (files) {
+                return files.estimatedBytes();
+            }
+        });
+        metrics.gauge("index.directories.watched", watchedDirectories::size);
+        metrics.gauge("index.directories.polled", pollingScanner::size);
+        metrics.gauge("index.pending_walks", pendingIndexingTasks::get);
+
+        // reading a big snapshot takes a while, not something to do on the host thread
+        this.snapshotLoaded = traversalEngine.run(this::loadSnapshot);
     }
 
     public void close() {
+        if (snapshotWriter != null) {
+            snapshotWriter.shutdownNow();
+        }
+        saveSnapshotIfDirty();
+
+        pollingScanner.stop();
+        traversalEngine.shutdown();
+
         try {
+            // wakes the watcher thread up
             this.watchService.close();
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
-    public void checkForChanges() {
-        WatchKey wk;
-        while ( (wk = watchService.poll()) != null) {
-            final Path watchable = (Path) wk.watchable();
+    public void start() {
+        watcherThread.start();
+        pollingScanner.start();
 
-            for (WatchEvent<?> event : wk.pollEvents()) {
-                final Path fullPath = watchable.resolve((Path) event.context());
-                final String filename = fullPath.getFileName().toString();
+        if (snapshotFile == null) {
+            return;
+        }
 
-                if (event.kind().equals(ENTRY_CREATE)) {
-                    if (fullPath.toFile().isDirectory()) {
-                        // a new directory has been created, scan it and watch it for further changes
-                        logger.debug("Indexing new directory: %s", fullPath);
-                        indexDirectory(fullPath);
-                    } else {
-                        // a new file has been created, index it if needed
-                        if (isAudioFile(filename)) {
-                            if (filenameToPath.put(filename, fullPath.toString()) == null) {
-                                logger.debug("New file added to the index: %s", fullPath);
-                            }
-                        }
+        // a busy library changes all the time, the snapshot only has to be reasonably fresh
+        snapshotWriter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "bittable-snapshot");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+        snapshotWriter.scheduleWithFixedDelay(this::saveSnapshotIfDirty, SNAPSHOT_INTERVAL, SNAPSHOT_INTERVAL, MILLISECONDS);
+    }
+
+    private void watchForChanges() {
+        while (true) {
+            final Set<ChangedEntry> created = new LinkedHashSet<>();
+            final Set<ChangedEntry> deleted = new LinkedHashSet<>();
+            final Map<DirectoryNode, Path> overflowed = new LinkedHashMap<>();
+
+            try {
+                // blocks until something happens, so an idle library costs nothing
+                WatchKey wk = watchService.take();
+
+                // copying a pack in produces a burst of events, wait until it calms down
+                // and apply all of them at once
+                final long deadline = currentTimeMillis() + MAX_COALESCING_DELAY;
+                do {
+                    collectEvents(wk, created, deleted, overflowed);
+                    if (created.size() + deleted.size() >= MAX_BATCH_SIZE) {
+                        break;
+                    }
+                    wk = watchService.poll(COALESCING_WINDOW, MILLISECONDS);
+                } while (wk != null && currentTimeMillis() < deadline);
+            } catch (ClosedWatchServiceException | InterruptedException e) {
+                // the extension is shutting down
+                return;
+            }
+
+            final JfrEvents.WatchBatch event = new JfrEvents.WatchBatch();
+            event.begin();
+            try {
+                final long timestamp = currentTimeMillis();
+                final long start = System.nanoTime();
+                applyChanges(created, deleted);
+                rescanOverflowed(overflowed);
+                snapshotDirty.set(true);
+                watchApplyLatency.recordSince(start);
+                event.end();
+                if (event.shouldCommit()) {
+                    event.created = created.size();
+                    event.deleted = deleted.size();
+                    event.overflowed = overflowed.size();
+                    event.commit();
+                }
+                logger.debug("Applied %s created and %s deleted entries in %s ms, %s directories have lost events",
+                        created.size(), deleted.size(), currentTimeMillis() - timestamp, overflowed.size());
+            } catch (RuntimeException e) {
+                logger.error("Unable to apply file system changes to the index: %s", e);
+            }
+        }
+    }
+
+    private void collectEvents(
+            final WatchKey wk,
+            final Set<ChangedEntry> created,
+            final Set<ChangedEntry> deleted,
+            final Map<DirectoryNode, Path> overflowed
+    ) {
+        final Path watchable = (Path) wk.watchable();
+        final DirectoryNode directory = watchedDirectories.get(wk);
+        boolean hasOverflowed = false;
+
+        for (WatchEvent<?> event : wk.pollEvents()) {
+            watchEvents.increment();
+            if (directory == null) {
+                continue;
+            }
+
+            if (event.kind().equals(OVERFLOW)) {
+                watchOverflows.increment();
+                // some events are lost, the only way to find out what's changed is to list the directory again
+                hasOverflowed = true;
+                overflowed.put(directory, watchable);
+                continue;
+            }
+
+            final Path fullPath = watchable.resolve((Path) event.context());
+
+            // a modification of something that isn't indexed means its creation has been missed,
+            // so it goes the same way, known entries are skipped there anyway
+            if (event.kind().equals(ENTRY_CREATE) || event.kind().equals(ENTRY_MODIFY)) {
+                created.add(new ChangedEntry(directory, fullPath));
+            } else if (event.kind().equals(ENTRY_DELETE)) {
+                deleted.add(new ChangedEntry(directory, fullPath));
+            }
+        }
+
+        // the modification time of an overflowed directory is kept as of the last time it was in sync,
+        // the rescan relies on it
+        if (directory != null && !hasOverflowed && !overflowed.containsKey(directory)) {
+            directory.lastModified = lastModified(watchable);
+        }
+
+        if (directory != null) {
+            synchronized (watchActivity) {
+                watchActivity.get(directory);
+            }
+        }
+        wk.reset();
+    }
+
+    private void rescanOverflowed(final Map<DirectoryNode, Path> overflowed) {
+        // on Linux a full inotify queue overflows every key at once, but directories which modification time
+        // hasn't changed since they were last in sync are skipped by the rescan, so that's mostly stat calls
+        overflowed.forEach((directory, path) -> {
+            if (directory.watchKey != null) {
+                submitIndexing(new RevalidationTask(directory, path, true), directory, path);
+            }
+        });
+    }
+
+    private void applyChanges(final Collection<ChangedEntry> created, final Collection<ChangedEntry> deleted) {
+        // stat everything up front so the lock isn't held during I/O
+        final Map<ChangedEntry, BasicFileAttributes> attributes = new HashMap<>(created.size() * 2);
+        for (ChangedEntry entry : created) {
+            final BasicFileAttributes entryAttributes = readAttributes(entry.fullPath());
+            // otherwise the file was deleted right after it had been created
+            if (entryAttributes != null) {
+                attributes.put(entry, entryAttributes);
+            }
+        }
+
+        final Map<DirectoryNode, Path> movedDirectories = new LinkedHashMap<>();
+        final Map<DirectoryNode, Path> newDirectories = new LinkedHashMap<>();
+
+        synchronized (files) {
+            // a moved or renamed directory is reported as a deletion in one place and a creation in another one,
+            // deletions are applied first so that moved subtrees can be reattached rather than rescanned
+            final List<DirectoryNode> movedAway = new ArrayList<>();
+            for (ChangedEntry entry : deleted) {
+                final String filename = entry.filename();
+                final DirectoryNode directory = entry.parent().child(filename);
+                if (directory != null) {
+                    detachSubtree(directory);
+                    movedAway.add(directory);
+                } else if (removeFile(entry.parent(), filename)) {
+                    logger.debug("File deleted from the index: %s", entry.fullPath());
+                }
+            }
+
+            // names already indexed in directories that got new files, built once per directory
+            final Map<DirectoryNode, Set<String>> indexedNames = new HashMap<>();
+
+            for (ChangedEntry entry : created) {
+                final BasicFileAttributes entryAttributes = attributes.get(entry);
+                if (entryAttributes == null) {
+                    continue;
+                }
+
+                final DirectoryNode parent = entry.parent();
+                final String filename = entry.filename();
+                if (entryAttributes.isDirectory()) {
+                    if (parent.child(filename) != null) {
+                        // the parent is being indexed right now and has already found this one
+                        continue;
                     }
-                } else if (event.kind().equals(ENTRY_DELETE)) {
-                    if (watchableDirectories.containsKey(fullPath)) {
-                        // a directory has been deleted
-                        removeDirectory(fullPath);
+
+                    final DirectoryNode moved = takeMovedDirectory(movedAway, filename, entryAttributes);
+                    if (moved != null) {
+                        moved.rename(filename);
+                        parent.addChild(moved);
+                        movedDirectories.put(moved, entry.fullPath());
                     } else {
-                        // a file has been deleted
-                        if (filenameToPath.remove(filename) != null) {
-                            logger.debug("File deleted from the index: %s", fullPath);
-                        }
+                        newDirectories.put(addDirectory(parent, filename), entry.fullPath());
+                    }
+                } else if (entryAttributes.isRegularFile() && isAudioFile(filename)) {
+                    // a new file has been created, index it if needed
+                    if (indexedNames.computeIfAbsent(parent, this::fileNamesOf).add(filename)) {
+                        addFile(parent, filename);
+                        logger.debug("New file added to the index: %s", entry.fullPath());
                     }
                 }
             }
 
-            wk.reset();
+            movedAway.forEach(this::forgetFiles);
         }
+
+        // watch keys are bound to paths, and something might have changed in the meantime, only directories which
+        // modification time differs are listed again
+        movedDirectories.forEach((directory, path) -> {
+            logger.debug("Directory has been moved to %s", path);
+            submitIndexing(new RevalidationTask(directory, path), directory, path);
+        });
+
+        // scan new directories and watch them for further changes
+        newDirectories.forEach((directory, path) -> {
+            logger.debug("Indexing new directory: %s", path);
+            submitIndexing(new DirectoryTraversalTask(directory, path), directory, path);
+        });
     }
 
-    public void indexDirectory(Path directory) {
-        final DirectoryTraversalTask rootTask = new DirectoryTraversalTask(directory,
-                this.filenameToPath::put,
-                this::watchDirectoryForChanges
-        );
+    /**
+     * @param priority position of the sample location in the settings, files from locations with lower
+     *                 values win when there are several files with the same name
+     * @return completes once the directory has been indexed
+     */
+    public CompletableFuture<Void> indexDirectory(Path directory, int priority) {
+        return afterSnapshotLoaded(() -> indexLoadedDirectory(directory, priority));
+    }
+
+    private CompletableFuture<Void> indexLoadedDirectory(final Path directory, final int priority) {
+        DirectoryNode root = roots.get(directory);
+        if (root == null && snapshotDirectories.containsKey(directory)) {
+            root = attachSnapshot(directory);
+        }
+
+        if (root != null) {
+            root.priority = priority;
+
+            // the directory is already known, only check what has changed
+            return submitIndexing(new RevalidationTask(root, directory), root, directory)
+                    .thenAccept(walk -> logger.info("Revalidation of the directory '%s' took %s ms, %s directories have been rescanned",
+                            directory, walk.elapsedMillis(), walk.directories())
+                    );
+        }
+
+        root = DirectoryNode.root(directory);
+        root.priority = priority;
+        roots.put(directory, root);
 
         logger.info("Indexing of the %s directory has been started", directory);
-        final long timestamp = currentTimeMillis();
-        supplyAsync(() -> commonPool().invoke(rootTask))
-                .thenAccept(fileCount -> logger.info("Found %s files in the directory '%s'. Indexing took %s ms",
-                        fileCount, directory, currentTimeMillis() - timestamp)
+        return submitIndexing(new DirectoryTraversalTask(root, directory), root, directory)
+                .thenAccept(walk -> logger.info("Found %s files in the directory '%s'. Indexing took %s ms (%s files/s)",
+                        walk.files(), directory, walk.elapsedMillis(), walk.filesPerSecond())
                 );
     }
 
-    public void clearIndex() {
-        for (WatchKey value : watchableDirectories.values()) {
-            value.cancel();
+    /**
+     * Forgets a sample location and everything found in it, i.e. once it's been removed from the settings.
+     */
+    public void removeDirectory(final Path directory) {
+        afterSnapshotLoaded(() -> {
+            removeLoadedDirectory(directory);
+            return CompletableFuture.completedFuture(null);
+        });
+    }
+
+    private void removeLoadedDirectory(final Path directory) {
+        snapshotDirty.set(true);
+        synchronized (files) {
+            final DirectoryNode root = roots.get(directory);
+            if (root != null) {
+                removeSubtree(root);
+            }
+
+            snapshotDirectories.keySet().removeIf(path -> path.startsWith(directory));
+            snapshotSubdirectories.keySet().removeIf(path -> path.startsWith(directory));
         }
 
-        watchableDirectories.clear();
-        filenameToPath.clear();
+        logger.info("The directory %s has been removed from the index", directory);
+    }
+
+    public void clearIndex() {
+        afterSnapshotLoaded(() -> {
+            clearLoadedIndex();
+            return CompletableFuture.completedFuture(null);
+        });
+    }
+
+    private void clearLoadedIndex() {
+        snapshotDirty.set(true);
+        synchronized (files) {
+            for (WatchKey value : watchedDirectories.keySet()) {
+                value.cancel();
+            }
+
+            watchedDirectories.clear();
+            synchronized (watchActivity) {
+                watchActivity.clear();
+            }
+            pollingScanner.clear();
+            roots.clear();
+            files.clear();
+            snapshotDirectories.clear();
+            snapshotSubdirectories.clear();
+        }
     }
 
+    /**
+     * Generic names like 'kick.wav' exist in lots of packs, in that case the most recently used file wins,
+     * then the one from the sample location with the highest priority, then the newest one.
+     */
     public String getFullPath(final String fileName) {
-        return filenameToPath.get(fileName);
+        final JfrEvents.IndexLookup event = new JfrEvents.IndexLookup();
+        event.begin();
+        final long start = System.nanoTime();
+        final List<Candidate> candidates = new ArrayList<>(1);
+        synchronized (files) {
+            files.forEachWithName(fileName, id -> candidates.add(candidateOf(id, true)));
+        }
+
+        final String fullPath = pick(candidates, fileName);
+        lookupLatency.recordSince(start);
+        commit(event, fileName, false, candidates.size(), fullPath);
+        return fullPath;
+    }
+
+    /**
+     * Same as {@link #getFullPath(String)} but for names without extension, which is what the popup browser reports.
+     * Any audio file extension matches, and so does a name differing in case, though an exact match is preferred.
+     */
+    public String getFullPathIgnoringExtension(final String baseName) {
+        final JfrEvents.IndexLookup event = new JfrEvents.IndexLookup();
+        event.begin();
+        final long start = System.nanoTime();
+        final List<Candidate> candidates = new ArrayList<>(1);
+        synchronized (files) {
+            files.forEachWithBaseName(baseName, id ->
+                    candidates.add(candidateOf(id, Filename.withoutExtension(files.nameOf(id)).equals(baseName))));
+        }
+
+        final String fullPath = pick(candidates, baseName);
+        lookupLatency.recordSince(start);
+        commit(event, baseName, true, candidates.size(), fullPath);
+        return fullPath;
+    }
+
+    private static void commit(final JfrEvents.IndexLookup event, final String name, final boolean ignoringExtension,
+                               final int candidates, final String fullPath) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.name = name;
+            event.ignoringExtension = ignoringExtension;
+            event.candidates = candidates;
+            event.path = fullPath;
+            event.commit();
+        }
+    }
+
+    private String pick(final List<Candidate> candidates, final String name) {
+        if (candidates.isEmpty()) {
+            return null;
+        }
+
+        if (candidates.size() > 1) {
+            // only collisions pay for stat calls
+            final Map<Path, Long> mtimes = new HashMap<>(candidates.size() * 2);
+            candidates.forEach(candidate -> mtimes.put(candidate.path(), lastModified(candidate.path())));
+
+            candidates.sort(Comparator.comparing(Candidate::exact, Comparator.reverseOrder())
+                    .thenComparing(Comparator.comparingLong(Candidate::lastUsed).reversed())
+                    .thenComparingInt(Candidate::priority)
+                    .thenComparing(candidate -> mtimes.get(candidate.path()), Comparator.reverseOrder())
+                    .thenComparing(Candidate::path)
+            );
+            logger.debug("%s files named '%s' have been found, picked %s", candidates.size(), name, candidates.get(0).path());
+        }
+
+        return candidates.get(0).path().toString();
+    }
+
+    // must be called while holding the file table monitor
+    private Candidate candidateOf(final int id, final boolean exact) {
+        final DirectoryNode parent = files.parentOf(id);
+        return new Candidate(parent.path().resolve(files.nameOf(id)), exact, files.lastUsed(id), parent.root().priority);
+    }
+
+    /**
+     * @return full paths of all indexed files which names match the given matcher
+     */
+    public List<Path> findFiles(final PathMatcher nameMatcher) {
+        final List<Path> found = new ArrayList<>();
+        synchronized (files) {
+            files.forEach(id -> {
+                final String filename = files.nameOf(id);
+                if (nameMatcher.matches(Path.of(filename))) {
+                    found.add(files.parentOf(id).path().resolve(filename));
+                }
+            });
+        }
+
+        return found;
+    }
+
+    // makes this file the preferred one among files with the same name
+    public void markUsed(final Path fullPath) {
+        final Path parentPath = fullPath.getParent();
+        final String filename = fullPath.getFileName().toString();
+
+        synchronized (files) {
+            final DirectoryNode directory = findDirectory(parentPath);
+            if (directory == null) {
+                return;
+            }
+
+            final int index = indexOfFile(directory, filename);
+            if (index != -1) {
+                files.markUsed(directory.fileAt(index), currentTimeMillis());
+            }
+        }
     }
 
     public boolean doesContain(final String filename) {
-        return filenameToPath.containsKey(filename);
+        synchronized (files) {
+            return files.find(filename) != -1;
+        }
     }
 
-    private void removeDirectory(final Path directory) {
-        final WatchKey watchKey = watchableDirectories.get(directory);
+    private CompletableFuture<TraversalEngine.Walk> submitIndexing(
+            final TraversalEngine.Step task,
+            final DirectoryNode directory,
+            final Path path
+    ) {
+        final Path root;
+        synchronized (files) {
+            root = directory.root().path();
+        }
+
+        pendingIndexingTasks.incrementAndGet();
+        return traversalEngine.walk(root, path, task).completion()
+                .whenComplete((walk, e) -> {
+                    if (walk != null) {
+                        walkLatency.record(walk.elapsedMillis() * 1000L);
+                    }
+                    snapshotDirty.set(true);
+                    pendingIndexingTasks.decrementAndGet();
+                });
+    }
 
-        if (watchKey == null) {
+    /**
+     * Runs the action right away once the snapshot has been read, until then actions are queued up in order.
+     */
+    private <T> CompletableFuture<T> afterSnapshotLoaded(final Supplier<CompletableFuture<T>> action) {
+        synchronized (snapshotLoadedLock) {
+            final CompletableFuture<CompletableFuture<T>> started = snapshotLoaded.thenApply(loaded -> action.get());
+            // a failed action mustn't hold up the ones after it
+            snapshotLoaded = started.handle((result, e) -> null);
+            return started.thenCompose(Function.identity());
+        }
+    }
+
+    // the methods below must be called while holding the file table monitor
+
+    private DirectoryNode addDirectory(final DirectoryNode parent, final String name) {
+        final DirectoryNode node = new DirectoryNode(name, parent);
+        parent.addChild(node);
+        return node;
+    }
+
+    private DirectoryNode findDirectory(final Path path) {
+        for (Map.Entry<Path, DirectoryNode> root : roots.entrySet()) {
+            if (path.startsWith(root.getKey())) {
+                DirectoryNode node = root.getValue();
+                for (Path name : root.getKey().relativize(path)) {
+                    if (node == null || name.toString().isEmpty()) {
+                        break;
+                    }
+                    node = node.child(name.toString());
+                }
+
+                if (node != null) {
+                    return node;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    private void addFile(final DirectoryNode directory, final String filename) {
+        directory.addFile(files.add(directory, filename));
+    }
+
+    private Set<String> fileNamesOf(final DirectoryNode directory) {
+        final Set<String> names = new HashSet<>(directory.fileCount() * 2);
+        for (int i = 0; i < directory.fileCount(); i++) {
+            names.add(files.nameOf(directory.fileAt(i)));
+        }
+
+        return names;
+    }
+
+    private int indexOfFile(final DirectoryNode directory, final String filename) {
+        final byte[] bytes = filename.getBytes(UTF_8);
+        for (int i = 0; i < directory.fileCount(); i++) {
+            if (files.nameEquals(directory.fileAt(i), bytes)) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    private boolean removeFile(final DirectoryNode directory, final String filename) {
+        final int index = indexOfFile(directory, filename);
+        if (index == -1) {
+            return false;
+        }
+
+        files.remove(directory.fileAt(index));
+        directory.removeFileAt(index);
+        return true;
+    }
+
+    private void removeFileById(final DirectoryNode directory, final int id) {
+        for (int i = 0; i < directory.fileCount(); i++) {
+            if (directory.fileAt(i) == id) {
+                files.remove(id);
+                directory.removeFileAt(i);
+                return;
+            }
+        }
+    }
+
+    // costs O(size of the subtree)
+    private void removeSubtree(final DirectoryNode directory) {
+        detachSubtree(directory);
+        forgetFiles(directory);
+    }
+
+    private void detachSubtree(final DirectoryNode directory) {
+        if (directory.isRoot()) {
+            roots.values().remove(directory);
+        } else {
+            directory.parent.removeChild(directory);
+        }
+
+        directory.forEachInSubtree(this::unwatch);
+    }
+
+    private void forgetFiles(final DirectoryNode directory) {
+        directory.forEachInSubtree(node -> {
+            while (node.fileCount() > 0) {
+                files.remove(node.fileAt(0));
+                node.removeFileAt(0);
+            }
+        });
+    }
+
+    /**
+     * Renaming or moving a directory changes neither its file key nor its modification time. Where there are no file
+     * keys (Windows) the modification time has to do, and a directory of the same name wins a tie.
+     */
+    private static DirectoryNode takeMovedDirectory(
+            final List<DirectoryNode> movedAway,
+            final String filename,
+            final BasicFileAttributes attributes
+    ) {
+        final Object fileKey = attributes.fileKey();
+        final long lastModified = attributes.lastModifiedTime().toMillis();
+
+        DirectoryNode match = null;
+        for (DirectoryNode candidate : movedAway) {
+            if (fileKey != null && candidate.fileKey != null) {
+                if (fileKey.equals(candidate.fileKey)) {
+                    match = candidate;
+                    break;
+                }
+            } else if (candidate.lastModified == lastModified && (match == null || candidate.name().equals(filename))) {
+                match = candidate;
+            }
+        }
+
+        if (match != null) {
+            movedAway.remove(match);
+        }
+        return match;
+    }
+
+    private void directoryIndexed(final DirectoryNode directory, final Path path, final BasicFileAttributes attributes) {
+        directory.lastModified = attributes.lastModifiedTime().toMillis();
+        directory.fileKey = attributes.fileKey();
+        watchDirectoryForChanges(directory, path);
+    }
+
+    // makes the files known to the snapshot available right away, the snapshot records are dropped
+    // as they are turned into nodes
+    private DirectoryNode attachSnapshot(final Path rootPath) {
+        final DirectoryNode root = DirectoryNode.root(rootPath);
+        final Deque<Map.Entry<DirectoryNode, Path>> queue = new ArrayDeque<>(List.of(Map.entry(root, rootPath)));
+        int fileCount = 0;
+
+        synchronized (files) {
+            while (!queue.isEmpty()) {
+                final Map.Entry<DirectoryNode, Path> current = queue.pop();
+                final DirectoryNode node = current.getKey();
+                final IndexSnapshot.StoredDirectory record = snapshotDirectories.remove(current.getValue());
+                if (record == null) {
+                    continue;
+                }
+
+                node.lastModified = record.lastModified();
+                record.forEachFileName((bytes, offset, length) -> node.addFile(files.add(node, bytes, offset, length)));
+                fileCount += record.fileCount();
+
+                for (Path subdirectory : snapshotSubdirectories.getOrDefault(current.getValue(), List.of())) {
+                    queue.push(Map.entry(addDirectory(node, subdirectory.getFileName().toString()), subdirectory));
+                }
+                snapshotSubdirectories.remove(current.getValue());
+            }
+
+            roots.put(rootPath, root);
+        }
+
+        logger.info("Loaded %s files of the directory '%s' from the snapshot, revalidating", fileCount, rootPath);
+        return root;
+    }
+
+    private void loadSnapshot() {
+        if (snapshotFile == null || !Files.exists(snapshotFile)) {
+            return;
+        }
+
+        final long timestamp = currentTimeMillis();
+        final List<IndexSnapshot.StoredDirectory> snapshot;
+        try {
+            snapshot = IndexSnapshot.read(snapshotFile);
+        } catch (IOException | RuntimeException e) {
+            // not a big deal, everything will be indexed from scratch
+            logger.error("Unable to read the index snapshot: %s", e.getMessage());
             return;
         }
 
-        // so yeah, it's a full scan for now..
-        for (Map.Entry<String, String> fileNameAndPath : filenameToPath.entrySet()) {
-            if (Path.of(fileNameAndPath.getValue()).startsWith(directory)) {
-                filenameToPath.remove(fileNameAndPath.getKey());
-                logger.debug("File %s has been deleted from the index", fileNameAndPath.getValue());
+        for (IndexSnapshot.StoredDirectory directory : snapshot) {
+            snapshotDirectories.put(directory.path(), directory);
+            final Path parent = directory.path().getParent();
+            if (parent != null) {
+                snapshotSubdirectories.computeIfAbsent(parent, p -> new ArrayList<>()).add(directory.path());
             }
         }
 
-        watchKey.cancel();
-        watchableDirectories.remove(directory);
-        logger.debug("The directory %s has been deleted from the index", directory);
+        logger.info("Loaded index snapshot of %s directories in %s ms", snapshot.size(), currentTimeMillis() - timestamp);
     }
 
-    private void watchDirectoryForChanges(final Path directory) {
+    private synchronized void saveSnapshotIfDirty() {
+        if (snapshotFile == null || pendingIndexingTasks.get() > 0 || !snapshotDirty.getAndSet(false)) {
+            return;
+        }
+
+        final List<IndexSnapshot.Directory> snapshot = new ArrayList<>();
+        synchronized (files) {
+            final Map<DirectoryNode, Path> paths = new IdentityHashMap<>();
+            for (Map.Entry<Path, DirectoryNode> root : roots.entrySet()) {
+                root.getValue().forEachInSubtree(node -> {
+                    final Path path = node.isRoot() ? root.getKey() : paths.get(node.parent).resolve(node.name());
+                    paths.put(node, path);
+
+                    final List<String> fileNames = new ArrayList<>(node.fileCount());
+                    for (int i = 0; i < node.fileCount(); i++) {
+                        fileNames.add(files.nameOf(node.fileAt(i)));
+                    }
+                    snapshot.add(new IndexSnapshot.Directory(path, node.lastModified, fileNames));
+                });
+            }
+        }
+
         try {
-            final WatchKey watchKey = directory.register(watchService, ENTRY_CREATE, ENTRY_DELETE);
-            watchableDirectories.put(directory, watchKey);
+            IndexSnapshot.write(snapshotFile, snapshot);
+            logger.debug("Index snapshot of %s directories has been saved", snapshot.size());
         } catch (IOException e) {
-            throw new RuntimeException(e);
+            snapshotDirty.set(true);
+            logger.error("Unable to save the index snapshot: %s", e.getMessage());
         }
     }
 
-    private static class DirectoryTraversalTask extends RecursiveTask<Integer> {
-        private final Path dir;
+    private static long lastModified(final Path path) {
+        try {
+            return Files.getLastModifiedTime(path).toMillis();
+        } catch (IOException e) {
+            return -1L;
+        }
+    }
 
-        private final BiConsumer<String, String> fileCallback;
+    private static BasicFileAttributes readAttributes(final Path path) {
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private void watchDirectoryForChanges(final DirectoryNode directory, final Path path) {
+        if (!watching || directory.watchKey != null) {
+            return;
+        }
+
+        if (watchedDirectories.size() >= watchLimit) {
+            pollingScanner.add(directory);
+            return;
+        }
+
+        try {
+            final WatchKey watchKey = path.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+            directory.watchKey = watchKey;
+            watchedDirectories.put(watchKey, directory);
+            synchronized (watchActivity) {
+                watchActivity.put(directory, Boolean.TRUE);
+            }
+            pollingScanner.remove(directory);
+        } catch (IOException e) {
+            if (isWatchLimitReached(e)) {
+                if (watchLimit == Integer.MAX_VALUE) {
+                    watchLimit = watchedDirectories.size();
+                    logger.info("Unable to watch more than %s directories (%s), the rest will be checked periodically. " +
+                            "Consider raising fs.inotify.max_user_watches", watchLimit, e.getMessage());
+                }
+            } else {
+                logger.error("Unable to watch the directory %s: %s", path, e.getMessage());
+            }
+
+            // indexing carries on anyway, the directory will be polled instead
+            pollingScanner.add(directory);
+        }
+    }
+
+    private void unwatch(final DirectoryNode directory) {
+        final WatchKey watchKey = directory.watchKey;
+        if (watchKey != null) {
+            watchKey.cancel();
+            watchedDirectories.remove(watchKey, directory);
+            directory.watchKey = null;
+        }
+
+        synchronized (watchActivity) {
+            watchActivity.remove(directory);
+        }
+        pollingScanner.remove(directory);
+    }
+
+    // a polled directory that has changed is likely to change again soon, so it's given a real watch
+    // at the expense of the least active watched one
+    private CompletableFuture<TraversalEngine.Walk> polledDirectoryChanged(final DirectoryNode directory, final Path path) {
+        if (watchedDirectories.size() >= watchLimit) {
+            final DirectoryNode leastActive;
+            synchronized (watchActivity) {
+                final Iterator<DirectoryNode> iterator = watchActivity.keySet().iterator();
+                leastActive = iterator.hasNext() ? iterator.next() : null;
+            }
+
+            if (leastActive != null) {
+                unwatch(leastActive);
+                pollingScanner.add(leastActive);
+            }
+        }
+
+        return submitIndexing(new RevalidationTask(directory, path, true), directory, path);
+    }
+
+    private Path pathOf(final DirectoryNode directory) {
+        synchronized (files) {
+            return directory.path();
+        }
+    }
+
+    private static boolean isWatchLimitReached(final IOException e) {
+        // that's what the JDK reports on Linux when inotify runs out of watches
+        return e.getMessage() != null && e.getMessage().contains("limit of inotify watches");
+    }
+
+    private record Candidate(Path path, boolean exact, long lastUsed, int priority) {
+    }
+
+    private record ChangedEntry(DirectoryNode parent, Path fullPath) {
+        private String filename() {
+            return fullPath.getFileName().toString();
+        }
+    }
 
-        private final Consumer<Path> directoryCallback;
+    private class DirectoryTraversalTask implements TraversalEngine.Step {
+        private final DirectoryNode dir;
 
-        private DirectoryTraversalTask(
-                Path dir,
-                BiConsumer<String, String> fileCallback,
-                Consumer<Path> directoryCallback
-        ) {
+        private final Path path;
+
+        private DirectoryTraversalTask(DirectoryNode dir, Path path) {
             this.dir = dir;
-            this.fileCallback = fileCallback;
-            this.directoryCallback = directoryCallback;
+            this.path = path;
         }
 
         @Override
-        protected Integer compute() {
-            final List<ForkJoinTask<Integer>> subTasks = new ArrayList<>();
-            final var filesCount = new AtomicInteger();
-
-            try (final var paths = Files.list(dir)) {
-                paths.forEach(path -> {
-                    final File file = path.toFile();
-                    if (file.isDirectory()) {
-                        subTasks.add(new DirectoryTraversalTask(file.toPath(), fileCallback, directoryCallback).fork());
-                    } else if (file.isFile() && isAudioFile(path.toString())) {
-                        fileCallback.accept(file.getName(), path.toString());
-                        filesCount.incrementAndGet();
-                    }
-                });
-            } catch (IOException e) {
-                throw new RuntimeException(e);
+        public void run(final TraversalEngine.Walk walk) throws IOException {
+            final List<String> subdirectories = new ArrayList<>();
+            final List<String> fileNames = new ArrayList<>();
+            final BasicFileAttributes attributes = TraversalEngine.list(path, subdirectories, fileNames);
+            fileNames.removeIf(filename -> !isAudioFile(filename));
+
+            // one lock acquisition per directory
+            final List<DirectoryNode> children = new ArrayList<>(subdirectories.size());
+            synchronized (files) {
+                fileNames.forEach(filename -> addFile(dir, filename));
+                subdirectories.forEach(name -> children.add(addDirectory(dir, name)));
+            }
+
+            for (DirectoryNode child : children) {
+                final Path childPath = path.resolve(child.name());
+                walk.submit(childPath, new DirectoryTraversalTask(child, childPath));
             }
 
-            directoryCallback.accept(dir);
+            walk.directoryListed(fileNames.size());
+            directoryIndexed(dir, path, attributes);
+        }
+    }
+
+    // checks whether a directory loaded from the snapshot or reattached after a move still matches
+    // the file system, only directories which modification time has changed are listed again
+    private class RevalidationTask implements TraversalEngine.Step {
+        private final DirectoryNode dir;
+
+        private final Path path;
+
+        // don't descend into known subdirectories, they are watched on their own
+        private final boolean singleDirectory;
+
+        private RevalidationTask(DirectoryNode dir, Path path) {
+            this(dir, path, false);
+        }
+
+        private RevalidationTask(DirectoryNode dir, Path path, boolean singleDirectory) {
+            this.dir = dir;
+            this.path = path;
+            this.singleDirectory = singleDirectory;
+        }
+
+        @Override
+        public void run(final TraversalEngine.Walk walk) throws IOException {
+            BasicFileAttributes attributes = readAttributes(path);
+
+            if (attributes == null) {
+                // the directory has gone
+                synchronized (files) {
+                    removeSubtree(dir);
+                }
+                logger.debug("The directory %s has been deleted from the index", path);
+                return;
+            }
+
+            final Map<Path, TraversalEngine.Step> subTasks = new LinkedHashMap<>();
+
+            if (attributes.lastModifiedTime().toMillis() == dir.lastModified) {
+                // nothing has been added or removed right in this directory
+                synchronized (files) {
+                    for (DirectoryNode child : singleDirectory ? List.<DirectoryNode>of() : dir.children()) {
+                        final Path childPath = path.resolve(child.name());
+                        subTasks.put(childPath, new RevalidationTask(child, childPath));
+                    }
+                }
+            } else {
+                final List<String> listedDirectories = new ArrayList<>();
+                final List<String> listedFiles = new ArrayList<>();
+                attributes = TraversalEngine.list(path, listedDirectories, listedFiles);
+                listedFiles.removeIf(filename -> !isAudioFile(filename));
+                walk.directoryListed(listedFiles.size());
+
+                synchronized (files) {
+                    final Map<String, Integer> goneFiles = new HashMap<>(dir.fileCount() * 2);
+                    for (int i = 0; i < dir.fileCount(); i++) {
+                        goneFiles.put(files.nameOf(dir.fileAt(i)), dir.fileAt(i));
+                    }
+
+                    final Map<String, DirectoryNode> goneChildren = new HashMap<>();
+                    dir.children().forEach(child -> goneChildren.put(child.name(), child));
+
+                    for (String filename : listedFiles) {
+                        if (goneFiles.remove(filename) == null) {
+                            addFile(dir, filename);
+                        }
+                    }
+
+                    for (String name : listedDirectories) {
+                        final Path subdirectory = path.resolve(name);
+                        final DirectoryNode child = goneChildren.remove(name);
+                        if (child == null) {
+                            subTasks.put(subdirectory, new DirectoryTraversalTask(addDirectory(dir, name), subdirectory));
+                        } else if (!singleDirectory) {
+                            subTasks.put(subdirectory, new RevalidationTask(child, subdirectory));
+                        }
+                    }
+
+                    goneFiles.values().forEach(id -> removeFileById(dir, id));
+                    goneChildren.values().forEach(FileNameIndexer.this::removeSubtree);
+                }
+            }
+            subTasks.forEach(walk::submit);
 
-            return filesCount.get() + subTasks.stream().mapToInt(ForkJoinTask::join).sum();
+            directoryIndexed(dir, path, attributes);
         }
     }
 
@@ -0,0 +1,310 @@
+package com.vokinpirks;
+
+import com.vokinpirks.util.Filename;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.IntConsumer;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Memory-compact storage of indexed files. A file is just an id, its attributes live in parallel
+ * primitive arrays and its name is kept as UTF-8 bytes in a shared arena, the directory it belongs to
+ * is referenced by its node so full paths are only rebuilt on lookup. That's roughly 30 bytes per file
+ * plus the name itself, versus a few hundred for a map of full path strings.
+ * <p>
+ * Files are chained by name hash so all files with the same name can be found with a single lookup,
+ * and once more by the hash of the normalized name without extension, which is all the popup browser reports.
+ * <p>
+ * Not thread safe, callers synchronize on the instance.
+ */
+final class FileTable {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private static final int NONE = -1;
+
+    // per file
+    private DirectoryNode[] parents = new DirectoryNode[INITIAL_CAPACITY];
+    private int[] nameOffsets = new int[INITIAL_CAPACITY];
+    private short[] nameLengths = new short[INITIAL_CAPACITY];
+    private int[] nextByName = new int[INITIAL_CAPACITY];
+    private int[] baseNameHashes = new int[INITIAL_CAPACITY];
+    private int[] nextByBaseName = new int[INITIAL_CAPACITY];
+
+    // heads of the hash chains, the length is always a power of two
+    private int[] buckets = newBuckets(INITIAL_CAPACITY * 2);
+    private int[] baseNameBuckets = newBuckets(INITIAL_CAPACITY * 2);
+
+    // only a handful of files are ever used, no point in paying for a field per file
+    private final Map<Integer, Long> lastUsed = new HashMap<>();
+
+    private byte[] names = new byte[INITIAL_CAPACITY * 16];
+    private int namesLength;
+    private int garbageLength;
+
+    // ids above this one have never been used
+    private int highWatermark;
+    private int freeListHead = NONE;
+    private int size;
+
+    int size() {
+        return size;
+    }
+
+    long estimatedBytes() {
+        return (long) parents.length * (4 + 4 + 2 + 4 + 4 + 4) + buckets.length * 8L + names.length;
+    }
+
+    int add(final DirectoryNode parent, final String name) {
+        final byte[] bytes = name.getBytes(UTF_8);
+        return add(parent, bytes, 0, bytes.length, name);
+    }
+
+    /**
+     * Same as {@link #add(DirectoryNode, String)} for a name that is UTF-8 encoded already, i.e. read from the snapshot.
+     */
+    int add(final DirectoryNode parent, final byte[] name, final int offset, final int length) {
+        return add(parent, name, offset, length, new String(name, offset, length, UTF_8));
+    }
+
+    private int add(final DirectoryNode parent, final byte[] bytes, final int offset, final int length, final String name) {
+        final int id = allocateId();
+
+        parents[id] = parent;
+        nameOffsets[id] = appendName(bytes, offset, length);
+        nameLengths[id] = (short) length;
+
+        final int bucket = bucketOf(hash(bytes, offset, length));
+        nextByName[id] = buckets[bucket];
+        buckets[bucket] = id;
+
+        baseNameHashes[id] = baseNameHash(Filename.normalizedBaseName(name));
+        linkBaseName(id);
+
+        size++;
+        return id;
+    }
+
+    void remove(final int id) {
+        final int bucket = bucketOf(hashOf(id));
+        if (buckets[bucket] == id) {
+            buckets[bucket] = nextByName[id];
+        } else {
+            int current = buckets[bucket];
+            while (nextByName[current] != id) {
+                current = nextByName[current];
+            }
+            nextByName[current] = nextByName[id];
+        }
+
+        final int baseNameBucket = bucketOf(baseNameHashes[id]);
+        if (baseNameBuckets[baseNameBucket] == id) {
+            baseNameBuckets[baseNameBucket] = nextByBaseName[id];
+        } else {
+            int current = baseNameBuckets[baseNameBucket];
+            while (nextByBaseName[current] != id) {
+                current = nextByBaseName[current];
+            }
+            nextByBaseName[current] = nextByBaseName[id];
+        }
+
+        garbageLength += Short.toUnsignedInt(nameLengths[id]);
+        parents[id] = null;
+        lastUsed.remove(id);
+        nextByName[id] = freeListHead;
+        freeListHead = id;
+        size--;
+
+        if (garbageLength > names.length / 2 && garbageLength > (1 << 20)) {
+            compactNames();
+        }
+    }
+
+    /**
+     * @return the id of any file with this name, or -1
+     */
+    int find(final String name) {
+        final byte[] bytes = name.getBytes(UTF_8);
+        for (int id = buckets[bucketOf(hash(bytes, 0, bytes.length))]; id != NONE; id = nextByName[id]) {
+            if (nameEquals(id, bytes)) {
+                return id;
+            }
+        }
+
+        return NONE;
+    }
+
+    void forEachWithName(final String name, final IntConsumer action) {
+        final byte[] bytes = name.getBytes(UTF_8);
+        for (int id = buckets[bucketOf(hash(bytes, 0, bytes.length))]; id != NONE; id = nextByName[id]) {
+            if (nameEquals(id, bytes)) {
+                action.accept(id);
+            }
+        }
+    }
+
+    /**
+     * @param baseName a name without extension, compared regardless of case and Unicode normalization form
+     */
+    void forEachWithBaseName(final String baseName, final IntConsumer action) {
+        final String normalized = Filename.normalized(baseName);
+        final int hash = baseNameHash(normalized);
+        for (int id = baseNameBuckets[bucketOf(hash)]; id != NONE; id = nextByBaseName[id]) {
+            if (baseNameHashes[id] == hash && Filename.normalizedBaseName(nameOf(id)).equals(normalized)) {
+                action.accept(id);
+            }
+        }
+    }
+
+    void forEach(final IntConsumer action) {
+        for (int id = 0; id < highWatermark; id++) {
+            if (parents[id] != null) {
+                action.accept(id);
+            }
+        }
+    }
+
+    void markUsed(final int id, final long timestamp) {
+        lastUsed.put(id, timestamp);
+    }
+
+    /**
+     * @return zero if the file has never been used
+     */
+    long lastUsed(final int id) {
+        return lastUsed.getOrDefault(id, 0L);
+    }
+
+    DirectoryNode parentOf(final int id) {
+        return parents[id];
+    }
+
+    String nameOf(final int id) {
+        return new String(names, nameOffsets[id], Short.toUnsignedInt(nameLengths[id]), UTF_8);
+    }
+
+    boolean nameEquals(final int id, final byte[] name) {
+        final int offset = nameOffsets[id];
+        return Arrays.equals(names, offset, offset + Short.toUnsignedInt(nameLengths[id]), name, 0, name.length);
+    }
+
+    void clear() {
+        parents = new DirectoryNode[INITIAL_CAPACITY];
+        nameOffsets = new int[INITIAL_CAPACITY];
+        nameLengths = new short[INITIAL_CAPACITY];
+        nextByName = new int[INITIAL_CAPACITY];
+        baseNameHashes = new int[INITIAL_CAPACITY];
+        nextByBaseName = new int[INITIAL_CAPACITY];
+        buckets = newBuckets(INITIAL_CAPACITY * 2);
+        baseNameBuckets = newBuckets(INITIAL_CAPACITY * 2);
+        lastUsed.clear();
+        names = new byte[INITIAL_CAPACITY * 16];
+        namesLength = 0;
+        garbageLength = 0;
+        highWatermark = 0;
+        freeListHead = NONE;
+        size = 0;
+    }
+
+    private int allocateId() {
+        if (freeListHead != NONE) {
+            final int id = freeListHead;
+            freeListHead = nextByName[id];
+            return id;
+        }
+
+        if (highWatermark == parents.length) {
+            grow();
+        }
+
+        return highWatermark++;
+    }
+
+    private void grow() {
+        final int capacity = parents.length * 2;
+        parents = Arrays.copyOf(parents, capacity);
+        nameOffsets = Arrays.copyOf(nameOffsets, capacity);
+        nameLengths = Arrays.copyOf(nameLengths, capacity);
+        nextByName = Arrays.copyOf(nextByName, capacity);
+        baseNameHashes = Arrays.copyOf(baseNameHashes, capacity);
+        nextByBaseName = Arrays.copyOf(nextByBaseName, capacity);
+        rehash(capacity * 2);
+    }
+
+    private void rehash(final int bucketCount) {
+        // only called when the free list is empty, so every id below the watermark is in use
+        buckets = newBuckets(bucketCount);
+        baseNameBuckets = newBuckets(bucketCount);
+        for (int id = 0; id < highWatermark; id++) {
+            final int bucket = bucketOf(hashOf(id));
+            nextByName[id] = buckets[bucket];
+            buckets[bucket] = id;
+            linkBaseName(id);
+        }
+    }
+
+    private void linkBaseName(final int id) {
+        final int bucket = bucketOf(baseNameHashes[id]);
+        nextByBaseName[id] = baseNameBuckets[bucket];
+        baseNameBuckets[bucket] = id;
+    }
+
+    private int appendName(final byte[] bytes, final int from, final int length) {
+        if (namesLength + length > names.length) {
+            names = Arrays.copyOf(names, Math.max(names.length * 2, namesLength + length));
+        }
+
+        final int offset = namesLength;
+        System.arraycopy(bytes, from, names, offset, length);
+        namesLength += length;
+        return offset;
+    }
+
+    private void compactNames() {
+        final byte[] compacted = new byte[Math.max(INITIAL_CAPACITY * 16, (namesLength - garbageLength) * 2)];
+        int length = 0;
+        for (int id = 0; id < highWatermark; id++) {
+            if (parents[id] != null) {
+                final int nameLength = Short.toUnsignedInt(nameLengths[id]);
+                System.arraycopy(names, nameOffsets[id], compacted, length, nameLength);
+                nameOffsets[id] = length;
+                length += nameLength;
+            }
+        }
+
+        names = compacted;
+        namesLength = length;
+        garbageLength = 0;
+    }
+
+    private int hashOf(final int id) {
+        return hash(names, nameOffsets[id], Short.toUnsignedInt(nameLengths[id]));
+    }
+
+    private int bucketOf(final int hash) {
+        return hash & (buckets.length - 1);
+    }
+
+    private static int hash(final byte[] bytes, final int offset, final int length) {
+        int hash = 1;
+        for (int i = offset; i < offset + length; i++) {
+            hash = 31 * hash + bytes[i];
+        }
+
+        return hash ^ (hash >>> 16);
+    }
+
+    private static int baseNameHash(final String normalizedBaseName) {
+        final int hash = normalizedBaseName.hashCode();
+        return hash ^ (hash >>> 16);
+    }
+
+    private static int[] newBuckets(final int count) {
+        final int[] buckets = new int[count];
+        Arrays.fill(buckets, NONE);
+        return buckets;
+    }
+}
@@ -0,0 +1,124 @@
+package com.vokinpirks;
+
+import lombok.experimental.UtilityClass;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * Binary snapshot of the sample index.
+ * <pre>
+ * int magic, int version, int directory count
+ * per directory: string path, long last modified time, int file count, string file names...
+ * </pre>
+ * Strings are stored as an unsigned short length followed by UTF-8 bytes.
+ * <p>
+ * File names are read straight from the bytes of the snapshot into the file table once their directory is attached,
+ * they are never turned into strings in between. The file is read rather than mapped, a mapped file can't be
+ * replaced on Windows, and the snapshot is rewritten while the mapping would still be in use.
+ */
+@UtilityClass
+public class IndexSnapshot {
+
+    private static final int MAGIC = 0x42544958; // BTIX
+
+    private static final int VERSION = 1;
+
+    public record Directory(Path path, long lastModified, List<String> fileNames) {
+    }
+
+    /**
+     * A directory as read from the snapshot, its file names are left in the bytes of the file.
+     */
+    public record StoredDirectory(Path path, long lastModified, int fileCount, byte[] data, int fileNamesOffset) {
+
+        public void forEachFileName(final NameConsumer action) {
+            int position = fileNamesOffset;
+            for (int i = 0; i < fileCount; i++) {
+                final int length = Byte.toUnsignedInt(data[position]) << 8 | Byte.toUnsignedInt(data[position + 1]);
+                action.accept(data, position + 2, length);
+                position += 2 + length;
+            }
+        }
+    }
+
+    @FunctionalInterface
+    public interface NameConsumer {
+        // a UTF-8 encoded name
+        void accept(byte[] bytes, int offset, int length);
+    }
+
+    public static List<StoredDirectory> read(final Path file) throws IOException {
+        final byte[] data = Files.readAllBytes(file);
+        final ByteBuffer buffer = ByteBuffer.wrap(data);
+
+        if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+            throw new IOException("Unsupported index snapshot format");
+        }
+
+        final int directoryCount = buffer.getInt();
+        final List<StoredDirectory> directories = new ArrayList<>(directoryCount);
+
+        for (int i = 0; i < directoryCount; i++) {
+            final Path path = Path.of(readString(buffer));
+            final long lastModified = buffer.getLong();
+            final int fileCount = buffer.getInt();
+
+            final int fileNamesOffset = buffer.position();
+            for (int j = 0; j < fileCount; j++) {
+                final int length = Short.toUnsignedInt(buffer.getShort());
+                buffer.position(buffer.position() + length);
+            }
+
+            directories.add(new StoredDirectory(path, lastModified, fileCount, data, fileNamesOffset));
+        }
+
+        return directories;
+    }
+
+    public static void write(final Path file, final Collection<Directory> directories) throws IOException {
+        Files.createDirectories(file.getParent());
+        final Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+
+        try (final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(directories.size());
+
+            for (Directory directory : directories) {
+                writeString(out, directory.path().toString());
+                out.writeLong(directory.lastModified());
+                out.writeInt(directory.fileNames().size());
+                for (String fileName : directory.fileNames()) {
+                    writeString(out, fileName);
+                }
+            }
+        }
+
+        Files.move(temp, file, REPLACE_EXISTING, ATOMIC_MOVE);
+    }
+
+    private static String readString(final ByteBuffer buffer) {
+        final int length = Short.toUnsignedInt(buffer.getShort());
+        final String s = new String(buffer.array(), buffer.position(), length, UTF_8);
+        buffer.position(buffer.position() + length);
+        return s;
+    }
+
+    private static void writeString(final DataOutputStream out, final String s) throws IOException {
+        final byte[] bytes = s.getBytes(UTF_8);
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+}
@@ -0,0 +1,157 @@
+package com.vokinpirks;
+
+/**
+ * Flight Recorder events of the indexer and of conversions, i.e. for {@code jcmd <pid> JFR.start} while Bitwig is
+ * running. Nothing is recorded unless a recording is, so call sites create them unconditionally and fill them in only
+ * if {@code shouldCommit()}.
+ * <p>
+ * The events themselves live in {@link JfrRecorder}, loaded by name so that nothing links against jdk.jfr, which a
+ * trimmed down runtime may lack. Without it these are no-ops.
+ */
+final class JfrEvents {
+
+    private static final Recorder RECORDER = select();
+
+    private static final Recording NONE = new Recording() {
+        @Override
+        public void begin() {
+        }
+
+        @Override
+        public void end() {
+        }
+
+        @Override
+        public boolean shouldCommit() {
+            return false;
+        }
+
+        @Override
+        public void commit() {
+        }
+    };
+
+    private JfrEvents() {
+    }
+
+    /**
+     * The part of {@code jdk.jfr.Event} the call sites use.
+     */
+    interface Recording {
+        void begin();
+
+        void end();
+
+        boolean shouldCommit();
+
+        // copies the fields of the event over
+        void commit();
+    }
+
+    interface Recorder {
+        Recording directoryStep(DirectoryStep fields);
+
+        Recording watchBatch(WatchBatch fields);
+
+        Recording indexLookup(IndexLookup fields);
+
+        Recording processRun(ProcessRun fields);
+    }
+
+    abstract static class Timed {
+        private Recording recording = NONE;
+
+        abstract Recording recordingOf(Recorder recorder);
+
+        void begin() {
+            if (RECORDER != null) {
+                recording = recordingOf(RECORDER);
+            }
+            recording.begin();
+        }
+
+        void end() {
+            recording.end();
+        }
+
+        boolean shouldCommit() {
+            return recording.shouldCommit();
+        }
+
+        void commit() {
+            recording.commit();
+        }
+    }
+
+    static final class DirectoryStep extends Timed {
+        String location;
+
+        String directory;
+
+        String step;
+
+        boolean failed;
+
+        @Override
+        Recording recordingOf(final Recorder recorder) {
+            return recorder.directoryStep(this);
+        }
+    }
+
+    static final class WatchBatch extends Timed {
+        int created;
+
+        int deleted;
+
+        int overflowed;
+
+        @Override
+        Recording recordingOf(final Recorder recorder) {
+            return recorder.watchBatch(this);
+        }
+    }
+
+    static final class IndexLookup extends Timed {
+        String name;
+
+        boolean ignoringExtension;
+
+        int candidates;
+
+        String path;
+
+        @Override
+        Recording recordingOf(final Recorder recorder) {
+            return recorder.indexLookup(this);
+        }
+    }
+
+    static final class ProcessRun extends Timed {
+        String command;
+
+        boolean worker;
+
+        int exitCode;
+
+        String result;
+
+        @Override
+        Recording recordingOf(final Recorder recorder) {
+            return recorder.processRun(this);
+        }
+    }
+
+    private static Recorder select() {
+        if (ModuleLayer.boot().findModule("jdk.jfr").isEmpty()) {
+            return null;
+        }
+
+        try {
+            return (Recorder) Class.forName("com.vokinpirks.JfrRecorder")
+                    .getDeclaredConstructor()
+                    .newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package com.vokinpirks;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * The Flight Recorder side of {@link JfrEvents}, the only class that links against jdk.jfr.
+ */
+final class JfrRecorder implements JfrEvents.Recorder {
+
+    private static final String CATEGORY = "BitTable";
+
+    @Override
+    public JfrEvents.Recording directoryStep(final JfrEvents.DirectoryStep fields) {
+        final DirectoryStep event = new DirectoryStep();
+        return new Adapter(event, () -> {
+            event.location = fields.location;
+            event.directory = fields.directory;
+            event.step = fields.step;
+            event.failed = fields.failed;
+        });
+    }
+
+    @Override
+    public JfrEvents.Recording watchBatch(final JfrEvents.WatchBatch fields) {
+        final WatchBatch event = new WatchBatch();
+        return new Adapter(event, () -> {
+            event.created = fields.created;
+            event.deleted = fields.deleted;
+            event.overflowed = fields.overflowed;
+        });
+    }
+
+    @Override
+    public JfrEvents.Recording indexLookup(final JfrEvents.IndexLookup fields) {
+        final IndexLookup event = new IndexLookup();
+        return new Adapter(event, () -> {
+            event.name = fields.name;
+            event.ignoringExtension = fields.ignoringExtension;
+            event.candidates = fields.candidates;
+            event.path = fields.path;
+        });
+    }
+
+    @Override
+    public JfrEvents.Recording processRun(final JfrEvents.ProcessRun fields) {
+        final ProcessRun event = new ProcessRun();
+        return new Adapter(event, () -> {
+            event.command = fields.command;
+            event.worker = fields.worker;
+            event.exitCode = fields.exitCode;
+            event.result = fields.result;
+        });
+    }
+
+    private record Adapter(Event event, Runnable copyFields) implements JfrEvents.Recording {
+        @Override
+        public void begin() {
+            event.begin();
+        }
+
+        @Override
+        public void end() {
+            event.end();
+        }
+
+        @Override
+        public boolean shouldCommit() {
+            return event.shouldCommit();
+        }
+
+        @Override
+        public void commit() {
+            copyFields.run();
+            event.commit();
+        }
+    }
+
+    @Name("com.vokinpirks.bittable.DirectoryStep")
+    @Label("Directory Indexing")
+    @Description("Listing or revalidation of a single directory of a sample location")
+    @Category({CATEGORY, "Indexing"})
+    @StackTrace(false)
+    static final class DirectoryStep extends Event {
+        @Label("Sample Location")
+        String location;
+
+        @Label("Directory")
+        String directory;
+
+        @Label("Step")
+        String step;
+
+        @Label("Failed")
+        boolean failed;
+    }
+
+    @Name("com.vokinpirks.bittable.WatchBatch")
+    @Label("Watch Batch")
+    @Description("File system events applied to the index at once")
+    @Category({CATEGORY, "Indexing"})
+    @StackTrace(false)
+    static final class WatchBatch extends Event {
+        @Label("Created Entries")
+        int created;
+
+        @Label("Deleted Entries")
+        int deleted;
+
+        @Label("Overflowed Directories")
+        int overflowed;
+    }
+
+    @Name("com.vokinpirks.bittable.IndexLookup")
+    @Label("Index Lookup")
+    @Description("Lookup of the full path of a sample by its name")
+    @Category({CATEGORY, "Indexing"})
+    @StackTrace(false)
+    static final class IndexLookup extends Event {
+        @Label("Name")
+        String name;
+
+        @Label("Ignoring Extension")
+        boolean ignoringExtension;
+
+        @Label("Candidates")
+        int candidates;
+
+        @Label("Path")
+        String path;
+    }
+
+    @Name("com.vokinpirks.bittable.ProcessRun")
+    @Label("Process Run")
+    @Description("Run of okwt or ffmpeg, either a new process or a job of an okwt worker")
+    @Category({CATEGORY, "Conversion"})
+    @StackTrace(false)
+    static final class ProcessRun extends Event {
+        @Label("Command")
+        String command;
+
+        @Label("Worker")
+        @Description("Run by a warm okwt worker rather than a new process")
+        boolean worker;
+
+        @Label("Exit Code")
+        @Description("-1 if the process has been killed or hasn't started")
+        int exitCode;
+
+        @Label("Result")
+        String result;
+    }
+}
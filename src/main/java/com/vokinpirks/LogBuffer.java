@@ -0,0 +1,110 @@
+package com.vokinpirks;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded lock-free queue of log messages, many threads write, a single one reads.
+ * <p>
+ * The slots are preallocated and reused, so queueing a message allocates nothing. Each slot has a sequence number
+ * that tells whether it's free for the writer of a given position or ready for the reader (D. Vyukov's bounded queue).
+ */
+class LogBuffer {
+
+    interface Reader {
+        void read(boolean error, String message, Object[] args);
+    }
+
+    private final int mask;
+
+    private final AtomicLongArray sequences;
+
+    private final boolean[] errors;
+
+    private final String[] messages;
+
+    private final Object[][] args;
+
+    private final AtomicLong tail = new AtomicLong();
+
+    // only touched by the reader
+    private long head;
+
+    /**
+     * @param capacity a power of two
+     */
+    LogBuffer(final int capacity) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        }
+
+        this.mask = capacity - 1;
+        this.sequences = new AtomicLongArray(capacity);
+        this.errors = new boolean[capacity];
+        this.messages = new String[capacity];
+        this.args = new Object[capacity][];
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * @return false if the buffer is full
+     */
+    boolean offer(final boolean error, final String message, final Object[] args) {
+        long position = tail.get();
+        while (true) {
+            final int index = (int) position & mask;
+            final long difference = sequences.get(index) - position;
+
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    errors[index] = error;
+                    messages[index] = message;
+                    this.args[index] = args;
+                    // publishes the fields written above to the reader
+                    sequences.lazySet(index, position + 1);
+                    return true;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                // the reader hasn't freed the slot yet
+                return false;
+            } else {
+                // another writer has taken the position
+                position = tail.get();
+            }
+        }
+    }
+
+    /**
+     * @return how many messages have been read, at most max
+     */
+    int drain(final Reader reader, final int max) {
+        int count = 0;
+        while (count < max) {
+            final int index = (int) head & mask;
+            if (sequences.get(index) != head + 1) {
+                break;
+            }
+
+            final String message = messages[index];
+            final Object[] messageArgs = args[index];
+            final boolean error = errors[index];
+            // no references are kept to what has been logged
+            messages[index] = null;
+            args[index] = null;
+            sequences.lazySet(index, head + mask + 1);
+            head++;
+
+            reader.read(error, message, messageArgs);
+            count++;
+        }
+
+        return count;
+    }
+
+    boolean isEmpty() {
+        return sequences.get((int) head & mask) != head + 1;
+    }
+}
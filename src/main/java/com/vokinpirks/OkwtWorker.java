@@ -0,0 +1,189 @@
+package com.vokinpirks;
+
+import lombok.Getter;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * A long-lived okwt_worker.py process, see the script for the protocol. Used by one thread at a time.
+ */
+class OkwtWorker implements Closeable {
+
+    private static final String SEPARATOR = "\0";
+
+    // okwt's output is all a response carries, anything bigger means the stream is out of sync
+    private static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+    private final Process process;
+
+    private final DataOutputStream requests;
+
+    private final DataInputStream responses;
+
+    private final ScheduledExecutorService watchdog;
+
+    // the configuration of the pool the worker has been started for
+    @Getter
+    private final String key;
+
+    @Getter
+    private volatile long lastUsed = System.currentTimeMillis();
+
+    record Result(int exitCode, String output) {
+    }
+
+    private OkwtWorker(final Process process, final ScheduledExecutorService watchdog, final String key) {
+        this.process = process;
+        this.requests = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+        this.responses = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+        this.watchdog = watchdog;
+        this.key = key;
+    }
+
+    /**
+     * Starts the process and waits until okwt has been imported.
+     */
+    static OkwtWorker start(final List<String> command, final String key, final long timeoutMillis,
+                            final ScheduledExecutorService watchdog, final ConsoleLogger logger) throws IOException {
+        final Process process = new ProcessBuilder(command).start();
+        drainErrors(process, logger);
+
+        final OkwtWorker worker = new OkwtWorker(process, watchdog, key);
+        try {
+            worker.expect("ready", worker.exchange(timeoutMillis));
+        } catch (IOException e) {
+            worker.close();
+            throw e;
+        }
+
+        logger.debug("okwt worker %s has started", process.pid());
+        return worker;
+    }
+
+    /**
+     * @param pathPrefix prepended to PATH for the duration of the job, i.e. for ffmpeg
+     * @param args okwt's arguments without the executable
+     */
+    Result run(final String pathPrefix, final List<String> args) throws IOException {
+        final List<String> fields = new ArrayList<>(args.size() + 2);
+        fields.add("run");
+        fields.add(pathPrefix);
+        fields.addAll(args);
+
+        // as long as it takes, the caller has the worker killed if it gets stuck
+        final String[] response = exchange(0L, fields.toArray(String[]::new));
+        expect("exit", response);
+        if (response.length < 3) {
+            throw new IOException("Malformed response of okwt worker " + process.pid());
+        }
+
+        lastUsed = System.currentTimeMillis();
+        try {
+            return new Result(Integer.parseInt(response[1]), response[2]);
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed exit code of okwt worker " + process.pid() + ": " + response[1]);
+        }
+    }
+
+    void ping(final long timeoutMillis) throws IOException {
+        expect("pong", exchange(timeoutMillis, "ping"));
+    }
+
+    boolean isAlive() {
+        return process.isAlive();
+    }
+
+    long pid() {
+        return process.pid();
+    }
+
+    ProcessHandle handle() {
+        return process.toHandle();
+    }
+
+    // asks the worker to leave, and makes sure it does
+    @Override
+    public void close() {
+        try {
+            writeFrame("quit");
+        } catch (IOException e) {
+            // it's gone already
+        }
+
+        // in case it's stuck in a conversion and doesn't read requests
+        process.destroy();
+    }
+
+    /**
+     * @param timeoutMillis zero to wait for as long as it takes
+     */
+    private String[] exchange(final long timeoutMillis, final String... request) throws IOException {
+        // a blocked read only ends when the process does
+        final ScheduledFuture<?> kill = timeoutMillis > 0
+                ? watchdog.schedule(process::destroyForcibly, timeoutMillis, MILLISECONDS)
+                : null;
+        try {
+            if (request.length > 0) {
+                writeFrame(request);
+            }
+            return readFrame();
+        } catch (IOException e) {
+            if (kill != null && kill.isDone()) {
+                throw new IOException(String.format("okwt worker %s hasn't responded within %s ms", process.pid(), timeoutMillis));
+            }
+            throw e;
+        } finally {
+            if (kill != null) {
+                kill.cancel(false);
+            }
+        }
+    }
+
+    private void writeFrame(final String... fields) throws IOException {
+        final byte[] payload = String.join(SEPARATOR, fields).getBytes(StandardCharsets.UTF_8);
+        requests.writeInt(payload.length);
+        requests.write(payload);
+        requests.flush();
+    }
+
+    private String[] readFrame() throws IOException {
+        final int length = responses.readInt();
+        if (length < 0 || length > MAX_FRAME_SIZE) {
+            throw new IOException(String.format("Invalid frame of %s bytes from okwt worker %s", length, process.pid()));
+        }
+
+        final byte[] payload = new byte[length];
+        responses.readFully(payload);
+        return new String(payload, StandardCharsets.UTF_8).split(SEPARATOR, -1);
+    }
+
+    private void expect(final String type, final String[] response) throws IOException {
+        if (!type.equals(response[0])) {
+            throw new IOException(String.format("okwt worker %s has responded with %s rather than %s: %s",
+                    process.pid(), response[0], type, String.join(" ", response)));
+        }
+    }
+
+    // okwt's own output is sent back with the responses, only the worker's failures end up here
+    private static void drainErrors(final Process process, final ConsoleLogger logger) {
+        final Thread thread = new Thread(() -> {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getErrorStream()))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    logger.debug("okwt worker %s: %s", process.pid(), line);
+                }
+            } catch (IOException e) {
+                // the process is gone
+            }
+        }, "bittable-okwt-worker-" + process.pid());
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
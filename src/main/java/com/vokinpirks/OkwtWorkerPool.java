@@ -0,0 +1,405 @@
+package com.vokinpirks;
+
+import com.vokinpirks.enums.CallResult;
+import com.vokinpirks.metrics.Counter;
+import com.vokinpirks.metrics.Histogram;
+import com.vokinpirks.metrics.Metrics;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Runs okwt in warm worker processes (okwt_worker.py) instead of starting it anew for every conversion, which saves
+ * the start-up of Python and the import of NumPy each time.
+ * <p>
+ * Workers are started on demand up to the configured size, checked with a ping while idle, replaced when they crash
+ * and stopped after they have been idle for a while. {@code -Dbittable.okwt.worker=fake} runs the script without
+ * okwt, see the script for details.
+ */
+public class OkwtWorkerPool {
+
+    private static final String SCRIPT_NAME = "okwt_worker.py";
+
+    // importing NumPy from a cold disk may take a while
+    private static final long START_TIMEOUT_MILLIS = 30_000L;
+
+    private static final long PING_TIMEOUT_MILLIS = 5_000L;
+
+    private static final long HEALTH_CHECK_PERIOD_MILLIS = 30_000L;
+
+    private static final long IDLE_TIMEOUT_MILLIS = 5 * 60_000L;
+
+    private final ConsoleLogger logger;
+
+    private final ProcessSupervisor supervisor;
+
+    private final Path scriptDirectory;
+
+    private final Histogram startLatency;
+
+    // jobs that have found a worker, and those that had to start okwt directly
+    private final Counter borrowed;
+
+    private final Counter unavailable;
+
+    private final ScheduledExecutorService scheduler;
+
+    // only ever kills unresponsive workers, so it's never blocked by one itself
+    private final ScheduledExecutorService watchdog;
+
+    private final Deque<OkwtWorker> idle = new ArrayDeque<>();
+
+    // okwt executable -> the command starting a worker for it, empty if it can't be worked out
+    private final Map<String, Optional<List<String>>> workerCommands = new HashMap<>();
+
+    // executables whose workers have failed to start, they aren't tried again until the pool is reconfigured
+    private final Set<String> broken = new HashSet<>();
+
+    private int size;
+
+    // idle and busy ones
+    private int running;
+
+    private boolean shutdown;
+
+    public OkwtWorkerPool(final ConsoleLogger logger, final ProcessSupervisor supervisor, final Metrics metrics,
+                          final Path scriptDirectory) {
+        this.logger = logger;
+        this.supervisor = supervisor;
+        this.scriptDirectory = scriptDirectory;
+        this.startLatency = metrics.histogram("okwt.worker.start");
+        this.borrowed = metrics.counter("okwt.worker.borrowed");
+        this.unavailable = metrics.counter("okwt.worker.unavailable");
+        metrics.gauge("okwt.worker.running", this::runningCount);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(daemonThreadFactory("bittable-okwt-workers"));
+        this.watchdog = Executors.newSingleThreadScheduledExecutor(daemonThreadFactory("bittable-okwt-watchdog"));
+        scheduler.scheduleWithFixedDelay(this::checkIdleWorkers, HEALTH_CHECK_PERIOD_MILLIS, HEALTH_CHECK_PERIOD_MILLIS, MILLISECONDS);
+    }
+
+    /**
+     * @param size zero disables the pool, okwt is started for every conversion then
+     */
+    public synchronized void setSize(final int size) {
+        this.size = Math.max(0, size);
+        broken.clear();
+        workerCommands.clear();
+        retireIdleWorkers(this.size);
+    }
+
+    /**
+     * @param command okwt's command line, the same one that would be used to start it directly
+     * @param path prepended to PATH for the job, i.e. the folder of ffmpeg
+     * @param timeoutMillis the worker is killed, and replaced, if the job takes longer
+     * @return null if the job couldn't be handed to a worker and okwt has to be started directly
+     */
+    public CallResult run(final List<String> command, final Optional<String> path, final long timeoutMillis) {
+        final JfrEvents.ProcessRun event = new JfrEvents.ProcessRun();
+        event.begin();
+        event.exitCode = -1;
+
+        final CallResult result = run(command, path, timeoutMillis, event);
+
+        // jobs that haven't got to a worker are run as new processes, and recorded there
+        event.end();
+        if (event.worker && event.shouldCommit()) {
+            event.command = String.join(" ", command);
+            event.result = result == null ? "WORKER_FAILED" : result.name();
+            event.commit();
+        }
+        return result;
+    }
+
+    private CallResult run(final List<String> command, final Optional<String> path, final long timeoutMillis,
+                           final JfrEvents.ProcessRun event) {
+        final String executable = command.get(0);
+        final OkwtWorker worker = borrow(executable);
+        if (worker == null) {
+            unavailable.increment();
+            return null;
+        }
+        borrowed.increment();
+        event.worker = true;
+
+        final OkwtWorker.Result result;
+        try (ProcessSupervisor.Watch watch = supervisor.watch(worker.handle(), timeoutMillis)) {
+            try {
+                result = worker.run(path.orElse(""), command.subList(1, command.size()));
+            } catch (IOException e) {
+                discard(worker);
+                // the next job shouldn't pay for the crash
+                scheduler.execute(() -> warmUp(executable));
+
+                if (watch.outcome() != null) {
+                    logger.error("okwt worker %s has been stopped: %s", worker.pid(), watch.outcome());
+                    return watch.outcome();
+                }
+
+                logger.error("okwt worker %s has failed: %s", worker.pid(), e.getMessage());
+                return null;
+            }
+        }
+
+        release(worker);
+
+        event.exitCode = result.exitCode();
+        result.output().lines().forEach(logger::debug);
+        if (result.exitCode() != 0) {
+            logger.error("okwt exited with code %s", result.exitCode());
+        }
+        logger.debug("okwt worker %s finished with exit code %s", worker.pid(), result.exitCode());
+
+        return result.exitCode() == 0 ? CallResult.SUCCESS : CallResult.OKWT_ERROR;
+    }
+
+    /**
+     * Starts a worker in the background so that even the first conversion finds one ready.
+     */
+    public void warmUpFor(final String executable) {
+        scheduler.execute(() -> warmUp(executable));
+    }
+
+    public void shutdown() {
+        synchronized (this) {
+            shutdown = true;
+            retireIdleWorkers(0);
+        }
+        scheduler.shutdownNow();
+        watchdog.shutdownNow();
+    }
+
+    // runs on the scheduler
+    private void warmUp(final String executable) {
+        final boolean needed;
+        synchronized (this) {
+            needed = !shutdown && idle.isEmpty() && running < size;
+            if (needed) {
+                running++;
+            }
+        }
+
+        if (needed) {
+            final OkwtWorker worker = startWorker(executable);
+            if (worker != null) {
+                release(worker);
+            }
+        }
+    }
+
+    // doesn't wait for a busy worker, starting okwt directly is quicker than queueing behind another conversion
+    private OkwtWorker borrow(final String executable) {
+        synchronized (this) {
+            while (true) {
+                if (shutdown || size == 0 || broken.contains(executable)) {
+                    return null;
+                }
+
+                // workers of another okwt (the path has been changed) are of no use
+                final OkwtWorker worker = idle.pollFirst();
+                if (worker != null) {
+                    if (worker.getKey().equals(executable) && worker.isAlive()) {
+                        return worker;
+                    }
+                    discardLocked(worker);
+                    continue;
+                }
+
+                if (running < size) {
+                    running++;
+                    break;
+                }
+
+                return null;
+            }
+        }
+
+        // outside of the lock, starting takes a while
+        return startWorker(executable);
+    }
+
+    private synchronized long runningCount() {
+        return running;
+    }
+
+    // the caller has already counted the worker as running
+    private OkwtWorker startWorker(final String executable) {
+        final Optional<List<String>> command = workerCommand(executable);
+        if (command.isPresent()) {
+            final long start = System.nanoTime();
+            try {
+                final OkwtWorker worker = OkwtWorker.start(command.get(), executable, START_TIMEOUT_MILLIS, watchdog, logger);
+                startLatency.recordSince(start);
+                return worker;
+            } catch (IOException e) {
+                logger.error("Unable to start an okwt worker, okwt will be started for every conversion: %s", e.getMessage());
+            }
+        }
+
+        synchronized (this) {
+            running--;
+            broken.add(executable);
+        }
+        return null;
+    }
+
+    private synchronized void release(final OkwtWorker worker) {
+        if (shutdown || running > size) {
+            discardLocked(worker);
+        } else {
+            // the most recently used one goes first, so the others can become idle long enough to be stopped
+            idle.addFirst(worker);
+        }
+    }
+
+    private synchronized void discard(final OkwtWorker worker) {
+        discardLocked(worker);
+    }
+
+    private void discardLocked(final OkwtWorker worker) {
+        running--;
+        worker.close();
+    }
+
+    private void retireIdleWorkers(final int keep) {
+        while (running > keep && !idle.isEmpty()) {
+            discardLocked(idle.pollLast());
+        }
+    }
+
+    // runs on the scheduler
+    private void checkIdleWorkers() {
+        final List<OkwtWorker> workers;
+        synchronized (this) {
+            // taken out of the pool for the check, so no job can get them in the meantime
+            workers = new ArrayList<>(idle);
+            idle.clear();
+        }
+
+        final long now = System.currentTimeMillis();
+        for (OkwtWorker worker : workers) {
+            if (now - worker.getLastUsed() > IDLE_TIMEOUT_MILLIS) {
+                logger.debug("okwt worker %s has been idle for too long, stopping it", worker.pid());
+                discard(worker);
+                continue;
+            }
+
+            try {
+                worker.ping(PING_TIMEOUT_MILLIS);
+                release(worker);
+            } catch (IOException e) {
+                logger.debug("okwt worker %s is unhealthy, restarting it: %s", worker.pid(), e.getMessage());
+                discard(worker);
+                warmUp(worker.getKey());
+            }
+        }
+    }
+
+    private synchronized Optional<List<String>> workerCommand(final String executable) {
+        return workerCommands.computeIfAbsent(executable, this::resolveWorkerCommand);
+    }
+
+    private Optional<List<String>> resolveWorkerCommand(final String executable) {
+        final Path script;
+        try {
+            script = extractScript();
+        } catch (IOException e) {
+            logger.error("Unable to extract %s: %s", SCRIPT_NAME, e.getMessage());
+            return Optional.empty();
+        }
+
+        if ("fake".equals(System.getProperty("bittable.okwt.worker"))) {
+            final List<String> command = new ArrayList<>(List.of("python3", script.toString(), "--fake"));
+            Optional.ofNullable(System.getProperty("bittable.okwt.worker.delay")).ifPresent(delay -> {
+                command.add("--delay");
+                command.add(delay);
+            });
+            return Optional.of(command);
+        }
+
+        final Optional<List<String>> interpreter = interpreterOf(Path.of(executable));
+        if (interpreter.isEmpty()) {
+            logger.info("Unable to find the Python okwt is installed for, okwt will be started for every conversion");
+        }
+
+        return interpreter.map(command -> {
+            final List<String> result = new ArrayList<>(command);
+            result.add(script.toString());
+            return result;
+        });
+    }
+
+    /**
+     * okwt is a console script of a Python package, typically installed into a virtual environment (pipx does that)
+     * which has the interpreter right next to it. Otherwise, the shebang of the script tells.
+     */
+    static Optional<List<String>> interpreterOf(final Path executable) {
+        Path script = executable;
+        if (!Files.exists(script)) {
+            script = executable.resolveSibling(executable.getFileName() + ".exe");
+        }
+        if (!Files.exists(script)) {
+            return Optional.empty();
+        }
+
+        try {
+            script = script.toRealPath();
+        } catch (IOException e) {
+            return Optional.empty();
+        }
+
+        for (String name : List.of("python3", "python", "python.exe")) {
+            final Path candidate = script.resolveSibling(name);
+            if (Files.isExecutable(candidate)) {
+                return Optional.of(List.of(candidate.toString()));
+            }
+        }
+
+        try (BufferedReader reader = Files.newBufferedReader(script)) {
+            final String firstLine = reader.readLine();
+            if (firstLine != null && firstLine.startsWith("#!")) {
+                // i.e. #!/usr/bin/env python3
+                return Optional.of(List.of(firstLine.substring(2).trim().split("\\s+")));
+            }
+        } catch (IOException e) {
+            // a binary launcher rather than a script
+        }
+
+        return Optional.empty();
+    }
+
+    private Path extractScript() throws IOException {
+        final byte[] content;
+        try (InputStream stream = getClass().getResourceAsStream("/" + SCRIPT_NAME)) {
+            if (stream == null) {
+                throw new IOException(SCRIPT_NAME + " is missing from the extension");
+            }
+            content = stream.readAllBytes();
+        }
+
+        // rewritten only if it's been changed by an update of the extension
+        final Path script = scriptDirectory.resolve(SCRIPT_NAME);
+        if (!Files.exists(script) || !Arrays.equals(Files.readAllBytes(script), content)) {
+            Files.createDirectories(scriptDirectory);
+            Files.write(script, content);
+        }
+
+        return script;
+    }
+
+    private static ThreadFactory daemonThreadFactory(final String name) {
+        return runnable -> {
+            final Thread thread = new Thread(runnable, name);
+            // must never keep Bitwig's JVM alive
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
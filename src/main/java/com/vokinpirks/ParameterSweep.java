@@ -0,0 +1,114 @@
+package com.vokinpirks;
+
+import com.vokinpirks.enums.ResizeAlgorithm;
+import lombok.Builder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringJoiner;
+
+/**
+ * Combinations of okwt options to render a single sample with, so that the results can be compared side by side.
+ * Options which aren't swept keep their values from the project settings.
+ */
+@Builder
+public class ParameterSweep {
+
+    private final boolean resizeAlgorithms;
+
+    private final boolean normalize;
+
+    private final boolean maximize;
+
+    private final boolean trim;
+
+    private final boolean shuffle;
+
+    public boolean isEmpty() {
+        return !resizeAlgorithms && !normalize && !maximize && !trim && !shuffle;
+    }
+
+    /**
+     * @param current the options as they are set in the project settings
+     */
+    public List<Variant> variants(final Variant current) {
+        List<Variant> variants = List.of(current);
+
+        if (resizeAlgorithms) {
+            final List<Variant> expanded = new ArrayList<>();
+            for (Variant variant : variants) {
+                for (ResizeAlgorithm resizeAlgorithm : ResizeAlgorithm.values()) {
+                    expanded.add(new Variant(resizeAlgorithm, variant.normalize(), variant.maximize(), variant.trim(), variant.shuffle()));
+                }
+            }
+            variants = expanded;
+        }
+
+        if (normalize) {
+            variants = expand(variants, (variant, on) -> new Variant(variant.resizeAlgorithm(), on, variant.maximize(), variant.trim(), variant.shuffle()));
+        }
+
+        if (maximize) {
+            variants = expand(variants, (variant, on) -> new Variant(variant.resizeAlgorithm(), variant.normalize(), on, variant.trim(), variant.shuffle()));
+        }
+
+        if (trim) {
+            variants = expand(variants, (variant, on) -> new Variant(variant.resizeAlgorithm(), variant.normalize(), variant.maximize(), on, variant.shuffle()));
+        }
+
+        if (shuffle) {
+            variants = expand(variants, (variant, on) -> new Variant(variant.resizeAlgorithm(), variant.normalize(), variant.maximize(), variant.trim(), on));
+        }
+
+        return variants;
+    }
+
+    private static List<Variant> expand(final List<Variant> variants, final Toggled toggled) {
+        final List<Variant> expanded = new ArrayList<>(variants.size() * 2);
+        for (Variant variant : variants) {
+            expanded.add(toggled.with(variant, false));
+            expanded.add(toggled.with(variant, true));
+        }
+
+        return expanded;
+    }
+
+    @FunctionalInterface
+    private interface Toggled {
+        Variant with(Variant variant, boolean on);
+    }
+
+    public record Variant(ResizeAlgorithm resizeAlgorithm, boolean normalize, boolean maximize, boolean trim, boolean shuffle) {
+
+        // unique among the variants of a sweep, used in file names
+        public String label() {
+            final StringJoiner label = new StringJoiner(" ");
+            label.add(resizeAlgorithm.name());
+            if (normalize) {
+                label.add("normalize");
+            }
+            if (maximize) {
+                label.add("maximize");
+            }
+            if (trim) {
+                label.add("trim");
+            }
+            if (shuffle) {
+                label.add("shuffle");
+            }
+
+            return label.toString();
+        }
+
+        public ConversionCommandBuilder.ConversionCommandBuilderBuilder applyTo(
+                final ConversionCommandBuilder.ConversionCommandBuilderBuilder builder
+        ) {
+            return builder
+                    .resizeAlgorithm(resizeAlgorithm)
+                    .normalize(normalize)
+                    .maximize(maximize)
+                    .trim(trim)
+                    .shuffle(shuffle);
+        }
+    }
+}
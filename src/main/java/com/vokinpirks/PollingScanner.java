@@ -0,0 +1,137 @@
+package com.vokinpirks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Covers directories that can't be watched because the OS has run out of watches
+ * (fs.inotify.max_user_watches on Linux). They are checked in a round-robin fashion by comparing
+ * modification times, each tick does a bounded amount of work so a huge library never hogs the CPU or the disk.
+ */
+final class PollingScanner {
+
+    private static final long TICK_INTERVAL = 500L;
+
+    private static final long TIME_SLICE_NANOS = MILLISECONDS.toNanos(20L);
+
+    private final Set<DirectoryNode> directories = ConcurrentHashMap.newKeySet();
+
+    // changed directories being revalidated, they stay polled until that succeeds
+    private final Set<DirectoryNode> revalidating = ConcurrentHashMap.newKeySet();
+
+    private final Function<DirectoryNode, Path> pathResolver;
+
+    private final BiFunction<DirectoryNode, Path, CompletableFuture<?>> changeCallback;
+
+    private final ConsoleLogger logger;
+
+    private ScheduledExecutorService executor;
+
+    // only touched by the scanner thread
+    private List<DirectoryNode> round = List.of();
+
+    private int cursor;
+
+    PollingScanner(
+            Function<DirectoryNode, Path> pathResolver,
+            BiFunction<DirectoryNode, Path, CompletableFuture<?>> changeCallback,
+            ConsoleLogger logger
+    ) {
+        this.pathResolver = pathResolver;
+        this.changeCallback = changeCallback;
+        this.logger = logger;
+    }
+
+    void start() {
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "bittable-polling-scanner");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::scanSlice, TICK_INTERVAL, TICK_INTERVAL, MILLISECONDS);
+    }
+
+    void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    void add(final DirectoryNode directory) {
+        directories.add(directory);
+    }
+
+    void remove(final DirectoryNode directory) {
+        directories.remove(directory);
+    }
+
+    int size() {
+        return directories.size();
+    }
+
+    void clear() {
+        directories.clear();
+        revalidating.clear();
+    }
+
+    private void scanSlice() {
+        final long deadline = System.nanoTime() + TIME_SLICE_NANOS;
+
+        try {
+            while (System.nanoTime() < deadline) {
+                if (cursor >= round.size()) {
+                    // a round is over, the next one starts on the next tick
+                    final boolean wasRunning = !round.isEmpty();
+                    round = directories.isEmpty() ? List.of() : new ArrayList<>(directories);
+                    cursor = 0;
+                    if (wasRunning || round.isEmpty()) {
+                        return;
+                    }
+                }
+
+                final DirectoryNode directory = round.get(cursor++);
+                if (!directories.contains(directory) || revalidating.contains(directory)) {
+                    // has been deleted, is watched now or is being revalidated
+                    continue;
+                }
+
+                final Path path = pathResolver.apply(directory);
+                if (lastModified(path) != directory.lastModified) {
+                    // a successful revalidation either moves the directory over to a watch or leaves it here
+                    // with its new modification time, a failed one is simply retried on the next round
+                    revalidating.add(directory);
+                    changeCallback.apply(directory, path).whenComplete((walk, e) -> {
+                        revalidating.remove(directory);
+                        if (e != null) {
+                            logger.error("Unable to revalidate the polled directory %s: %s", path, e);
+                        }
+                    });
+                }
+            }
+        } catch (RuntimeException e) {
+            // an exception would cancel all further ticks
+            logger.error("Polling scanner has failed: %s", e);
+        }
+    }
+
+    private static long lastModified(final Path path) {
+        try {
+            return Files.getLastModifiedTime(path).toMillis();
+        } catch (IOException e) {
+            return -1L;
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package com.vokinpirks;
+
+import com.vokinpirks.enums.CallResult;
+import com.vokinpirks.enums.FileFormat;
+import com.vokinpirks.metrics.Histogram;
+import com.vokinpirks.metrics.Metrics;
+import com.vokinpirks.util.Filename;
+import com.vokinpirks.util.Processes;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Runs external processes (okwt, ffmpeg) with a timeout derived from the size and format of the input and from how
+ * long such conversions have taken so far, and kills them along with their children on timeout or when the user
+ * cancels.
+ */
+public class ProcessSupervisor {
+
+    private static final long MIN_TIMEOUT_MILLIS = 10_000L;
+
+    private static final long MAX_TIMEOUT_MILLIS = 10 * 60_000L;
+
+    // how many times longer than expected a process may take before it's considered stuck
+    private static final double TIMEOUT_FACTOR = 4.0;
+
+    // until there is some history, deliberately pessimistic
+    private static final double DEFAULT_MILLIS_PER_MEGABYTE = 2000.0;
+
+    // weight of the latest run in the average
+    private static final double SMOOTHING = 0.3;
+
+    private static final double MEGABYTE = 1024.0 * 1024.0;
+
+    // how often the children of a watched process are looked up, they're gone from its tree once it exits
+    private static final long DESCENDANTS_INTERVAL_MILLIS = 1000L;
+
+    private final ConsoleLogger logger;
+
+    private final Histogram spawnLatency;
+
+    private final ScheduledExecutorService watchdog;
+
+    // by input format, empty for unrecognized ones
+    private final Map<Optional<FileFormat>, Double> millisPerMegabyte = new ConcurrentHashMap<>();
+
+    private final Set<Watch> watches = ConcurrentHashMap.newKeySet();
+
+    public ProcessSupervisor(final ConsoleLogger logger, final Metrics metrics) {
+        this.logger = logger;
+        this.spawnLatency = metrics.histogram("process.spawn");
+        this.watchdog = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "bittable-process-watchdog");
+            // must never keep Bitwig's JVM alive
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Runs the process to the end, its output goes to the debug log.
+     */
+    public CallResult run(final List<String> command, final Optional<String> path, final long timeoutMillis) {
+        final JfrEvents.ProcessRun event = new JfrEvents.ProcessRun();
+        event.begin();
+        event.exitCode = -1;
+
+        final CallResult result = run(command, path, timeoutMillis, event);
+
+        event.end();
+        if (event.shouldCommit()) {
+            event.command = String.join(" ", command);
+            event.result = result.name();
+            event.commit();
+        }
+        return result;
+    }
+
+    private CallResult run(final List<String> command, final Optional<String> path, final long timeoutMillis,
+                           final JfrEvents.ProcessRun event) {
+        final Process process;
+        final long spawnStart = System.nanoTime();
+        try {
+            process = Processes.start(command, path, logger);
+            spawnLatency.recordSince(spawnStart);
+        } catch (IOException e) {
+            logger.error(e.getMessage());
+            return CallResult.IO_ERROR;
+        }
+
+        logger.debug("Waiting for the process to finish, at most %s ms", timeoutMillis);
+
+        try (Watch watch = watch(process.toHandle(), timeoutMillis)) {
+            // a killed process closes its output, so this never blocks for longer than the timeout
+            final var reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    logger.debug(line);
+                }
+                process.waitFor();
+            } catch (IOException e) {
+                if (watch.outcome() == null) {
+                    logger.error(e.getMessage());
+                    return CallResult.UNKNOWN_ERROR;
+                }
+            } catch (InterruptedException e) {
+                Processes.destroyTree(process.toHandle());
+                Thread.currentThread().interrupt();
+                return CallResult.CANCELLED;
+            }
+
+            if (watch.outcome() != null) {
+                logger.error("Process has been stopped: %s", watch.outcome());
+                return watch.outcome();
+            }
+        }
+
+        event.exitCode = process.exitValue();
+        if (process.exitValue() != 0) {
+            logger.error("Process exited with code %s", process.exitValue());
+        }
+
+        logger.debug("Process finished with exit code %s", process.exitValue());
+
+        return process.exitValue() == 0
+                ? CallResult.SUCCESS
+                : CallResult.OKWT_ERROR;
+    }
+
+    /**
+     * Has the process and its children killed once the timeout passes or conversions are cancelled, unless the watch
+     * is closed before.
+     */
+    public Watch watch(final ProcessHandle process, final long timeoutMillis) {
+        final Watch watch = new Watch(process);
+        watches.add(watch);
+        watch.timer = watchdog.schedule(() -> watch.stop(CallResult.TIMEOUT), timeoutMillis, MILLISECONDS);
+        watch.tracker = watchdog.scheduleWithFixedDelay(watch::trackDescendants,
+                DESCENDANTS_INTERVAL_MILLIS, DESCENDANTS_INTERVAL_MILLIS, MILLISECONDS);
+        return watch;
+    }
+
+    /**
+     * Kills every process that is running at the moment.
+     *
+     * @return how many there were
+     */
+    public int cancelAll() {
+        int count = 0;
+        for (Watch watch : watches) {
+            if (watch.stop(CallResult.CANCELLED)) {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    public long timeoutFor(final Path inFile) {
+        final double megabytes = Math.max(1.0, sizeOf(inFile) / MEGABYTE);
+        final double expected = millisPerMegabyte.getOrDefault(formatOf(inFile), DEFAULT_MILLIS_PER_MEGABYTE) * megabytes;
+        return Math.max(MIN_TIMEOUT_MILLIS, Math.min(MAX_TIMEOUT_MILLIS, (long) (expected * TIMEOUT_FACTOR)));
+    }
+
+    /**
+     * Learns from a successful run how long conversions of the kind take.
+     */
+    public void record(final Path inFile, final long elapsedMillis) {
+        final double megabytes = Math.max(1.0, sizeOf(inFile) / MEGABYTE);
+        final double observed = elapsedMillis / megabytes;
+        millisPerMegabyte.merge(formatOf(inFile), observed,
+                (average, latest) -> average + SMOOTHING * (latest - average));
+    }
+
+    public void shutdown() {
+        cancelAll();
+        watchdog.shutdownNow();
+    }
+
+    private static long sizeOf(final Path file) {
+        try {
+            return Files.size(file);
+        } catch (IOException e) {
+            return 0L;
+        }
+    }
+
+    private static Optional<FileFormat> formatOf(final Path file) {
+        return Optional.ofNullable(Filename.extensionOf(file.getFileName().toString()))
+                .map(extension -> FileFormat.fromExtension(extension.toLowerCase()));
+    }
+
+    public class Watch implements AutoCloseable {
+
+        private final ProcessHandle process;
+
+        private volatile ScheduledFuture<?> timer;
+
+        private volatile ScheduledFuture<?> tracker;
+
+        private volatile CallResult outcome;
+
+        // every child seen so far, an exited process may leave some behind holding its output pipe open
+        private final Set<ProcessHandle> descendants = ConcurrentHashMap.newKeySet();
+
+        private Watch(final ProcessHandle process) {
+            this.process = process;
+        }
+
+        /**
+         * @return TIMEOUT or CANCELLED if the process has been killed, null otherwise
+         */
+        public CallResult outcome() {
+            return outcome;
+        }
+
+        private synchronized boolean stop(final CallResult outcome) {
+            if (this.outcome != null) {
+                return false;
+            }
+
+            trackDescendants();
+            descendants.removeIf(descendant -> !descendant.isAlive());
+            if (!process.isAlive() && descendants.isEmpty()) {
+                return false;
+            }
+
+            this.outcome = outcome;
+            logger.debug("Killing process %s and %s children: %s", process.pid(), descendants.size(), outcome);
+            process.destroyForcibly();
+            descendants.forEach(ProcessHandle::destroyForcibly);
+            return true;
+        }
+
+        private void trackDescendants() {
+            process.descendants().forEach(descendants::add);
+        }
+
+        @Override
+        public void close() {
+            watches.remove(this);
+            cancel(timer);
+            cancel(tracker);
+        }
+
+        private static void cancel(final ScheduledFuture<?> task) {
+            if (task != null) {
+                task.cancel(false);
+            }
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package com.vokinpirks;
+
+import com.bitwig.extension.controller.api.ControllerHost;
+import com.vokinpirks.enums.CallResult;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Does the slow part of a conversion while the user is still browsing: as soon as the selection changes
+ * the sample is looked up in the index, and the file is read once so okwt finds it in the page cache.
+ * <p>
+ * Only the latest selection matters, older pending work is dropped as the user scrolls through the browser.
+ */
+public class SelectionPrewarmer {
+
+    // larger files are unlikely to become wavetables, and reading them would only evict useful pages
+    private static final long MAX_PREREAD_SIZE = 64L * 1024L * 1024L;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final ControllerHost host;
+
+    private final FileNameIndexer indexer;
+
+    private final ConsoleLogger logger;
+
+    private final Function<ConversionJob, CallResult> converter;
+
+    private final ThreadPoolExecutor executor;
+
+    // only touched by the prewarming thread
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    private volatile Resolution popupBrowserResolution;
+
+    private volatile Resolution samplerResolution;
+
+    private volatile Consumer<Path> speculation = path -> {};
+
+    public SelectionPrewarmer(
+            ControllerHost host,
+            FileNameIndexer indexer,
+            ConsoleLogger logger,
+            Function<ConversionJob, CallResult> converter
+    ) {
+        this.host = host;
+        this.indexer = indexer;
+        this.logger = logger;
+        this.converter = converter;
+        this.executor = new ThreadPoolExecutor(1, 1, 0L, MILLISECONDS,
+                new ArrayBlockingQueue<>(1),
+                runnable -> {
+                    final Thread thread = new Thread(runnable, "bittable-prewarming");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                },
+                new ThreadPoolExecutor.DiscardOldestPolicy()
+        );
+    }
+
+    /**
+     * @param speculation invoked on the host thread with every resolved sample
+     */
+    public void setSpeculation(final Consumer<Path> speculation) {
+        this.speculation = speculation;
+    }
+
+    // called on the host thread
+    public void selectionChanged(final String name, final boolean fromPopupBrowser) {
+        if (name == null || name.isBlank()) {
+            return;
+        }
+
+        execute(() -> {
+            final String fullPath = fromPopupBrowser
+                    ? indexer.getFullPathIgnoringExtension(name)
+                    : indexer.getFullPath(name);
+            if (fullPath == null) {
+                return;
+            }
+
+            final Resolution resolution = new Resolution(name, fullPath);
+            if (fromPopupBrowser) {
+                popupBrowserResolution = resolution;
+            } else {
+                samplerResolution = resolution;
+            }
+
+            final Path path = Path.of(fullPath);
+            if (preread(path)) {
+                host.scheduleTask(() -> speculation.accept(path), 0L);
+            }
+        });
+    }
+
+    /**
+     * @return the full path of the sample if it has been resolved in advance and the file is still there, null otherwise
+     */
+    public String resolvedPath(final String name, final boolean fromPopupBrowser) {
+        final Resolution resolution = fromPopupBrowser ? popupBrowserResolution : samplerResolution;
+        if (resolution == null || !resolution.name().equals(name) || !Files.isRegularFile(Path.of(resolution.fullPath()))) {
+            return null;
+        }
+
+        return resolution.fullPath();
+    }
+
+    /**
+     * Converts the sample in the background so that the result ends up in the conversion cache,
+     * the output file itself is thrown away.
+     */
+    public void speculate(final ConversionJob job) {
+        execute(() -> {
+            final long start = System.currentTimeMillis();
+            final CallResult result = converter.apply(job);
+            logger.debug("Speculative conversion of %s: %s in %s ms", job.getInFile(), result, System.currentTimeMillis() - start);
+
+            try {
+                Files.deleteIfExists(job.getOutFile());
+            } catch (IOException e) {
+                logger.error("Unable to delete %s: %s", job.getOutFile(), e.getMessage());
+            }
+        });
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private void execute(final Runnable task) {
+        try {
+            executor.execute(() -> {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    logger.error("Prewarming has failed: %s", e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // shutting down
+        }
+    }
+
+    // reads the whole file so it's in the page cache by the time okwt opens it
+    private boolean preread(final Path path) {
+        try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > MAX_PREREAD_SIZE) {
+                return false;
+            }
+
+            while (channel.read(buffer) != -1) {
+                buffer.clear();
+            }
+            return true;
+        } catch (IOException e) {
+            logger.debug("Unable to preread %s: %s", path, e.getMessage());
+            return false;
+        } finally {
+            buffer.clear();
+        }
+    }
+
+    private record Resolution(String name, String fullPath) {
+    }
+}
@@ -12,6 +12,7 @@ import lombok.Getter;
 import java.nio.file.Path;
 import java.util.List;
 import java.util.function.Consumer;
+import java.util.function.ObjIntConsumer;
 import java.util.stream.IntStream;
 
 import static com.vokinpirks.enums.FileSystemItemType.DIRECTORY;
@@ -22,6 +23,8 @@ import static java.util.stream.Collectors.toList;
 public class SettingsManager {
     private static final int STRING_SETTING_MAX_LEN = 256;
     public static final int SAMPLE_LOCATION_COUNT = 7;
+    public static final int DEFAULT_CACHE_SIZE_MB = 512;
+    public static final int MAX_OKWT_WORKERS = 4;
 
     private final ControllerHost host;
 
@@ -39,14 +42,26 @@ public class SettingsManager {
     private final SettableRangedValue       shuffleChunksSetting;
     private final SettableStringValue       fileSetting;
     private final SettableEnumValue         fileFormatSetting;
+    private final SettableStringValue       batchFolderSetting;
+    private final SettableStringValue       batchFilterSetting;
+    private final SettableEnumValue         sweepResizeAlgorithmSetting;
+    private final SettableEnumValue         sweepNormalizeSetting;
+    private final SettableEnumValue         sweepMaximizeSetting;
+    private final SettableEnumValue         sweepTrimSetting;
+    private final SettableEnumValue         sweepShuffleSetting;
     private final List<SettableStringValue> sampleLocationsSettings;
     private final SettableBooleanValue      appendDateTimeSetting;
+    private final SettableRangedValue       cacheSizeSetting;
+    private final SettableBooleanValue      speculativeConversionSetting;
+    private final SettableBooleanValue      builtInConverterSetting;
+    private final SettableRangedValue       okwtWorkersSetting;
 
     public SettingsManager(
             ControllerHost host,
             Notifier notifier,
             ConsoleLogger logger,
-            Consumer<Path> sampleDirectoryAdded
+            ObjIntConsumer<Path> sampleDirectoryAdded,
+            Consumer<Path> sampleDirectoryRemoved
     ) {
         this.host = host;
 
@@ -72,17 +87,40 @@ public class SettingsManager {
         wavSaveLocationSetting.addValueObserver(newValue ->
                 Strings.isValidPath(newValue, DIRECTORY, notifier::error));
 
+        // the order of sample locations is their priority when several samples have the same name
         sampleLocationsSettings = IntStream.range(0, SAMPLE_LOCATION_COUNT).boxed()
-                .map(i -> preferences.getStringSetting(" ".repeat(i + 1), "Samples Locations", STRING_SETTING_MAX_LEN, ""))
-                .peek(setting -> setting.addValueObserver(newValue -> {
-                    if (Strings.isValidPath(newValue, DIRECTORY, notifier::error)) {
-                        sampleDirectoryAdded.accept(Path.of(newValue));
-                    }
-                }))
+                .map(i -> {
+                    final SettableStringValue setting = preferences.getStringSetting(" ".repeat(i + 1), "Samples Locations", STRING_SETTING_MAX_LEN, "");
+                    // the last valid one, it's been indexed
+                    final String[] previousValue = {""};
+                    setting.addValueObserver(newValue -> {
+                        final String oldValue = previousValue[0];
+                        // unless the very same location is listed twice
+                        if (!oldValue.isEmpty() && !oldValue.equals(newValue)
+                                && !isSampleLocation(oldValue)) {
+                            sampleDirectoryRemoved.accept(Path.of(oldValue));
+                        }
+
+                        previousValue[0] = "";
+                        if (Strings.isValidPath(newValue, DIRECTORY, notifier::error)) {
+                            sampleDirectoryAdded.accept(Path.of(newValue), i);
+                            previousValue[0] = newValue;
+                        }
+                    });
+                    return setting;
+                })
                 .collect(toList());
 
         preferences.getBooleanSetting("Debug", "Misc", false).addValueObserver(logger::setDebug);
         this.appendDateTimeSetting = preferences.getBooleanSetting("Append date and time", "Misc", true);
+        // zero disables the cache
+        this.cacheSizeSetting = preferences.getNumberSetting("Conversion cache size", "Misc", 0, 16384, 64, "MB", DEFAULT_CACHE_SIZE_MB);
+        // burns CPU on samples that may never be converted, hence opt-in
+        this.speculativeConversionSetting = preferences.getBooleanSetting("Speculative conversion", "Misc", false);
+        // opt-in until WavetableEngineGoldenTest has been run against okwt's output for every option
+        this.builtInConverterSetting = preferences.getBooleanSetting("Built-in converter", "Misc", false);
+        // each one is a Python process with NumPy loaded, zero starts okwt for every conversion
+        this.okwtWorkersSetting = preferences.getNumberSetting("okwt workers", "Misc", 0, MAX_OKWT_WORKERS, 1, "", 1);
 
         // project level settings
         final DocumentState documentState = host.getDocumentState();
@@ -104,13 +142,26 @@ public class SettingsManager {
         fileSetting             = documentState.getStringSetting("File", "File", STRING_SETTING_MAX_LEN, "");
         fileFormatSetting       = documentState.getEnumSetting("Save as", "Convert", Enums.namesOf(FileFormat.OUTPUT_FORMATS), FileFormat.WAV.name());
 
+        batchFolderSetting      = documentState.getStringSetting("Folder", "Batch", STRING_SETTING_MAX_LEN, "");
+        batchFilterSetting      = documentState.getStringSetting("Name filter", "Batch", STRING_SETTING_MAX_LEN, "");
+        sweepResizeAlgorithmSetting = documentState.getEnumSetting("Sweep resize algorithms", "Sweep", onOff, Toggle.on.name());
+        sweepNormalizeSetting   = documentState.getEnumSetting("Sweep normalize", "Sweep", onOff, Toggle.on.name());
+        sweepMaximizeSetting    = documentState.getEnumSetting("Sweep maximize", "Sweep", onOff, Toggle.off.name());
+        sweepTrimSetting        = documentState.getEnumSetting("Sweep trim", "Sweep", onOff, Toggle.off.name());
+        sweepShuffleSetting     = documentState.getEnumSetting("Sweep shuffle", "Sweep", onOff, Toggle.off.name());
+
         fileSetting.addValueObserver(newValue -> Strings.isValidPath(Strings.unwrapQuotes(newValue), FILE, notifier::error));
+        batchFolderSetting.addValueObserver(newValue -> Strings.isValidPath(Strings.unwrapQuotes(newValue), DIRECTORY, notifier::error));
     }
 
     public Path okwtPath() {
         return Path.of(okwtPathSetting.get());
     }
 
+    public String okwtExecutable() {
+        return okwtPath().resolve("okwt").toString();
+    }
+
     public String ffmpegPath() {
         return resolvePath(ffmpegPathSetting.get());
     }
@@ -122,6 +173,30 @@ public class SettingsManager {
                 .orElse(null);
     }
 
+    public Path batchFolder() {
+        return Strings.optional(batchFolderSetting.get())
+                .map(Strings::unwrapQuotes)
+                .map(Path::of)
+                .orElse(null);
+    }
+
+    /**
+     * @return a glob pattern for file names, i.e. *kick*
+     */
+    public String batchFilter() {
+        return Strings.optional(batchFilterSetting.get()).orElse(null);
+    }
+
+    public ParameterSweep parameterSweep() {
+        return ParameterSweep.builder()
+                .resizeAlgorithms(Toggle.valueOf(sweepResizeAlgorithmSetting.get()).asBoolean())
+                .normalize(Toggle.valueOf(sweepNormalizeSetting.get()).asBoolean())
+                .maximize(Toggle.valueOf(sweepMaximizeSetting.get()).asBoolean())
+                .trim(Toggle.valueOf(sweepTrimSetting.get()).asBoolean())
+                .shuffle(Toggle.valueOf(sweepShuffleSetting.get()).asBoolean())
+                .build();
+    }
+
     public FileFormat fileFormat() {
         return FileFormat.valueOf(fileFormatSetting.get());
     }
@@ -174,12 +249,22 @@ public class SettingsManager {
         return appendDateTimeSetting.get();
     }
 
-    public List<Path> sampleLocations() {
-        return sampleLocationsSettings.stream()
-                .map(StringValue::get)
-                .map(Path::of)
-                .filter(path -> path.toFile().exists())
-                .collect(toList());
+    public boolean speculativeConversion() {
+        return speculativeConversionSetting.get();
+    }
+
+    public void forEachSampleLocation(final ObjIntConsumer<Path> action) {
+        for (int i = 0; i < sampleLocationsSettings.size(); i++) {
+            final int priority = i;
+            Strings.optional(sampleLocationsSettings.get(i).get())
+                    .map(Path::of)
+                    .filter(path -> path.toFile().exists())
+                    .ifPresent(path -> action.accept(path, priority));
+        }
+    }
+
+    private boolean isSampleLocation(final String path) {
+        return sampleLocationsSettings.stream().anyMatch(setting -> path.equals(setting.get()));
     }
 
     private String resolvePath(final String s) {
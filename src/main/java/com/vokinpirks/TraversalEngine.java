@@ -0,0 +1,287 @@
+package com.vokinpirks;
+
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Lists directories on its own threads, so indexing never competes with Bitwig for the common pool.
+ * <p>
+ * Every directory is a separate unit of work. Work is queued per sample location and only a few directories
+ * of the same location are listed at once, so a spinning disk or a network share isn't thrashed by dozens
+ * of concurrent listings while other locations still proceed in parallel.
+ */
+final class TraversalEngine {
+
+    private static final int THREAD_COUNT = Math.max(2, Math.min(8, Runtime.getRuntime().availableProcessors()));
+
+    private static final int LOCAL_CONCURRENCY = 4;
+
+    // round trips are expensive there, but the servers don't appreciate being hammered either
+    private static final int REMOTE_CONCURRENCY = 2;
+
+    private static final Set<String> REMOTE_FILE_SYSTEMS = Set.of(
+            "nfs", "nfs4", "cifs", "smb", "smbfs", "smb2", "fuse.sshfs", "webdav", "davfs", "afpfs"
+    );
+
+    private final ThreadPoolExecutor executor;
+
+    private final Map<Path, RootQueue> rootQueues = new ConcurrentHashMap<>();
+
+    private final ConsoleLogger logger;
+
+    TraversalEngine(ConsoleLogger logger) {
+        this.logger = logger;
+        this.executor = new ThreadPoolExecutor(THREAD_COUNT, THREAD_COUNT, 30L, SECONDS,
+                new LinkedBlockingQueue<>(),
+                indexerThreadFactory()
+        );
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Starts a walk at the given directory, every step may schedule more steps of the same walk.
+     *
+     * @param root the sample location the directory belongs to, its concurrency limit applies
+     */
+    Walk walk(final Path root, final Path directory, final Step step) {
+        final Walk walk = new Walk(root, rootQueues.computeIfAbsent(root, this::newRootQueue));
+        walk.submit(directory, step);
+        return walk;
+    }
+
+    /**
+     * Runs a one-off task on the engine's threads, outside of any walk.
+     */
+    CompletableFuture<Void> run(final Runnable task) {
+        return CompletableFuture.runAsync(task, executor);
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Lists a directory reading the attributes of each entry once, which is a single stat per entry at most,
+     * and Windows doesn't even need that since the attributes come with the listing.
+     *
+     * @return the attributes of the directory itself
+     */
+    static BasicFileAttributes list(final Path directory, final List<String> subdirectories, final List<String> files) throws IOException {
+        final BasicFileAttributes[] directoryAttributes = {null};
+        Files.walkFileTree(directory, EnumSet.of(FileVisitOption.FOLLOW_LINKS), 1, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) {
+                directoryAttributes[0] = attributes;
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                if (attributes.isDirectory()) {
+                    subdirectories.add(file.getFileName().toString());
+                } else if (attributes.isRegularFile()) {
+                    files.add(file.getFileName().toString());
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) throws IOException {
+                if (file.equals(directory)) {
+                    throw e;
+                }
+
+                // a broken link or something that has just been deleted
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        if (directoryAttributes[0] == null) {
+            // a plain file where the directory used to be
+            throw new NoSuchFileException(directory.toString());
+        }
+
+        return directoryAttributes[0];
+    }
+
+    private RootQueue newRootQueue(final Path root) {
+        int concurrency = LOCAL_CONCURRENCY;
+        try {
+            final FileStore store = Files.getFileStore(root);
+            if (REMOTE_FILE_SYSTEMS.contains(store.type().toLowerCase())) {
+                concurrency = REMOTE_CONCURRENCY;
+            }
+        } catch (IOException e) {
+            // doesn't exist yet, the walk fails anyway
+        }
+
+        logger.debug("Up to %s directories of %s will be listed concurrently", concurrency, root);
+        return new RootQueue(concurrency);
+    }
+
+    private static ThreadFactory indexerThreadFactory() {
+        final AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            final Thread thread = new Thread(runnable, "bittable-indexer-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            // indexing is never more important than audio
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            return thread;
+        };
+    }
+
+    @FunctionalInterface
+    interface Step {
+        void run(Walk walk) throws IOException;
+    }
+
+    /**
+     * A traversal of a subtree, completes once all of its steps have run.
+     */
+    final class Walk {
+        private final Path root;
+
+        private final RootQueue queue;
+
+        private final AtomicInteger pendingSteps = new AtomicInteger();
+
+        private final LongAdder files = new LongAdder();
+
+        private final LongAdder directories = new LongAdder();
+
+        private final CompletableFuture<Walk> completion = new CompletableFuture<>();
+
+        private final long startedAt = System.nanoTime();
+
+        private volatile long elapsedNanos;
+
+        private Walk(Path root, RootQueue queue) {
+            this.root = root;
+            this.queue = queue;
+        }
+
+        void submit(final Path directory, final Step step) {
+            pendingSteps.incrementAndGet();
+            queue.enqueue(() -> run(directory, step));
+        }
+
+        void directoryListed(final int fileCount) {
+            directories.increment();
+            files.add(fileCount);
+        }
+
+        long files() {
+            return files.sum();
+        }
+
+        long directories() {
+            return directories.sum();
+        }
+
+        long elapsedMillis() {
+            return elapsedNanos / 1_000_000L;
+        }
+
+        long filesPerSecond() {
+            return elapsedNanos == 0L ? 0L : files() * 1_000_000_000L / elapsedNanos;
+        }
+
+        CompletableFuture<Walk> completion() {
+            return completion;
+        }
+
+        private void run(final Path directory, final Step step) {
+            final JfrEvents.DirectoryStep event = new JfrEvents.DirectoryStep();
+            event.begin();
+            try {
+                step.run(this);
+            } catch (NoSuchFileException e) {
+                // deleted in the meantime, the watcher takes care of it
+                logger.debug("%s has disappeared during indexing", directory);
+            } catch (IOException | RuntimeException e) {
+                // the rest of the tree is still worth indexing
+                logger.error("Unable to index the directory %s: %s", directory, e);
+                event.failed = true;
+            } finally {
+                event.end();
+                if (event.shouldCommit()) {
+                    event.location = root.toString();
+                    event.directory = directory.toString();
+                    event.step = step.getClass().getSimpleName();
+                    event.commit();
+                }
+
+                if (pendingSteps.decrementAndGet() == 0) {
+                    elapsedNanos = System.nanoTime() - startedAt;
+                    completion.complete(this);
+                }
+            }
+        }
+    }
+
+    private final class RootQueue {
+        private final int concurrency;
+
+        // depth first keeps the backlog small on wide trees
+        private final Deque<Runnable> pending = new ArrayDeque<>();
+
+        private int running;
+
+        private RootQueue(int concurrency) {
+            this.concurrency = concurrency;
+        }
+
+        private synchronized void enqueue(final Runnable work) {
+            pending.addLast(work);
+            dispatch();
+        }
+
+        private synchronized void finished() {
+            running--;
+            dispatch();
+        }
+
+        private void dispatch() {
+            while (running < concurrency && !pending.isEmpty()) {
+                final Runnable work = pending.pollLast();
+                running++;
+                try {
+                    executor.execute(() -> {
+                        try {
+                            work.run();
+                        } finally {
+                            finished();
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    // shutting down
+                    running--;
+                    pending.clear();
+                }
+            }
+        }
+    }
+}
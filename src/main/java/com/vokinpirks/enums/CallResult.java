@@ -5,5 +5,6 @@ public enum CallResult {
     TIMEOUT,
     IO_ERROR,
     OKWT_ERROR,
-    UNKNOWN_ERROR
+    UNKNOWN_ERROR,
+    CANCELLED
 }
@@ -0,0 +1,21 @@
+package com.vokinpirks.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// cheap to increment from many threads at once, reading it is the expensive part
+public class Counter {
+
+    private final LongAdder value = new LongAdder();
+
+    public void increment() {
+        value.increment();
+    }
+
+    public void add(final long amount) {
+        value.add(amount);
+    }
+
+    public long get() {
+        return value.sum();
+    }
+}
@@ -0,0 +1,106 @@
+package com.vokinpirks.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histogram in microseconds, with buckets laid out the way HdrHistogram does it: exact up to 32 microseconds,
+ * then every power of two is split into 32 buckets, so any percentile is off by about 3% at most. Recording is a few
+ * atomic increments and never allocates.
+ */
+public class Histogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+    // about 12 days, anything longer is a bug rather than a latency
+    private static final int MAX_EXPONENT = 40;
+
+    private static final long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(indexOf(MAX_VALUE) + 1);
+
+    private final LongAdder count = new LongAdder();
+
+    private final LongAdder sum = new LongAdder();
+
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0L);
+
+    public record Snapshot(long count, double mean, long p50, long p90, long p99, long max) {
+    }
+
+    public void record(final long micros) {
+        final long value = Math.max(0L, Math.min(micros, MAX_VALUE));
+        counts.incrementAndGet(indexOf(value));
+        count.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    /**
+     * @param startNanos what {@link System#nanoTime()} returned when the measured thing started
+     */
+    public void recordSince(final long startNanos) {
+        record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+    }
+
+    /**
+     * Not atomic in respect to concurrent recordings, which is fine for reporting.
+     */
+    public Snapshot snapshot() {
+        final long[] buckets = new long[counts.length()];
+        long total = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = counts.get(i);
+            total += buckets[i];
+        }
+
+        if (total == 0) {
+            return new Snapshot(0, 0.0, 0, 0, 0, 0);
+        }
+
+        // a bucket's upper bound may well be above anything recorded
+        final long maxValue = max.get();
+        return new Snapshot(total, (double) sum.sum() / count.sum(),
+                Math.min(percentile(buckets, total, 0.50), maxValue),
+                Math.min(percentile(buckets, total, 0.90), maxValue),
+                Math.min(percentile(buckets, total, 0.99), maxValue),
+                maxValue);
+    }
+
+    private static long percentile(final long[] buckets, final long total, final double quantile) {
+        final long rank = Math.max(1L, (long) Math.ceil(total * quantile));
+        long seen = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i];
+            if (seen >= rank) {
+                return highestOf(i);
+            }
+        }
+
+        return MAX_VALUE;
+    }
+
+    private static int indexOf(final long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+
+        final int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return SUB_BUCKET_COUNT * (shift + 1) + (int) (value >>> shift) - SUB_BUCKET_COUNT;
+    }
+
+    // the largest value that ends up in the bucket
+    private static long highestOf(final int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+
+        final int shift = index / SUB_BUCKET_COUNT - 1;
+        final long lowest = (long) (SUB_BUCKET_COUNT + index % SUB_BUCKET_COUNT) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
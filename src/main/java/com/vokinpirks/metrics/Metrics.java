@@ -0,0 +1,214 @@
+package com.vokinpirks.metrics;
+
+import com.vokinpirks.ConsoleLogger;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Counters, gauges and latency histograms of the extension, by name. Metrics are created on first use, so callers
+ * usually look them up once and keep the reference.
+ * <p>
+ * Once started, the registry dumps itself every minute to metrics.json, which always holds the latest values, and
+ * to metrics.csv, which keeps the history.
+ */
+public class Metrics {
+
+    private static final long DUMP_INTERVAL = 60_000L;
+
+    // the history is rolled over to metrics.csv.old at that size
+    private static final long MAX_CSV_SIZE = 8L * 1024 * 1024;
+
+    private static final String CSV_HEADER = "timestamp,name,type,value,count,mean_ms,p50_ms,p90_ms,p99_ms,max_ms";
+
+    private final ConsoleLogger logger;
+
+    // sorted, so that reports are easy to read
+    private final Map<String, Counter> counters = new ConcurrentSkipListMap<>();
+
+    private final Map<String, LongSupplier> gauges = new ConcurrentSkipListMap<>();
+
+    private final Map<String, Histogram> histograms = new ConcurrentSkipListMap<>();
+
+    private final long startedAt = System.currentTimeMillis();
+
+    private ScheduledExecutorService dumper;
+
+    private Path directory;
+
+    public Metrics(final ConsoleLogger logger) {
+        this.logger = logger;
+    }
+
+    public Counter counter(final String name) {
+        return counters.computeIfAbsent(name, key -> new Counter());
+    }
+
+    public Histogram histogram(final String name) {
+        return histograms.computeIfAbsent(name, key -> new Histogram());
+    }
+
+    /**
+     * @param value called whenever the metrics are reported, from any thread
+     */
+    public void gauge(final String name, final LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    /**
+     * Starts dumping the metrics into the directory periodically.
+     */
+    public synchronized void start(final Path directory) {
+        if (dumper != null) {
+            return;
+        }
+
+        this.directory = directory;
+        this.dumper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "bittable-metrics");
+            // must never keep Bitwig's JVM alive
+            thread.setDaemon(true);
+            return thread;
+        });
+        dumper.scheduleWithFixedDelay(this::dump, DUMP_INTERVAL, DUMP_INTERVAL, MILLISECONDS);
+    }
+
+    // stops dumping, the last values are dumped right away
+    public synchronized void shutdown() {
+        if (dumper == null) {
+            return;
+        }
+
+        dumper.shutdownNow();
+        dumper = null;
+        dump();
+    }
+
+    /**
+     * @return human readable report, a line per metric
+     */
+    public String summary() {
+        final double uptimeSeconds = Math.max(1L, System.currentTimeMillis() - startedAt) / 1000.0;
+        final StringBuilder summary = new StringBuilder();
+        summary.append(String.format("Metrics for the last %.0f s:", uptimeSeconds));
+
+        counters.forEach((name, counter) -> summary.append(String.format("%n  %s: %s (%.2f/s)",
+                name, counter.get(), counter.get() / uptimeSeconds)));
+        gauges.forEach((name, gauge) -> summary.append(String.format("%n  %s: %s", name, valueOf(name, gauge))));
+        histograms.forEach((name, histogram) -> {
+            final Histogram.Snapshot snapshot = histogram.snapshot();
+            summary.append(String.format("%n  %s: %s times, mean %.1f ms, p50 %.1f ms, p90 %.1f ms, p99 %.1f ms, max %.1f ms",
+                    name, snapshot.count(), snapshot.mean() / 1000.0, millis(snapshot.p50()), millis(snapshot.p90()),
+                    millis(snapshot.p99()), millis(snapshot.max())));
+        });
+
+        return summary.toString();
+    }
+
+    private synchronized void dump() {
+        try {
+            Files.createDirectories(directory);
+            final Instant now = Instant.now();
+            writeJson(directory.resolve("metrics.json"), now);
+            appendCsv(directory.resolve("metrics.csv"), now);
+        } catch (IOException | RuntimeException e) {
+            logger.error("Unable to dump metrics: %s", e.getMessage());
+        }
+    }
+
+    private void writeJson(final Path file, final Instant now) throws IOException {
+        final StringBuilder json = new StringBuilder();
+        // names are constants of the extension, nothing to escape
+        json.append("{\n  \"timestamp\": \"").append(now).append("\",\n");
+        json.append("  \"uptimeMillis\": ").append(System.currentTimeMillis() - startedAt).append(",\n");
+
+        json.append("  \"counters\": {");
+        appendJsonEntries(json, counters, counter -> Long.toString(counter.get()));
+        json.append("},\n  \"gauges\": {");
+        appendJsonEntries(json, gauges, gauge -> Long.toString(valueOf("", gauge)));
+        json.append("},\n  \"histograms\": {");
+        appendJsonEntries(json, histograms, histogram -> {
+            final Histogram.Snapshot snapshot = histogram.snapshot();
+            return String.format(Locale.ROOT,
+                    "{\"count\": %d, \"meanMillis\": %.3f, \"p50Millis\": %.3f, \"p90Millis\": %.3f, \"p99Millis\": %.3f, \"maxMillis\": %.3f}",
+                    snapshot.count(), snapshot.mean() / 1000.0, millis(snapshot.p50()), millis(snapshot.p90()),
+                    millis(snapshot.p99()), millis(snapshot.max()));
+        });
+        json.append("}\n}\n");
+
+        final Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.writeString(temp, json, UTF_8);
+        Files.move(temp, file, REPLACE_EXISTING, ATOMIC_MOVE);
+    }
+
+    private static <T> void appendJsonEntries(final StringBuilder json, final Map<String, T> metrics,
+                                              final Function<T, String> value) {
+        boolean first = true;
+        for (Map.Entry<String, T> metric : metrics.entrySet()) {
+            json.append(first ? "" : ",").append("\n    \"").append(metric.getKey()).append("\": ")
+                    .append(value.apply(metric.getValue()));
+            first = false;
+        }
+
+        if (!first) {
+            json.append("\n  ");
+        }
+    }
+
+    private void appendCsv(final Path file, final Instant now) throws IOException {
+        if (Files.exists(file) && Files.size(file) > MAX_CSV_SIZE) {
+            Files.move(file, file.resolveSibling(file.getFileName() + ".old"), REPLACE_EXISTING);
+        }
+
+        final boolean isNew = !Files.exists(file);
+        try (Writer out = Files.newBufferedWriter(file, UTF_8, CREATE, APPEND)) {
+            if (isNew) {
+                out.write(CSV_HEADER + "\n");
+            }
+
+            for (Map.Entry<String, Counter> counter : counters.entrySet()) {
+                out.write(String.format(Locale.ROOT, "%s,%s,counter,%d,,,,,,\n", now, counter.getKey(), counter.getValue().get()));
+            }
+            for (Map.Entry<String, LongSupplier> gauge : gauges.entrySet()) {
+                out.write(String.format(Locale.ROOT, "%s,%s,gauge,%d,,,,,,\n", now, gauge.getKey(), valueOf(gauge.getKey(), gauge.getValue())));
+            }
+            for (Map.Entry<String, Histogram> histogram : histograms.entrySet()) {
+                final Histogram.Snapshot snapshot = histogram.getValue().snapshot();
+                out.write(String.format(Locale.ROOT, "%s,%s,histogram,,%d,%.3f,%.3f,%.3f,%.3f,%.3f\n",
+                        now, histogram.getKey(), snapshot.count(), snapshot.mean() / 1000.0, millis(snapshot.p50()),
+                        millis(snapshot.p90()), millis(snapshot.p99()), millis(snapshot.max())));
+            }
+        }
+    }
+
+    // a broken gauge shouldn't break the whole report
+    private long valueOf(final String name, final LongSupplier gauge) {
+        try {
+            return gauge.getAsLong();
+        } catch (RuntimeException e) {
+            logger.debug("Unable to read the gauge %s: %s", name, e);
+            return -1L;
+        }
+    }
+
+    private static double millis(final long micros) {
+        return micros / 1000.0;
+    }
+}
@@ -4,8 +4,10 @@ import com.vokinpirks.enums.FileFormat;
 import lombok.experimental.UtilityClass;
 
 import java.nio.file.Path;
+import java.text.Normalizer;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.Locale;
 
 @UtilityClass
 public class Filename {
@@ -25,6 +27,18 @@ public class Filename {
         return result;
     }
 
+    /**
+     * The name without extension in a form that doesn't depend on case or on how the OS composes accented characters,
+     * e.g. macOS stores them decomposed.
+     */
+    public static String normalizedBaseName(final String filename) {
+        return normalized(withoutExtension(filename));
+    }
+
+    public static String normalized(final String name) {
+        return Normalizer.normalize(name, Normalizer.Form.NFC).toLowerCase(Locale.ROOT);
+    }
+
     public static String extensionOf(final String filename) {
         final var pos = filename.lastIndexOf(".");
 
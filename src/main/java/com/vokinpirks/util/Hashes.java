@@ -0,0 +1,60 @@
+package com.vokinpirks.util;
+
+import lombok.experimental.UtilityClass;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+
+@UtilityClass
+public class Hashes {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * A fast 64-bit content hash. Both checksums are backed by CPU intrinsics so this is
+     * bound by the disk rather than by hashing itself.
+     */
+    public static long contentHash(final Path file) throws IOException {
+        final CRC32C crc32c = new CRC32C();
+        final CRC32 crc32 = new CRC32();
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                crc32c.update(buffer.duplicate());
+                crc32.update(buffer);
+                buffer.clear();
+            }
+        }
+
+        return (crc32c.getValue() << 32) | crc32.getValue();
+    }
+
+    public static String sha1(final long contentHash, final long size, final List<String> strings) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+
+        digest.update(ByteBuffer.allocate(2 * Long.BYTES).putLong(contentHash).putLong(size).flip());
+        for (String s : strings) {
+            digest.update(s.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+        }
+
+        return HexFormat.of().formatHex(digest.digest());
+    }
+}
@@ -2,6 +2,7 @@ package com.vokinpirks.util;
 
 import lombok.experimental.UtilityClass;
 
+import java.nio.file.Path;
 import java.util.Locale;
 
 // https://stackoverflow.com/a/17506150
@@ -22,6 +23,30 @@ public class OS {
         }
     }
 
+    // where the extension keeps its own files (caches, index snapshots etc.), -Dbittable.data.dir overrides it
+    public static Path dataDirectory() {
+        final String override = System.getProperty("bittable.data.dir");
+        if (override != null && !override.isBlank()) {
+            return Path.of(override);
+        }
+
+        final String home = System.getProperty("user.home");
+
+        if (isWindows()) {
+            return Strings.optional(System.getenv("LOCALAPPDATA"))
+                    .map(Path::of)
+                    .orElse(Path.of(home, "AppData", "Local"))
+                    .resolve("BitTable");
+        } else if (isMac()) {
+            return Path.of(home, "Library", "Application Support", "BitTable");
+        } else {
+            return Strings.optional(System.getenv("XDG_DATA_HOME"))
+                    .map(Path::of)
+                    .orElse(Path.of(home, ".local", "share"))
+                    .resolve("bittable");
+        }
+    }
+
     private static boolean isWindows()
     {
         return OS.contains("win");
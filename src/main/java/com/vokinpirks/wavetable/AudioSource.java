@@ -0,0 +1,42 @@
+package com.vokinpirks.wavetable;
+
+/**
+ * Mono audio the processing reads from, either a mapped file or samples decoded by ffmpeg.
+ */
+public interface AudioSource {
+
+    long getFrames();
+
+    float frame(long index);
+
+    /**
+     * Decodes only the given range of frames.
+     */
+    float[] read(long from, int length);
+
+    /**
+     * @return the index of the first frame louder than the threshold, or -1 if there is nothing but silence
+     */
+    default long firstAbove(final float threshold) {
+        for (long i = 0; i < getFrames(); i++) {
+            if (Math.abs(frame(i)) > threshold) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * @return the index of the last frame louder than the threshold, or -1 if there is nothing but silence
+     */
+    default long lastAbove(final float threshold) {
+        for (long i = getFrames() - 1; i >= 0; i--) {
+            if (Math.abs(frame(i)) > threshold) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+}
@@ -0,0 +1,29 @@
+package com.vokinpirks.wavetable;
+
+import lombok.RequiredArgsConstructor;
+
+import java.util.Arrays;
+
+// samples that have been decoded into memory, only the first length of them are valid
+@RequiredArgsConstructor
+class DecodedAudio implements AudioSource {
+
+    private final float[] samples;
+
+    private final int length;
+
+    @Override
+    public long getFrames() {
+        return length;
+    }
+
+    @Override
+    public float frame(final long index) {
+        return samples[(int) index];
+    }
+
+    @Override
+    public float[] read(final long from, final int length) {
+        return Arrays.copyOfRange(samples, (int) from, (int) from + length);
+    }
+}
@@ -0,0 +1,62 @@
+package com.vokinpirks.wavetable;
+
+/**
+ * The per-sample loops of wavetable processing over primitive arrays.
+ * <p>
+ * There is an implementation on top of the Vector API, which is still an incubator module and only available
+ * when the JVM has been started with {@code --add-modules jdk.incubator.vector}, and a plain scalar one.
+ * The choice is made once at runtime, the scalar one can be forced with {@code -Dbittable.dsp.scalar=true}.
+ */
+public interface DspKernels {
+
+    DspKernels INSTANCE = select();
+
+    String name();
+
+    float peak(float[] samples, int offset, int length);
+
+    void scale(float[] samples, int offset, int length, float gain);
+
+    /**
+     * samples[offset + i] *= factors[i]
+     */
+    void multiply(float[] samples, int offset, float[] factors, int length);
+
+    // both resamplers map the first and the last samples of the source onto the ends of the target
+
+    void resampleLinear(float[] source, float[] target);
+
+    // Catmull-Rom
+    void resampleCubic(float[] source, float[] target);
+
+    static DspKernels scalar() {
+        return new ScalarKernels();
+    }
+
+    /**
+     * @return null if the Vector API isn't available in this JVM, or the build doesn't include the kernels (-Pvector)
+     */
+    static DspKernels vector() {
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) {
+            return null;
+        }
+
+        try {
+            // loaded by name so that nothing links against the incubator module unless it's there
+            return (DspKernels) Class.forName("com.vokinpirks.wavetable.VectorKernels")
+                    .getDeclaredConstructor()
+                    .newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+
+    private static DspKernels select() {
+        if (Boolean.getBoolean("bittable.dsp.scalar")) {
+            return scalar();
+        }
+
+        final DspKernels vector = vector();
+        return vector != null ? vector : scalar();
+    }
+}
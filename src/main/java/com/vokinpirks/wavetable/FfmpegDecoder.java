@@ -0,0 +1,149 @@
+package com.vokinpirks.wavetable;
+
+import com.vokinpirks.ConsoleLogger;
+import com.vokinpirks.ProcessSupervisor;
+import com.vokinpirks.enums.CallResult;
+import com.vokinpirks.util.Processes;
+import lombok.experimental.UtilityClass;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Has ffmpeg decode a file to raw 32-bit float samples on its stdout and collects them as they come, so decoding and
+ * reading overlap and nothing is written to disk in between.
+ */
+@UtilityClass
+class FfmpegDecoder {
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    // 64 MB of floats, about six minutes at 44.1 kHz, anything longer is left to okwt rather than kept on the heap
+    private static final int MAX_DECODED_SAMPLES = 16 * 1024 * 1024;
+
+    // only the end of what ffmpeg has complained about is kept for the error message
+    private static final int MAX_ERROR_LENGTH = 4096;
+
+    /**
+     * @param limit the number of samples after which the rest of the file is of no interest, ffmpeg is stopped then
+     */
+    static DecodedAudio decode(final String ffmpegPath, final Path inFile, final long limit,
+                               final ProcessSupervisor supervisor, final ConsoleLogger logger) throws IOException {
+        final List<String> command = List.of(
+                Path.of(ffmpegPath).resolve("ffmpeg").toString(),
+                "-nostdin",
+                "-loglevel", "error",
+                "-i", inFile.toString(),
+                // the sample rate is kept, a wavetable doesn't care about it
+                "-f", "f32le",
+                "-ac", "1",
+                "-"
+        );
+        logger.debug("Decoding %s with %s", inFile, command);
+
+        final Process process = new ProcessBuilder(command).start();
+        // a corrupt or huge file may have ffmpeg report every broken frame, unless stderr is read
+        // ffmpeg would eventually block on it
+        final StringBuilder errors = new StringBuilder();
+        final Thread errorReader = new Thread(() -> readTail(process.getErrorStream(), errors), "bittable-ffmpeg-stderr");
+        errorReader.setDaemon(true);
+        errorReader.start();
+
+        // one more sample than allowed tells that the file is too long
+        final boolean isCapped = limit > MAX_DECODED_SAMPLES;
+        final int maxSamples = isCapped ? MAX_DECODED_SAMPLES + 1 : (int) limit;
+
+        float[] samples = new float[(int) Math.min(maxSamples, Wavetable.MAX_FRAMES * Wavetable.FRAME_SIZE)];
+        int length = 0;
+        final ProcessSupervisor.Watch watch = supervisor.watch(process.toHandle(), supervisor.timeoutFor(inFile));
+        try (watch; InputStream stdout = process.getInputStream()) {
+            final byte[] chunk = new byte[CHUNK_SIZE];
+            final ByteBuffer buffer = ByteBuffer.wrap(chunk).order(ByteOrder.LITTLE_ENDIAN);
+            // a sample may be split between two reads
+            int pending = 0;
+            int read;
+            while (length < maxSamples && (read = stdout.read(chunk, pending, chunk.length - pending)) != -1) {
+                final int available = pending + read;
+                final int count = Math.min(available / 4, maxSamples - length);
+                if (length + count > samples.length) {
+                    samples = Arrays.copyOf(samples, (int) Math.min(maxSamples, Math.max(length + count, samples.length * 2L)));
+                }
+                for (int i = 0; i < count; i++) {
+                    samples[length++] = buffer.getFloat(i * 4);
+                }
+
+                pending = available - count * 4;
+                System.arraycopy(chunk, count * 4, chunk, 0, pending);
+            }
+
+            if (length >= maxSamples) {
+                // there is enough, the rest isn't decoded at all
+                process.destroy();
+            }
+            process.waitFor();
+        } catch (IOException e) {
+            // reading may fail once ffmpeg is killed
+            if (watch.outcome() == null) {
+                throw e;
+            }
+        } catch (InterruptedException e) {
+            Processes.destroyTree(process.toHandle());
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Interrupted while decoding " + inFile);
+        }
+
+        if (watch.outcome() == CallResult.CANCELLED) {
+            throw new CancellationException("Decoding of " + inFile + " has been cancelled");
+        }
+        if (watch.outcome() == CallResult.TIMEOUT) {
+            throw new InterruptedIOException("ffmpeg hasn't finished decoding " + inFile + " in time");
+        }
+        if (isCapped && length == maxSamples) {
+            throw new UnsupportedAudioException(String.format("%s is too long to be decoded in memory", inFile));
+        }
+
+        if (length < maxSamples && process.exitValue() != 0) {
+            try {
+                // stderr is closed along with the process, this doesn't take long
+                errorReader.join(1000L);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            final String message;
+            synchronized (errors) {
+                message = errors.toString().trim();
+            }
+            throw new IOException(String.format("ffmpeg has failed to decode %s with code %s: %s", inFile, process.exitValue(), message));
+        }
+
+        logger.debug("%s samples of %s have been decoded by ffmpeg", length, inFile);
+        return new DecodedAudio(samples, length);
+    }
+
+    // reads the stream to its end, only the last MAX_ERROR_LENGTH characters are kept
+    private static void readTail(final InputStream stream, final StringBuilder tail) {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                synchronized (tail) {
+                    tail.append(line).append('\n');
+                    if (tail.length() > MAX_ERROR_LENGTH) {
+                        tail.delete(0, tail.length() - MAX_ERROR_LENGTH);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // the process has been killed
+        }
+    }
+}
@@ -0,0 +1,320 @@
+package com.vokinpirks.wavetable;
+
+import lombok.Getter;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads PCM and IEEE float WAV and AIFF files, channels are mixed down to mono.
+ * <p>
+ * The sample data is memory mapped rather than read, so only the pages of the frames that are actually asked for
+ * are ever loaded, and they stay off the heap. That matters for long field recordings and bounces of which only a
+ * few seconds end up in a table.
+ */
+public class PcmReader implements AudioSource, Closeable {
+
+    private static final int FORMAT_PCM = 1;
+
+    private static final int FORMAT_FLOAT = 3;
+
+    private static final int FORMAT_EXTENSIBLE = 0xFFFE;
+
+    // a whole number of frames always fits, and it stays well below the 2 GB a single mapping can cover
+    private static final long SEGMENT_BYTES = 1L << 30;
+
+    private enum Encoding { UNSIGNED, SIGNED, FLOAT }
+
+    private final FileChannel channel;
+
+    private final long dataStart;
+
+    private final Encoding encoding;
+
+    private final ByteOrder order;
+
+    @Getter
+    private final int channels;
+
+    @Getter
+    private final int sampleRate;
+
+    private final int bytesPerSample;
+
+    private final int frameBytes;
+
+    private final float channelGain;
+
+    private final long framesPerSegment;
+
+    @Getter
+    private final long frames;
+
+    private final ByteBuffer[] segments;
+
+    private PcmReader(final FileChannel channel, final long dataStart, final long dataSize, final Encoding encoding,
+                      final ByteOrder order, final int channels, final int sampleRate, final int bitsPerSample)
+            throws UnsupportedAudioException {
+        if (channels < 1) {
+            throw new UnsupportedAudioException("Invalid number of channels: " + channels);
+        }
+
+        final boolean supported = switch (encoding) {
+            case UNSIGNED -> bitsPerSample == 8;
+            case SIGNED -> bitsPerSample == 8 || bitsPerSample == 16 || bitsPerSample == 24 || bitsPerSample == 32;
+            case FLOAT -> bitsPerSample == 32 || bitsPerSample == 64;
+        };
+        if (!supported) {
+            throw new UnsupportedAudioException(String.format("Unsupported sample format %s with %s bits", encoding, bitsPerSample));
+        }
+
+        this.channel = channel;
+        this.dataStart = dataStart;
+        this.encoding = encoding;
+        this.order = order;
+        this.channels = channels;
+        this.sampleRate = sampleRate;
+        this.bytesPerSample = bitsPerSample / 8;
+        this.frameBytes = bytesPerSample * channels;
+        this.channelGain = 1.0f / channels;
+        this.framesPerSegment = SEGMENT_BYTES / frameBytes;
+        this.frames = dataSize / frameBytes;
+        this.segments = new ByteBuffer[(int) ((frames + framesPerSegment - 1) / framesPerSegment)];
+    }
+
+    public static PcmReader open(final Path file) throws IOException {
+        final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            final ByteBuffer header = readAt(channel, 0, 12).order(ByteOrder.LITTLE_ENDIAN);
+            final int id = header.getInt(0);
+            final int type = header.getInt(8);
+
+            if (id == fourCc("RIFF") && type == fourCc("WAVE")) {
+                return openWav(file, channel);
+            }
+            if (id == fourCc("FORM") && (type == fourCc("AIFF") || type == fourCc("AIFC"))) {
+                return openAiff(file, channel, type == fourCc("AIFC"));
+            }
+
+            throw new UnsupportedAudioException(file + " is neither a WAVE nor an AIFF file");
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static PcmReader openWav(final Path file, final FileChannel channel) throws IOException {
+        final long size = channel.size();
+
+        int format = -1;
+        int channels = 0;
+        int sampleRate = 0;
+        int bitsPerSample = 0;
+
+        long position = 12;
+        while (position + 8 <= size) {
+            final ByteBuffer chunk = readAt(channel, position, 8).order(ByteOrder.LITTLE_ENDIAN);
+            final int id = chunk.getInt();
+            final long chunkStart = position + 8;
+            // some writers leave the size of the data chunk unset when streaming
+            final long chunkSize = Math.min(Integer.toUnsignedLong(chunk.getInt()), size - chunkStart);
+
+            if (id == fourCc("fmt ")) {
+                if (chunkSize < 16) {
+                    throw new IOException(file + " has a broken format chunk");
+                }
+                final ByteBuffer fmt = readAt(channel, chunkStart, (int) Math.min(chunkSize, 26)).order(ByteOrder.LITTLE_ENDIAN);
+                format = Short.toUnsignedInt(fmt.getShort(0));
+                channels = Short.toUnsignedInt(fmt.getShort(2));
+                sampleRate = fmt.getInt(4);
+                bitsPerSample = Short.toUnsignedInt(fmt.getShort(14));
+                if (format == FORMAT_EXTENSIBLE && chunkSize >= 26) {
+                    // the first two bytes of the sub format GUID are the actual format
+                    format = Short.toUnsignedInt(fmt.getShort(24));
+                }
+            } else if (id == fourCc("data")) {
+                if (format == -1) {
+                    throw new UnsupportedAudioException(file + " has no format chunk before the data");
+                }
+
+                final Encoding encoding = switch (format) {
+                    // 8-bit samples are unsigned
+                    case FORMAT_PCM -> bitsPerSample == 8 ? Encoding.UNSIGNED : Encoding.SIGNED;
+                    case FORMAT_FLOAT -> Encoding.FLOAT;
+                    default -> throw new UnsupportedAudioException(String.format("Unsupported sample format %s", format));
+                };
+                return new PcmReader(channel, chunkStart, chunkSize, encoding, ByteOrder.LITTLE_ENDIAN, channels, sampleRate,
+                        bitsPerSample);
+            }
+
+            // chunks are word aligned
+            position = chunkStart + chunkSize + (chunkSize & 1);
+        }
+
+        throw new UnsupportedAudioException(file + " has no data chunk");
+    }
+
+    private static PcmReader openAiff(final Path file, final FileChannel channel, final boolean compressed) throws IOException {
+        final long size = channel.size();
+
+        int channels = 0;
+        int sampleRate = 0;
+        long declaredFrames = -1;
+        int bitsPerSample = 0;
+        Encoding encoding = Encoding.SIGNED;
+        ByteOrder order = ByteOrder.BIG_ENDIAN;
+
+        long position = 12;
+        while (position + 8 <= size) {
+            final ByteBuffer chunk = readAt(channel, position, 8);
+            final int id = chunk.order(ByteOrder.LITTLE_ENDIAN).getInt(0);
+            final long chunkStart = position + 8;
+            final long chunkSize = Math.min(Integer.toUnsignedLong(chunk.order(ByteOrder.BIG_ENDIAN).getInt(4)), size - chunkStart);
+
+            if (id == fourCc("COMM")) {
+                if (chunkSize < 18) {
+                    throw new IOException(file + " has a broken COMM chunk");
+                }
+                final ByteBuffer comm = readAt(channel, chunkStart, (int) Math.min(chunkSize, 22)).order(ByteOrder.BIG_ENDIAN);
+                channels = Short.toUnsignedInt(comm.getShort(0));
+                declaredFrames = Integer.toUnsignedLong(comm.getInt(2));
+                bitsPerSample = Short.toUnsignedInt(comm.getShort(6));
+                sampleRate = (int) Math.round(extendedAt(comm, 8));
+
+                if (compressed && chunkSize >= 22) {
+                    final int compression = comm.order(ByteOrder.LITTLE_ENDIAN).getInt(18);
+                    if (compression == fourCc("sowt")) {
+                        order = ByteOrder.LITTLE_ENDIAN;
+                    } else if (compression == fourCc("fl32") || compression == fourCc("FL32")
+                            || compression == fourCc("fl64") || compression == fourCc("FL64")) {
+                        encoding = Encoding.FLOAT;
+                    } else if (compression != fourCc("NONE")) {
+                        throw new UnsupportedAudioException(String.format("%s is compressed with %s", file,
+                                new String(new byte[]{comm.get(18), comm.get(19), comm.get(20), comm.get(21)})));
+                    }
+                }
+            } else if (id == fourCc("SSND")) {
+                if (declaredFrames == -1) {
+                    throw new UnsupportedAudioException(file + " has no COMM chunk before the sound data");
+                }
+
+                // the offset pads the samples for block aligned access, it's almost always zero
+                final long offset = Integer.toUnsignedLong(readAt(channel, chunkStart, 8).order(ByteOrder.BIG_ENDIAN).getInt(0));
+                final long dataStart = chunkStart + 8 + offset;
+                // sample sizes are rounded up to whole bytes, i.e. 12-bit samples are stored as 16-bit ones
+                final int storedBits = (bitsPerSample + 7) / 8 * 8;
+                final int frameBytes = Math.max(1, storedBits / 8 * channels);
+                final long dataSize = Math.max(0, Math.min(chunkSize - 8 - offset, declaredFrames * frameBytes));
+                return new PcmReader(channel, dataStart, dataSize, encoding, order, channels, sampleRate, storedBits);
+            }
+
+            position = chunkStart + chunkSize + (chunkSize & 1);
+        }
+
+        throw new UnsupportedAudioException(file + " has no SSND chunk");
+    }
+
+    // the frame mixed down to mono
+    @Override
+    public float frame(final long index) {
+        final ByteBuffer segment = segment((int) (index / framesPerSegment));
+        int offset = (int) (index % framesPerSegment) * frameBytes;
+
+        float sum = 0.0f;
+        for (int channel = 0; channel < channels; channel++, offset += bytesPerSample) {
+            sum += sampleAt(segment, offset);
+        }
+
+        return sum * channelGain;
+    }
+
+    @Override
+    public float[] read(final long from, final int length) {
+        final float[] samples = new float[length];
+        for (int i = 0; i < length; i++) {
+            samples[i] = frame(from + i);
+        }
+
+        return samples;
+    }
+
+    /**
+     * The mapped segments stay valid until they are garbage collected, there is no way to unmap them explicitly.
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    // mapped on first use, a trimmed short range touches a single segment
+    private ByteBuffer segment(final int index) {
+        ByteBuffer segment = segments[index];
+        if (segment == null) {
+            final long start = index * framesPerSegment * frameBytes;
+            final long length = Math.min(framesPerSegment, frames - index * framesPerSegment) * frameBytes;
+            try {
+                segment = channel.map(FileChannel.MapMode.READ_ONLY, dataStart + start, length).order(order);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            segments[index] = segment;
+        }
+
+        return segment;
+    }
+
+    private float sampleAt(final ByteBuffer data, final int offset) {
+        if (encoding == Encoding.FLOAT) {
+            return bytesPerSample == 4 ? data.getFloat(offset) : (float) data.getDouble(offset);
+        }
+        if (encoding == Encoding.UNSIGNED) {
+            return (Byte.toUnsignedInt(data.get(offset)) - 128) / 128.0f;
+        }
+
+        return switch (bytesPerSample) {
+            case 1 -> data.get(offset) / 128.0f;
+            case 2 -> data.getShort(offset) / 32768.0f;
+            case 3 -> {
+                final int value = order == ByteOrder.LITTLE_ENDIAN
+                        ? Byte.toUnsignedInt(data.get(offset)) | Byte.toUnsignedInt(data.get(offset + 1)) << 8 | data.get(offset + 2) << 16
+                        : data.get(offset) << 16 | Byte.toUnsignedInt(data.get(offset + 1)) << 8 | Byte.toUnsignedInt(data.get(offset + 2));
+                yield value / 8388608.0f;
+            }
+            default -> data.getInt(offset) / 2147483648.0f;
+        };
+    }
+
+    private static ByteBuffer readAt(final FileChannel channel, final long position, final int length) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Unexpected end of file at " + (position + buffer.position()));
+            }
+        }
+
+        return buffer.flip();
+    }
+
+    // an 80-bit IEEE 754 extended float: sign and a 15-bit exponent, then a 64-bit mantissa with an explicit integer bit
+    private static double extendedAt(final ByteBuffer buffer, final int offset) {
+        final int exponent = buffer.getShort(offset) & 0x7FFF;
+        final long mantissa = buffer.getLong(offset + 2);
+        if (exponent == 0 && mantissa == 0) {
+            return 0.0;
+        }
+
+        final double value = Math.scalb((double) (mantissa >>> 11), exponent - 16383 - 52);
+        return buffer.getShort(offset) < 0 ? -value : value;
+    }
+
+    static int fourCc(final String id) {
+        return id.charAt(0) | id.charAt(1) << 8 | id.charAt(2) << 16 | id.charAt(3) << 24;
+    }
+}
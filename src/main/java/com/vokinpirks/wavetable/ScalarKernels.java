@@ -0,0 +1,95 @@
+package com.vokinpirks.wavetable;
+
+class ScalarKernels implements DspKernels {
+
+    @Override
+    public String name() {
+        return "scalar";
+    }
+
+    @Override
+    public float peak(final float[] samples, final int offset, final int length) {
+        float peak = 0.0f;
+        for (int i = offset; i < offset + length; i++) {
+            peak = Math.max(peak, Math.abs(samples[i]));
+        }
+
+        return peak;
+    }
+
+    @Override
+    public void scale(final float[] samples, final int offset, final int length, final float gain) {
+        for (int i = offset; i < offset + length; i++) {
+            samples[i] *= gain;
+        }
+    }
+
+    @Override
+    public void multiply(final float[] samples, final int offset, final float[] factors, final int length) {
+        for (int i = 0; i < length; i++) {
+            samples[offset + i] *= factors[i];
+        }
+    }
+
+    @Override
+    public void resampleLinear(final float[] source, final float[] target) {
+        resampleLinear(source, target, 0, target.length);
+    }
+
+    @Override
+    public void resampleCubic(final float[] source, final float[] target) {
+        resampleCubic(source, target, 0, target.length);
+    }
+
+    // the vector implementation handles the edges with these
+
+    static void resampleLinear(final float[] source, final float[] target, final int from, final int to) {
+        if (source.length == 1 || target.length == 1) {
+            for (int i = from; i < to; i++) {
+                target[i] = source[0];
+            }
+            return;
+        }
+
+        final double step = step(source, target);
+        for (int i = from; i < to; i++) {
+            final double position = i * step;
+            final int index = Math.min((int) position, source.length - 2);
+            final float fraction = (float) (position - index);
+            target[i] = source[index] + (source[index + 1] - source[index]) * fraction;
+        }
+    }
+
+    static void resampleCubic(final float[] source, final float[] target, final int from, final int to) {
+        if (source.length < 2 || target.length == 1) {
+            resampleLinear(source, target, from, to);
+            return;
+        }
+
+        final double step = step(source, target);
+        final int last = source.length - 1;
+        for (int i = from; i < to; i++) {
+            final double position = i * step;
+            final int index = Math.min((int) position, last - 1);
+            final float t = (float) (position - index);
+
+            // the edges are extended by repeating the outermost samples
+            final float p0 = source[Math.max(index - 1, 0)];
+            final float p1 = source[index];
+            final float p2 = source[index + 1];
+            final float p3 = source[Math.min(index + 2, last)];
+            target[i] = catmullRom(p0, p1, p2, p3, t);
+        }
+    }
+
+    static float catmullRom(final float p0, final float p1, final float p2, final float p3, final float t) {
+        final float a = -0.5f * p0 + 1.5f * p1 - 1.5f * p2 + 0.5f * p3;
+        final float b = p0 - 2.5f * p1 + 2.0f * p2 - 0.5f * p3;
+        final float c = -0.5f * p0 + 0.5f * p2;
+        return ((a * t + b) * t + c) * t + p1;
+    }
+
+    static double step(final float[] source, final float[] target) {
+        return (double) (source.length - 1) / (target.length - 1);
+    }
+}
@@ -0,0 +1,11 @@
+package com.vokinpirks.wavetable;
+
+import java.io.IOException;
+
+// the file is fine, there is just no built-in support for it, okwt may still be able to handle it
+public class UnsupportedAudioException extends IOException {
+
+    public UnsupportedAudioException(String message) {
+        super(message);
+    }
+}
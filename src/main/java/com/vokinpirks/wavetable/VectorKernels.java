@@ -0,0 +1,153 @@
+package com.vokinpirks.wavetable;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Only ever loaded through {@link DspKernels#vector()}, and only part of the build with the vector profile.
+ */
+class VectorKernels implements DspKernels {
+
+    private static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED;
+
+    // the same shape, hence the same number of lanes
+    private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+
+    private static final int LANES = FLOATS.length();
+
+    // 0, 1, 2, ...
+    private static final FloatVector IOTA = FloatVector.fromArray(FLOATS, iota(), 0);
+
+    @Override
+    public String name() {
+        return "vector (" + LANES + " lanes)";
+    }
+
+    @Override
+    public float peak(final float[] samples, final int offset, final int length) {
+        final int end = offset + length;
+        final int vectorEnd = offset + FLOATS.loopBound(length);
+
+        FloatVector peaks = FloatVector.zero(FLOATS);
+        int i = offset;
+        for (; i < vectorEnd; i += LANES) {
+            peaks = peaks.max(FloatVector.fromArray(FLOATS, samples, i).abs());
+        }
+
+        float peak = peaks.reduceLanes(VectorOperators.MAX);
+        for (; i < end; i++) {
+            peak = Math.max(peak, Math.abs(samples[i]));
+        }
+
+        return peak;
+    }
+
+    @Override
+    public void scale(final float[] samples, final int offset, final int length, final float gain) {
+        final int end = offset + length;
+        final int vectorEnd = offset + FLOATS.loopBound(length);
+
+        int i = offset;
+        for (; i < vectorEnd; i += LANES) {
+            FloatVector.fromArray(FLOATS, samples, i).mul(gain).intoArray(samples, i);
+        }
+
+        for (; i < end; i++) {
+            samples[i] *= gain;
+        }
+    }
+
+    @Override
+    public void multiply(final float[] samples, final int offset, final float[] factors, final int length) {
+        final int vectorEnd = FLOATS.loopBound(length);
+
+        int i = 0;
+        for (; i < vectorEnd; i += LANES) {
+            FloatVector.fromArray(FLOATS, samples, offset + i)
+                    .mul(FloatVector.fromArray(FLOATS, factors, i))
+                    .intoArray(samples, offset + i);
+        }
+
+        for (; i < length; i++) {
+            samples[offset + i] *= factors[i];
+        }
+    }
+
+    @Override
+    public void resampleLinear(final float[] source, final float[] target) {
+        if (source.length < 3 || target.length < 2) {
+            ScalarKernels.resampleLinear(source, target, 0, target.length);
+            return;
+        }
+
+        final double step = ScalarKernels.step(source, target);
+        final FloatVector laneSteps = IOTA.mul((float) step);
+        final int[] offsets = new int[LANES];
+
+        int i = 0;
+        // stops before any lane could read past the source, the scalar loop does the rest
+        for (; i + LANES <= target.length && (i + LANES - 1) * step < source.length - 2; i += LANES) {
+            // split into an integer base and small per-lane positions, floats alone are too coarse for long sources
+            final double position = i * step;
+            final int base = (int) position;
+            final FloatVector lanePositions = laneSteps.add((float) (position - base));
+            final IntVector laneOffsets = (IntVector) lanePositions.convertShape(VectorOperators.F2I, INTS, 0);
+            final FloatVector fractions = lanePositions.sub((FloatVector) laneOffsets.convertShape(VectorOperators.I2F, FLOATS, 0));
+
+            laneOffsets.intoArray(offsets, 0);
+            final FloatVector left = FloatVector.fromArray(FLOATS, source, base, offsets, 0);
+            final FloatVector right = FloatVector.fromArray(FLOATS, source, base + 1, offsets, 0);
+            right.sub(left).fma(fractions, left).intoArray(target, i);
+        }
+
+        ScalarKernels.resampleLinear(source, target, i, target.length);
+    }
+
+    @Override
+    public void resampleCubic(final float[] source, final float[] target) {
+        if (source.length < 4 || target.length < 2) {
+            ScalarKernels.resampleCubic(source, target, 0, target.length);
+            return;
+        }
+
+        final double step = ScalarKernels.step(source, target);
+        final FloatVector laneSteps = IOTA.mul((float) step);
+        final int[] offsets = new int[LANES];
+
+        // the first samples need the left edge extended, the scalar loop handles them
+        int i = Math.min((int) Math.ceil(1.0 / step), target.length);
+        ScalarKernels.resampleCubic(source, target, 0, i);
+
+        for (; i + LANES <= target.length && (i + LANES - 1) * step < source.length - 3; i += LANES) {
+            final double position = i * step;
+            final int base = (int) position;
+            final FloatVector lanePositions = laneSteps.add((float) (position - base));
+            final IntVector laneOffsets = (IntVector) lanePositions.convertShape(VectorOperators.F2I, INTS, 0);
+            final FloatVector t = lanePositions.sub((FloatVector) laneOffsets.convertShape(VectorOperators.I2F, FLOATS, 0));
+
+            laneOffsets.intoArray(offsets, 0);
+            final FloatVector p0 = FloatVector.fromArray(FLOATS, source, base - 1, offsets, 0);
+            final FloatVector p1 = FloatVector.fromArray(FLOATS, source, base, offsets, 0);
+            final FloatVector p2 = FloatVector.fromArray(FLOATS, source, base + 1, offsets, 0);
+            final FloatVector p3 = FloatVector.fromArray(FLOATS, source, base + 2, offsets, 0);
+
+            final FloatVector a = p0.mul(-0.5f).add(p1.mul(1.5f)).sub(p2.mul(1.5f)).add(p3.mul(0.5f));
+            final FloatVector b = p0.sub(p1.mul(2.5f)).add(p2.mul(2.0f)).sub(p3.mul(0.5f));
+            final FloatVector c = p2.sub(p0).mul(0.5f);
+            a.fma(t, b).fma(t, c).fma(t, p1).intoArray(target, i);
+        }
+
+        ScalarKernels.resampleCubic(source, target, i, target.length);
+    }
+
+    private static float[] iota() {
+        final float[] iota = new float[LANES];
+        for (int i = 0; i < LANES; i++) {
+            iota[i] = i;
+        }
+
+        return iota;
+    }
+}
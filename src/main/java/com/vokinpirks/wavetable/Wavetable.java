@@ -0,0 +1,31 @@
+package com.vokinpirks.wavetable;
+
+import lombok.Getter;
+
+/**
+ * Frames of a single cycle each, stored back to back in one mono buffer.
+ */
+@Getter
+public class Wavetable {
+
+    public static final int FRAME_SIZE = 2048;
+
+    public static final int MAX_FRAMES = 256;
+
+    private final float[] samples;
+
+    private final int frameCount;
+
+    public Wavetable(float[] samples) {
+        if (samples.length == 0 || samples.length % FRAME_SIZE != 0) {
+            throw new IllegalArgumentException("The number of samples must be a multiple of " + FRAME_SIZE);
+        }
+
+        this.samples = samples;
+        this.frameCount = samples.length / FRAME_SIZE;
+    }
+
+    public int frameOffset(final int frame) {
+        return frame * FRAME_SIZE;
+    }
+}
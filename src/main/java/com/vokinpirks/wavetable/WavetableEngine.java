@@ -0,0 +1,195 @@
+package com.vokinpirks.wavetable;
+
+import com.vokinpirks.ConsoleLogger;
+import com.vokinpirks.ConversionCommandBuilder;
+import com.vokinpirks.ProcessSupervisor;
+import com.vokinpirks.enums.CallResult;
+import com.vokinpirks.enums.FileFormat;
+import com.vokinpirks.enums.ResizeAlgorithm;
+import com.vokinpirks.util.Filename;
+import lombok.RequiredArgsConstructor;
+import lombok.Setter;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Does the most common conversions in-process, which saves the start-up of the Python interpreter okwt needs,
+ * that alone often takes longer than the conversion itself. Anything else is left to okwt.
+ */
+@RequiredArgsConstructor
+public class WavetableEngine {
+
+    private static final Set<ResizeAlgorithm> RESIZE_ALGORITHMS = Set.of(
+            ResizeAlgorithm.truncate, ResizeAlgorithm.linear, ResizeAlgorithm.bicubic
+    );
+
+    private final ConsoleLogger logger;
+
+    // watches ffmpeg
+    private final ProcessSupervisor supervisor;
+
+    @Setter
+    private volatile boolean enabled;
+
+    /**
+     * @param ffmpegPath the directory of ffmpeg, which decodes whatever can't be read directly
+     */
+    public boolean supports(final ConversionCommandBuilder options, final Path inFile, final Path outFile,
+                            final Optional<String> ffmpegPath) {
+        if (!enabled || options == null) {
+            return false;
+        }
+
+        final FileFormat inFormat = formatOf(inFile);
+        final FileFormat outFormat = formatOf(outFile);
+
+        return inFormat != null
+                && (!inFormat.doesRequireFfmpeg() || inFormat == FileFormat.AIFF || ffmpegPath.isPresent())
+                && (outFormat == FileFormat.WAV || outFormat == FileFormat.WT)
+                && RESIZE_ALGORITHMS.contains(options.getResizeAlgorithm())
+                && (options.getFrameSize() == null || options.getFrameSize() == Wavetable.FRAME_SIZE);
+    }
+
+    /**
+     * @return null if the input turns out to be something only okwt can handle
+     */
+    public CallResult convert(final ConversionCommandBuilder options, final Path inFile, final Path outFile,
+                              final Optional<String> ffmpegPath) {
+        final long start = System.currentTimeMillis();
+
+        final Wavetable wavetable;
+        try {
+            final FileFormat inFormat = formatOf(inFile);
+            if (inFormat == FileFormat.WAV || inFormat == FileFormat.AIFF) {
+                wavetable = readAndProcess(options, inFile, ffmpegPath);
+            } else {
+                wavetable = decodeAndProcess(options, inFile, ffmpegPath.orElseThrow());
+            }
+        } catch (UnsupportedAudioException e) {
+            logger.debug("Falling back to okwt: %s", e.getMessage());
+            return null;
+        } catch (CancellationException e) {
+            logger.debug(e.getMessage());
+            return CallResult.CANCELLED;
+        } catch (InterruptedIOException e) {
+            logger.error(e.getMessage());
+            return CallResult.TIMEOUT;
+        } catch (IOException | UncheckedIOException e) {
+            logger.error("Unable to read %s: %s", inFile, e.getMessage());
+            return CallResult.IO_ERROR;
+        }
+
+        if (wavetable == null) {
+            logger.error("%s contains no audio", inFile);
+            return CallResult.OKWT_ERROR;
+        }
+
+        try {
+            if (formatOf(outFile) == FileFormat.WT) {
+                WavetableWriter.writeWt(wavetable, outFile);
+            } else {
+                WavetableWriter.writeWav(wavetable, outFile);
+            }
+        } catch (IOException e) {
+            logger.error("Unable to write %s: %s", outFile, e.getMessage());
+            return CallResult.IO_ERROR;
+        }
+
+        logger.debug("%s has been converted in-process in %s ms, %s frames", inFile, System.currentTimeMillis() - start,
+                wavetable.getFrameCount());
+        return CallResult.SUCCESS;
+    }
+
+    private Wavetable readAndProcess(final ConversionCommandBuilder options, final Path inFile,
+                                     final Optional<String> ffmpegPath) throws IOException {
+        try (PcmReader audio = PcmReader.open(inFile)) {
+            return audio.getFrames() == 0 ? null : process(options, audio);
+        } catch (UnsupportedAudioException e) {
+            // i.e. compressed AIFC, ffmpeg knows it
+            if (ffmpegPath.isPresent()) {
+                logger.debug("Decoding with ffmpeg: %s", e.getMessage());
+                return decodeAndProcess(options, inFile, ffmpegPath.get());
+            }
+            throw e;
+        }
+    }
+
+    // ffmpeg's output is processed right away, there is no intermediate file
+    private Wavetable decodeAndProcess(final ConversionCommandBuilder options, final Path inFile,
+                                       final String ffmpegPath) throws IOException {
+        final DecodedAudio audio = FfmpegDecoder.decode(ffmpegPath, inFile, decodeLimit(options), supervisor, logger);
+        return audio.getFrames() == 0 ? null : process(options, audio);
+    }
+
+    // truncating keeps the beginning only, the rest doesn't have to be decoded at all
+    private static long decodeLimit(final ConversionCommandBuilder options) {
+        if (options.getResizeAlgorithm() != ResizeAlgorithm.truncate || isOn(options.getTrim())) {
+            return Long.MAX_VALUE;
+        }
+
+        return (long) maxFramesOf(options) * Wavetable.FRAME_SIZE;
+    }
+
+    // same order as okwt applies them in
+    static Wavetable process(final ConversionCommandBuilder options, final AudioSource audio) {
+        long from = 0;
+        long length = audio.getFrames();
+        if (isOn(options.getTrim())) {
+            // drops silence from both ends, nothing but silence is kept as it is rather than produce an empty table
+            final float threshold = options.getTrimThreshold().floatValue();
+            final long first = audio.firstAbove(threshold);
+            if (first != -1) {
+                from = first;
+                length = audio.lastAbove(threshold) - first + 1;
+            }
+        }
+
+        final int maxFrames = maxFramesOf(options);
+        // only the part of the file that ends up in the table is decoded
+        final Wavetable wavetable = switch (options.getResizeAlgorithm()) {
+            case linear -> WavetableProcessor.linear(audio, from, length, maxFrames);
+            case bicubic -> WavetableProcessor.bicubic(audio, from, length, maxFrames);
+            default -> WavetableProcessor.truncate(audio, from, length, maxFrames);
+        };
+
+        if (isOn(options.getShuffle())) {
+            WavetableProcessor.shuffle(wavetable, options.getShuffleChunks(), new Random());
+        }
+
+        if (options.getFade() != null && options.getFade() > 0) {
+            WavetableProcessor.fade(wavetable, options.getFade());
+        }
+
+        if (isOn(options.getMaximize())) {
+            WavetableProcessor.maximize(wavetable);
+        }
+
+        if (isOn(options.getNormalize())) {
+            WavetableProcessor.normalize(wavetable);
+        }
+
+        return wavetable;
+    }
+
+    private static int maxFramesOf(final ConversionCommandBuilder options) {
+        return options.getFrames() != null && options.getFrames() > 0
+                ? Math.min(options.getFrames(), Wavetable.MAX_FRAMES)
+                : Wavetable.MAX_FRAMES;
+    }
+
+    private static boolean isOn(final Boolean option) {
+        return option != null && option;
+    }
+
+    private static FileFormat formatOf(final Path file) {
+        final String extension = Filename.extensionOf(file.getFileName().toString());
+        return extension == null ? null : FileFormat.fromExtension(extension.toLowerCase());
+    }
+}
@@ -0,0 +1,190 @@
+package com.vokinpirks.wavetable;
+
+import lombok.experimental.UtilityClass;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static com.vokinpirks.wavetable.Wavetable.FRAME_SIZE;
+
+/**
+ * The processing steps of okwt that are common enough to be worth doing without spawning it.
+ */
+@UtilityClass
+public class WavetableProcessor {
+
+    private static final DspKernels KERNELS = DspKernels.INSTANCE;
+
+    /**
+     * Keeps as many whole frames as fit, the last incomplete frame is padded with silence.
+     */
+    public static Wavetable truncate(final float[] samples, final int maxFrames) {
+        final int length = Math.min(samples.length, maxFrames * FRAME_SIZE);
+        final float[] table = new float[frameCountFor(length) * FRAME_SIZE];
+        System.arraycopy(samples, 0, table, 0, length);
+        return new Wavetable(table);
+    }
+
+    /**
+     * Stretches or squeezes the whole audio to a whole number of frames with linear interpolation.
+     */
+    public static Wavetable linear(final float[] samples, final int maxFrames) {
+        final float[] table = new float[Math.min(maxFrames, frameCountFor(samples.length)) * FRAME_SIZE];
+        KERNELS.resampleLinear(samples, table);
+        return new Wavetable(table);
+    }
+
+    /**
+     * Same as {@link #linear(float[], int)} but with cubic interpolation, which keeps more of the high end.
+     */
+    public static Wavetable bicubic(final float[] samples, final int maxFrames) {
+        final float[] table = new float[Math.min(maxFrames, frameCountFor(samples.length)) * FRAME_SIZE];
+        KERNELS.resampleCubic(samples, table);
+        return new Wavetable(table);
+    }
+
+    /**
+     * {@link #truncate(float[], int)} reading only the frames that end up in the table.
+     */
+    public static Wavetable truncate(final AudioSource audio, final long from, final long length, final int maxFrames) {
+        return truncate(audio.read(from, (int) Math.min(length, (long) maxFrames * FRAME_SIZE)), maxFrames);
+    }
+
+    /**
+     * {@link #linear(float[], int)} over a range of a file or a stream. When the range is much longer than the table only the
+     * frames next to each target sample are decoded, rather than the whole range.
+     */
+    public static Wavetable linear(final AudioSource audio, final long from, final long length, final int maxFrames) {
+        final int tableLength = tableLengthFor(length, maxFrames);
+        if (length <= 2L * tableLength) {
+            return linear(audio.read(from, (int) length), maxFrames);
+        }
+
+        final float[] table = new float[tableLength];
+        final double step = (double) (length - 1) / (tableLength - 1);
+        for (int i = 0; i < tableLength; i++) {
+            final double position = i * step;
+            final long index = Math.min((long) position, length - 2);
+            final float fraction = (float) (position - index);
+            final float p0 = audio.frame(from + index);
+            final float p1 = audio.frame(from + index + 1);
+            table[i] = p0 + (p1 - p0) * fraction;
+        }
+
+        return new Wavetable(table);
+    }
+
+    /**
+     * {@link #bicubic(float[], int)} over a range of a file, same as {@link #linear(AudioSource, long, long, int)}.
+     */
+    public static Wavetable bicubic(final AudioSource audio, final long from, final long length, final int maxFrames) {
+        final int tableLength = tableLengthFor(length, maxFrames);
+        if (length <= 2L * tableLength) {
+            return bicubic(audio.read(from, (int) length), maxFrames);
+        }
+
+        final float[] table = new float[tableLength];
+        final double step = (double) (length - 1) / (tableLength - 1);
+        final long last = length - 1;
+        for (int i = 0; i < tableLength; i++) {
+            final double position = i * step;
+            final long index = Math.min((long) position, last - 1);
+            final float t = (float) (position - index);
+            table[i] = ScalarKernels.catmullRom(
+                    audio.frame(from + Math.max(index - 1, 0)),
+                    audio.frame(from + index),
+                    audio.frame(from + index + 1),
+                    audio.frame(from + Math.min(index + 2, last)),
+                    t
+            );
+        }
+
+        return new Wavetable(table);
+    }
+
+    /**
+     * Reorders frames randomly, either one by one or in contiguous groups.
+     *
+     * @param groups zero to shuffle single frames
+     */
+    public static void shuffle(final Wavetable wavetable, final int groups, final Random random) {
+        final int frameCount = wavetable.getFrameCount();
+        final int groupCount = groups <= 0 ? frameCount : Math.min(groups, frameCount);
+
+        // spreads the remainder over the first groups so they differ by one frame at most
+        final List<int[]> ranges = new ArrayList<>(groupCount);
+        int start = 0;
+        for (int group = 0; group < groupCount; group++) {
+            final int size = frameCount / groupCount + (group < frameCount % groupCount ? 1 : 0);
+            ranges.add(new int[]{start, size});
+            start += size;
+        }
+        Collections.shuffle(ranges, random);
+
+        final float[] samples = wavetable.getSamples();
+        final float[] source = samples.clone();
+        int target = 0;
+        for (int[] range : ranges) {
+            System.arraycopy(source, range[0] * FRAME_SIZE, samples, target * FRAME_SIZE, range[1] * FRAME_SIZE);
+            target += range[1];
+        }
+    }
+
+    /**
+     * Brings every frame to full scale on its own.
+     */
+    public static void maximize(final Wavetable wavetable) {
+        final float[] samples = wavetable.getSamples();
+        for (int frame = 0; frame < wavetable.getFrameCount(); frame++) {
+            final int offset = wavetable.frameOffset(frame);
+            KERNELS.scale(samples, offset, FRAME_SIZE, gainToFullScale(KERNELS.peak(samples, offset, FRAME_SIZE)));
+        }
+    }
+
+    /**
+     * Brings the whole table to full scale, the balance between frames is kept.
+     */
+    public static void normalize(final Wavetable wavetable) {
+        final float[] samples = wavetable.getSamples();
+        KERNELS.scale(samples, 0, samples.length, gainToFullScale(KERNELS.peak(samples, 0, samples.length)));
+    }
+
+    /**
+     * Fades both ends of every frame to avoid clicks when the table is played.
+     */
+    public static void fade(final Wavetable wavetable, final int length) {
+        final int fadeLength = Math.min(length, FRAME_SIZE / 2);
+        if (fadeLength <= 0) {
+            return;
+        }
+
+        final float[] fadeIn = new float[fadeLength];
+        final float[] fadeOut = new float[fadeLength];
+        for (int i = 0; i < fadeLength; i++) {
+            fadeIn[i] = (float) i / fadeLength;
+            fadeOut[fadeLength - 1 - i] = fadeIn[i];
+        }
+
+        final float[] samples = wavetable.getSamples();
+        for (int frame = 0; frame < wavetable.getFrameCount(); frame++) {
+            final int offset = wavetable.frameOffset(frame);
+            KERNELS.multiply(samples, offset, fadeIn, fadeLength);
+            KERNELS.multiply(samples, offset + FRAME_SIZE - fadeLength, fadeOut, fadeLength);
+        }
+    }
+
+    // silence stays silent
+    private static float gainToFullScale(final float peak) {
+        return peak == 0.0f ? 1.0f : 1.0f / peak;
+    }
+
+    private static int frameCountFor(final int length) {
+        return Math.max(1, (length + FRAME_SIZE - 1) / FRAME_SIZE);
+    }
+
+    private static int tableLengthFor(final long length, final int maxFrames) {
+        return (int) Math.min(maxFrames, Math.max(1, (length + FRAME_SIZE - 1) / FRAME_SIZE)) * FRAME_SIZE;
+    }
+}
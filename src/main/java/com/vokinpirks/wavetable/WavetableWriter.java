@@ -0,0 +1,89 @@
+package com.vokinpirks.wavetable;
+
+import lombok.experimental.UtilityClass;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import static com.vokinpirks.wavetable.PcmReader.fourCc;
+
+@UtilityClass
+public class WavetableWriter {
+
+    private static final int SAMPLE_RATE = 44100;
+
+    private static final int FORMAT_FLOAT = 3;
+
+    // the marker Serum and most other synths, Polymer included, look for to tell the frame size
+    private static final byte[] CLM_CHUNK = ("<!>" + Wavetable.FRAME_SIZE + " 10000000 wavetable (www.xferrecords.com)")
+            .getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Bitwig's own format: a 12 byte header followed by 32-bit float samples.
+     */
+    public static void writeWt(final Wavetable wavetable, final Path file) throws IOException {
+        final float[] samples = wavetable.getSamples();
+        final ByteBuffer buffer = ByteBuffer.allocate(12 + samples.length * 4).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(fourCc("vawt"));
+        buffer.putInt(Wavetable.FRAME_SIZE);
+        buffer.putShort((short) wavetable.getFrameCount());
+        // no flags: a wavetable of float samples
+        buffer.putShort((short) 0);
+        buffer.asFloatBuffer().put(samples);
+        buffer.position(buffer.capacity());
+
+        write(buffer.flip(), file);
+    }
+
+    /**
+     * Mono 32-bit float WAV with the frame size in a clm chunk.
+     */
+    public static void writeWav(final Wavetable wavetable, final Path file) throws IOException {
+        final float[] samples = wavetable.getSamples();
+        final int clmSize = CLM_CHUNK.length + (CLM_CHUNK.length & 1);
+        final int dataSize = samples.length * 4;
+        final int riffSize = 4 + (8 + 16) + (8 + clmSize) + (8 + dataSize);
+
+        final ByteBuffer buffer = ByteBuffer.allocate(8 + riffSize).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(fourCc("RIFF")).putInt(riffSize).putInt(fourCc("WAVE"));
+
+        buffer.putInt(fourCc("fmt ")).putInt(16)
+                .putShort((short) FORMAT_FLOAT)
+                .putShort((short) 1)
+                .putInt(SAMPLE_RATE)
+                .putInt(SAMPLE_RATE * 4)
+                .putShort((short) 4)
+                .putShort((short) 32);
+
+        buffer.putInt(fourCc("clm ")).putInt(CLM_CHUNK.length).put(CLM_CHUNK);
+        if ((CLM_CHUNK.length & 1) != 0) {
+            buffer.put((byte) 0);
+        }
+
+        buffer.putInt(fourCc("data")).putInt(dataSize);
+        buffer.asFloatBuffer().put(samples);
+        buffer.position(buffer.capacity());
+
+        write(buffer.flip(), file);
+    }
+
+    // readers must never see a half written file
+    private static void write(final ByteBuffer buffer, final Path file) throws IOException {
+        final Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (final FileChannel channel = FileChannel.open(temporary,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
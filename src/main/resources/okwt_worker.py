@@ -0,0 +1,114 @@
+"""
+Keeps okwt loaded between conversions so they don't pay for starting Python and importing NumPy every time.
+
+Started by BitTable, it reads requests from stdin and writes responses to stdout. Each message is a frame:
+a 4-byte big-endian length followed by that many bytes of UTF-8 text, the fields of which are separated by NUL.
+
+    (once okwt has been loaded)       -> ready
+    ping                              -> pong
+    run <PATH prefix> <arg> <arg>...  -> exit <code> <output>
+    quit                              -> (the worker exits)
+
+With --fake okwt isn't imported at all, "converting" copies the input to the output instead. That's enough to
+exercise the extension without okwt installed. --delay adds seconds to every fake conversion.
+"""
+
+import contextlib
+import io
+import os
+import shutil
+import struct
+import sys
+import time
+
+SEPARATOR = "\0"
+
+
+def read_frame(stream):
+    header = stream.read(4)
+    if len(header) < 4:
+        return None
+    (length,) = struct.unpack(">I", header)
+    return stream.read(length).decode("utf-8").split(SEPARATOR)
+
+
+def write_frame(stream, *fields):
+    payload = SEPARATOR.join(fields).encode("utf-8")
+    stream.write(struct.pack(">I", len(payload)))
+    stream.write(payload)
+    stream.flush()
+
+
+def load_okwt():
+    from importlib.metadata import entry_points
+
+    try:
+        found = entry_points(group="console_scripts", name="okwt")
+    except TypeError:
+        # Python older than 3.10
+        found = [e for e in entry_points().get("console_scripts", []) if e.name == "okwt"]
+    if not found:
+        raise RuntimeError("okwt is not installed for " + sys.executable)
+    return next(iter(found)).load()
+
+
+def fake_okwt(delay):
+    def main():
+        args = sys.argv[1:]
+        time.sleep(delay)
+        shutil.copyfile(args[args.index("--infile") + 1], args[args.index("--outfile") + 1])
+
+    return main
+
+
+def run(main, path_prefix, args, original_path):
+    os.environ["PATH"] = path_prefix + os.pathsep + original_path if path_prefix else original_path
+    sys.argv = ["okwt"] + args
+
+    output = io.StringIO()
+    code = 0
+    with contextlib.redirect_stdout(output), contextlib.redirect_stderr(output):
+        try:
+            result = main()
+            code = result if isinstance(result, int) else 0
+        except SystemExit as e:
+            code = e.code if isinstance(e.code, int) else (0 if e.code is None else 1)
+        except Exception as e:
+            print("%s: %s" % (type(e).__name__, e))
+            code = 1
+    return code, output.getvalue()
+
+
+def main():
+    args = sys.argv[1:]
+    fake = "--fake" in args
+    delay = float(args[args.index("--delay") + 1]) if "--delay" in args else 0.0
+
+    # stdout carries the frames, anything printed by okwt must not end up there. Rebinding sys.stdout isn't enough,
+    # native code and child processes (ffmpeg) write to fd 1 directly, so the frames get a copy of it and fd 1 itself
+    # is pointed at stderr
+    requests = sys.stdin.buffer
+    sys.stdout.flush()
+    responses = os.fdopen(os.dup(1), "wb")
+    os.dup2(2, 1)
+    sys.stdout = sys.stderr
+
+    okwt = fake_okwt(delay) if fake else load_okwt()
+    original_path = os.environ.get("PATH", "")
+    write_frame(responses, "ready")
+
+    while True:
+        request = read_frame(requests)
+        if request is None or request[0] == "quit":
+            return
+        if request[0] == "ping":
+            write_frame(responses, "pong")
+        elif request[0] == "run":
+            code, output = run(okwt, request[1], request[2:], original_path)
+            write_frame(responses, "exit", str(code), output)
+        else:
+            write_frame(responses, "error", "Unknown request " + request[0])
+
+
+if __name__ == "__main__":
+    main()
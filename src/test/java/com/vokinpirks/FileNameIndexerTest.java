@@ -0,0 +1,120 @@
+package com.vokinpirks;
+
+import com.bitwig.extension.controller.api.ControllerHost;
+import com.vokinpirks.metrics.Metrics;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * A renamed or moved folder is reattached to the index as it is rather than walked again, which shows in what the
+ * index remembers about its files: a file marked as used keeps beating a newer file of the same name.
+ */
+class FileNameIndexerTest {
+
+    private static final long TIMEOUT_MILLIS = 10_000L;
+
+    @TempDir
+    static Path workDirectory;
+
+    private static ConsoleLogger logger;
+
+    @BeforeAll
+    static void setUp() {
+        final ControllerHost host = (ControllerHost) Proxy.newProxyInstance(
+                FileNameIndexerTest.class.getClassLoader(), new Class<?>[]{ControllerHost.class},
+                (proxy, method, args) -> null);
+        logger = new ConsoleLogger(host);
+    }
+
+    @AfterAll
+    static void tearDown() {
+        logger.close();
+    }
+
+    @Test
+    void renameInPlace() throws Exception {
+        final Path library = createLibrary("rename");
+        final FileNameIndexer indexer = startIndexer(library);
+        try {
+            Files.move(library.resolve("Drums"), library.resolve("Drums 2"), ATOMIC_MOVE);
+
+            awaitPath(indexer, "unique.wav", library.resolve("Drums 2").resolve("Kit").resolve("unique.wav"));
+            assertEquals(library.resolve("Drums 2").resolve("kick.wav").toString(), indexer.getFullPath("kick.wav"),
+                    "the renamed folder has been walked again");
+        } finally {
+            indexer.close();
+        }
+    }
+
+    @Test
+    void moveWithRename() throws Exception {
+        final Path library = createLibrary("move");
+        final FileNameIndexer indexer = startIndexer(library);
+        try {
+            final Path target = library.resolve("Other").resolve("Old Drums");
+            Files.move(library.resolve("Drums"), target, ATOMIC_MOVE);
+
+            awaitPath(indexer, "unique.wav", target.resolve("Kit").resolve("unique.wav"));
+            assertEquals(target.resolve("kick.wav").toString(), indexer.getFullPath("kick.wav"),
+                    "the moved folder has been walked again");
+        } finally {
+            indexer.close();
+        }
+    }
+
+    /**
+     * <pre>
+     * Drums/kick.wav, marked as used later on
+     * Drums/Kit/unique.wav
+     * Other/kick.wav, newer, so it wins unless the other one is marked as used
+     * </pre>
+     */
+    private static Path createLibrary(final String name) throws IOException {
+        final Path library = Files.createDirectories(workDirectory.resolve(name));
+        final Path kit = Files.createDirectories(library.resolve("Drums").resolve("Kit"));
+        final Path other = Files.createDirectories(library.resolve("Other"));
+
+        Files.write(library.resolve("Drums").resolve("kick.wav"), new byte[16]);
+        Files.write(kit.resolve("unique.wav"), new byte[16]);
+        Files.write(other.resolve("kick.wav"), new byte[16]);
+        Files.setLastModifiedTime(library.resolve("Drums").resolve("kick.wav"), FileTime.fromMillis(1_000_000_000_000L));
+        Files.setLastModifiedTime(other.resolve("kick.wav"), FileTime.fromMillis(1_500_000_000_000L));
+        return library;
+    }
+
+    private static FileNameIndexer startIndexer(final Path library) throws Exception {
+        final FileNameIndexer indexer = new FileNameIndexer(logger, new Metrics(logger), null);
+        indexer.start();
+        indexer.indexDirectory(library, 0).get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+
+        assertEquals(library.resolve("Other").resolve("kick.wav").toString(), indexer.getFullPath("kick.wav"),
+                "the newer file wins");
+        indexer.markUsed(library.resolve("Drums").resolve("kick.wav"));
+        assertEquals(library.resolve("Drums").resolve("kick.wav").toString(), indexer.getFullPath("kick.wav"),
+                "the file marked as used wins");
+        return indexer;
+    }
+
+    // the watcher applies changes in batches on its own thread
+    private static void awaitPath(final FileNameIndexer indexer, final String name, final Path expected)
+            throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!expected.toString().equals(indexer.getFullPath(name)) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+
+        assertEquals(expected.toString(), indexer.getFullPath(name), "where " + name + " is found");
+    }
+}
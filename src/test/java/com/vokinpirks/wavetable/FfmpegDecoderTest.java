@@ -0,0 +1,122 @@
+package com.vokinpirks.wavetable;
+
+import com.bitwig.extension.controller.api.ControllerHost;
+import com.vokinpirks.ConsoleLogger;
+import com.vokinpirks.ProcessSupervisor;
+import com.vokinpirks.metrics.Metrics;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Runs the decoder against shell scripts standing in for ffmpeg, so it needs a POSIX shell rather than ffmpeg.
+ */
+class FfmpegDecoderTest {
+
+    @TempDir
+    static Path workDirectory;
+
+    private static ConsoleLogger logger;
+
+    private static ProcessSupervisor supervisor;
+
+    private static Path inFile;
+
+    @BeforeAll
+    static void setUp() throws IOException {
+        final ControllerHost host = (ControllerHost) Proxy.newProxyInstance(
+                FfmpegDecoderTest.class.getClassLoader(), new Class<?>[]{ControllerHost.class},
+                (proxy, method, args) -> null);
+        logger = new ConsoleLogger(host);
+        supervisor = new ProcessSupervisor(logger, new Metrics(logger));
+        inFile = Files.write(workDirectory.resolve("input.flac"), new byte[16]);
+    }
+
+    @AfterAll
+    static void tearDown() {
+        supervisor.shutdown();
+        logger.close();
+    }
+
+    @Test
+    void decodesSamples() throws Exception {
+        // 0.5, -0.25 and 1.0 as little endian floats
+        final Path ffmpeg = fakeFfmpeg("samples", """
+                echo "$@" > "$(dirname "$0")/arguments"
+                printf '\\000\\000\\000\\077\\000\\000\\200\\276\\000\\000\\200\\077'
+                """);
+
+        final DecodedAudio audio = FfmpegDecoder.decode(ffmpeg.toString(), inFile, Long.MAX_VALUE, supervisor, logger);
+
+        assertEquals(3, audio.getFrames(), "frames");
+        assertArrayEquals(new float[]{0.5f, -0.25f, 1.0f}, audio.read(0, 3), "samples");
+
+        final String arguments = Files.readString(ffmpeg.resolve("arguments"));
+        assertTrue(arguments.contains("-i " + inFile), arguments);
+        assertTrue(arguments.contains("-f f32le -ac 1 -"), arguments);
+    }
+
+    @Test
+    void stopsAtTheLimit() throws Exception {
+        // never ends on its own
+        final Path ffmpeg = fakeFfmpeg("endless", "exec cat /dev/zero\n");
+
+        final DecodedAudio audio = FfmpegDecoder.decode(ffmpeg.toString(), inFile, 100_000, supervisor, logger);
+
+        assertEquals(100_000, audio.getFrames(), "frames");
+    }
+
+    @Test
+    void tooLongToBeDecodedInMemory() throws Exception {
+        final Path ffmpeg = fakeFfmpeg("long", "exec cat /dev/zero\n");
+
+        final UnsupportedAudioException e = assertThrows(UnsupportedAudioException.class,
+                () -> FfmpegDecoder.decode(ffmpeg.toString(), inFile, Long.MAX_VALUE, supervisor, logger));
+        assertTrue(e.getMessage().contains("too long"), e.getMessage());
+    }
+
+    @Test
+    void failureReportsTheEndOfStderr() throws Exception {
+        // far more complaints than fit into the message, and more than the pipe buffer holds
+        final Path ffmpeg = fakeFfmpeg("failing", """
+                i=0
+                while [ $i -lt 5000 ]; do
+                    echo "frame $i is broken" >&2
+                    i=$((i + 1))
+                done
+                echo "the last complaint" >&2
+                exit 3
+                """);
+
+        final IOException e = assertThrows(IOException.class,
+                () -> FfmpegDecoder.decode(ffmpeg.toString(), inFile, Long.MAX_VALUE, supervisor, logger));
+        final String message = e.getMessage();
+        assertTrue(message.contains("with code 3"), message);
+        assertTrue(message.endsWith("frame 4999 is broken\nthe last complaint"), message);
+        assertFalse(message.contains("frame 0 is broken"), "the beginning of stderr is dropped");
+        assertTrue(message.length() < 5000, "message length " + message.length());
+    }
+
+    private static Path fakeFfmpeg(final String name, final String script) throws IOException {
+        assumeTrue(Files.isExecutable(Path.of("/bin/sh")), "a POSIX shell is needed");
+
+        final Path directory = Files.createDirectories(workDirectory.resolve(name));
+        final Path ffmpeg = Files.writeString(directory.resolve("ffmpeg"), "#!/bin/sh\n" + script);
+        Files.setPosixFilePermissions(ffmpeg, PosixFilePermissions.fromString("rwxr-xr-x"));
+        return directory;
+    }
+}
@@ -0,0 +1,412 @@
+package com.vokinpirks.wavetable;
+
+import com.bitwig.extension.controller.api.ControllerHost;
+import com.vokinpirks.ConsoleLogger;
+import com.vokinpirks.ConversionCommandBuilder;
+import com.vokinpirks.ProcessSupervisor;
+import com.vokinpirks.enums.ResizeAlgorithm;
+import com.vokinpirks.metrics.Metrics;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Small files of every layout the reader knows, built byte by byte, so the expected samples are exact.
+ */
+class PcmReaderTest {
+
+    private static final int FORMAT_PCM = 1;
+
+    private static final int FORMAT_FLOAT = 3;
+
+    @TempDir
+    static Path workDirectory;
+
+    private static ConsoleLogger logger;
+
+    @BeforeAll
+    static void setUp() {
+        final ControllerHost host = (ControllerHost) Proxy.newProxyInstance(
+                PcmReaderTest.class.getClassLoader(), new Class<?>[]{ControllerHost.class},
+                (proxy, method, args) -> null);
+        logger = new ConsoleLogger(host);
+    }
+
+    @AfterAll
+    static void tearDown() {
+        logger.close();
+    }
+
+    @Test
+    void wav8Bit() throws Exception {
+        // unsigned, 128 is silence
+        final byte[] data = {0, (byte) 128, (byte) 192, (byte) 255};
+        try (PcmReader reader = open("8.wav", wav(fmt(FORMAT_PCM, 1, 22050, 8), chunk("data", data)))) {
+            assertFormat(reader, 4, 1, 22050);
+            assertSamples(new float[]{-1.0f, 0.0f, 0.5f, 127 / 128.0f}, reader);
+        }
+    }
+
+    @Test
+    void wav16BitStereo() throws Exception {
+        final ByteBuffer data = little(8).putShort((short) 16384).putShort((short) 0)
+                .putShort((short) -32768).putShort((short) -16384);
+        try (PcmReader reader = open("16.wav", wav(fmt(FORMAT_PCM, 2, 48000, 16), chunk("data", data)))) {
+            // mixed down to mono
+            assertFormat(reader, 2, 2, 48000);
+            assertSamples(new float[]{0.25f, -0.75f}, reader);
+        }
+    }
+
+    @Test
+    void wav24Bit() throws Exception {
+        final byte[] data = {0, 0, 0x40, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0, 0, (byte) 0x80};
+        try (PcmReader reader = open("24.wav", wav(fmt(FORMAT_PCM, 1, 96000, 24), chunk("data", data)))) {
+            assertFormat(reader, 3, 1, 96000);
+            assertSamples(new float[]{0.5f, -1 / 8388608.0f, -1.0f}, reader);
+        }
+    }
+
+    @Test
+    void wav32Bit() throws Exception {
+        final ByteBuffer data = little(8).putInt(Integer.MIN_VALUE).putInt(1 << 29);
+        try (PcmReader reader = open("32.wav", wav(fmt(FORMAT_PCM, 1, 44100, 32), chunk("data", data)))) {
+            assertFormat(reader, 2, 1, 44100);
+            assertSamples(new float[]{-1.0f, 0.25f}, reader);
+        }
+    }
+
+    @Test
+    void wavFloat() throws Exception {
+        final ByteBuffer data = little(12).putFloat(0.125f).putFloat(-1.5f).putFloat(0.0f);
+        try (PcmReader reader = open("float.wav", wav(fmt(FORMAT_FLOAT, 1, 44100, 32), chunk("data", data)))) {
+            assertFormat(reader, 3, 1, 44100);
+            assertSamples(new float[]{0.125f, -1.5f, 0.0f}, reader);
+        }
+    }
+
+    @Test
+    void wavDouble() throws Exception {
+        final ByteBuffer data = little(16).putDouble(0.375).putDouble(-0.25);
+        try (PcmReader reader = open("double.wav", wav(fmt(FORMAT_FLOAT, 1, 44100, 64), chunk("data", data)))) {
+            assertFormat(reader, 2, 1, 44100);
+            assertSamples(new float[]{0.375f, -0.25f}, reader);
+        }
+    }
+
+    @Test
+    void wavExtensible() throws Exception {
+        final ByteBuffer fmt = little(40)
+                .putShort((short) 0xFFFE).putShort((short) 2).putInt(48000).putInt(48000 * 8)
+                .putShort((short) 8).putShort((short) 32)
+                // the extension: its size, valid bits, channel mask, then the sub format GUID
+                .putShort((short) 22).putShort((short) 32).putInt(3)
+                .putShort((short) FORMAT_FLOAT).put(new byte[14]);
+        final ByteBuffer data = little(16).putFloat(0.5f).putFloat(0.25f).putFloat(-1.0f).putFloat(1.0f);
+        try (PcmReader reader = open("extensible.wav", wav(chunk("fmt ", fmt), chunk("data", data)))) {
+            assertFormat(reader, 2, 2, 48000);
+            assertSamples(new float[]{0.375f, 0.0f}, reader);
+        }
+    }
+
+    @Test
+    void wavOddChunkIsPadded() throws Exception {
+        final ByteBuffer data = little(4).putShort((short) 8192).putShort((short) -8192);
+        final byte[] file = wav(fmt(FORMAT_PCM, 1, 44100, 16),
+                chunk("LIST", "abc".getBytes(StandardCharsets.US_ASCII)),
+                chunk("data", data));
+        try (PcmReader reader = open("odd.wav", file)) {
+            assertFormat(reader, 2, 1, 44100);
+            assertSamples(new float[]{0.25f, -0.25f}, reader);
+        }
+    }
+
+    @Test
+    void wavDataSizeLeftUnset() throws Exception {
+        final ByteBuffer data = little(6).putShort((short) 8192).putShort((short) 16384).putShort((short) -8192);
+        final byte[] file = wav(fmt(FORMAT_PCM, 1, 44100, 16), chunk("data", data));
+        // what a writer that streams leaves behind, the data runs to the end of the file
+        ByteBuffer.wrap(file).order(ByteOrder.LITTLE_ENDIAN).putInt(file.length - 10, -1);
+        try (PcmReader reader = open("streamed.wav", file)) {
+            assertFormat(reader, 3, 1, 44100);
+            assertSamples(new float[]{0.25f, 0.5f, -0.25f}, reader);
+        }
+    }
+
+    @Test
+    void wavDataChunkCutShort() throws Exception {
+        final ByteBuffer data = little(6).putShort((short) 8192).putShort((short) 16384).putShort((short) 1);
+        final byte[] file = wav(fmt(FORMAT_PCM, 1, 44100, 16), chunk("data", data));
+        ByteBuffer.wrap(file).order(ByteOrder.LITTLE_ENDIAN).putInt(file.length - 10, 1000);
+        // a download that has been cut off in the middle of a frame
+        try (PcmReader reader = open("cut.wav", Arrays.copyOf(file, file.length - 1))) {
+            // the incomplete frame at the end is dropped
+            assertFormat(reader, 2, 1, 44100);
+            assertSamples(new float[]{0.25f, 0.5f}, reader);
+        }
+    }
+
+    @Test
+    void aiff16Bit() throws Exception {
+        final ByteBuffer data = big(4).putShort((short) 16384).putShort((short) -32768);
+        try (PcmReader reader = open("16.aiff", aiff(comm(1, 2, 16, 44100), ssnd(data)))) {
+            assertFormat(reader, 2, 1, 44100);
+            assertSamples(new float[]{0.5f, -1.0f}, reader);
+        }
+    }
+
+    @Test
+    void aiff24BitStereo() throws Exception {
+        final byte[] data = {0x40, 0, 0, 0, 0, 0, (byte) 0xC0, 0, 0, (byte) 0xC0, 0, 0};
+        try (PcmReader reader = open("24.aiff", aiff(comm(2, 2, 24, 88200), ssnd(data)))) {
+            assertFormat(reader, 2, 2, 88200);
+            assertSamples(new float[]{0.25f, -0.5f}, reader);
+        }
+    }
+
+    @Test
+    void aiff12BitIsStoredAs16Bit() throws Exception {
+        final ByteBuffer data = big(4).putShort((short) 0x4000).putShort((short) 0xC000);
+        try (PcmReader reader = open("12.aiff", aiff(comm(1, 2, 12, 8000), ssnd(data)))) {
+            assertFormat(reader, 2, 1, 8000);
+            assertSamples(new float[]{0.5f, -0.5f}, reader);
+        }
+    }
+
+    @Test
+    void aiffSampleRates() throws Exception {
+        for (int sampleRate : new int[]{1, 11025, 22050, 44100, 48000, 192000, 384000}) {
+            final ByteBuffer data = big(2).putShort((short) 0);
+            try (PcmReader reader = open("rate.aiff", aiff(comm(1, 1, 16, sampleRate), ssnd(data)))) {
+                assertEquals(sampleRate, reader.getSampleRate(), "sample rate");
+            }
+        }
+    }
+
+    @Test
+    void aiffDeclaredFramesLimitTheData() throws Exception {
+        // the sound data chunk is longer than the COMM chunk says, e.g. padded to a block
+        final ByteBuffer data = big(8).putShort((short) 8192).putShort((short) 8192)
+                .putShort((short) 1).putShort((short) 1);
+        try (PcmReader reader = open("declared.aiff", aiff(comm(1, 2, 16, 44100), ssnd(data)))) {
+            assertFormat(reader, 2, 1, 44100);
+        }
+    }
+
+    @Test
+    void aiffOddChunkIsPadded() throws Exception {
+        final ByteBuffer data = big(4).putShort((short) 8192).putShort((short) -8192);
+        final byte[] file = aiff(comm(1, 2, 16, 44100),
+                bigChunk("NAME", "odd".getBytes(StandardCharsets.US_ASCII)),
+                ssnd(data));
+        try (PcmReader reader = open("odd.aiff", file)) {
+            assertFormat(reader, 2, 1, 44100);
+            assertSamples(new float[]{0.25f, -0.25f}, reader);
+        }
+    }
+
+    @Test
+    void aiffSoundDataCutShort() throws Exception {
+        final ByteBuffer data = big(4).putShort((short) 8192).putShort((short) 1);
+        final byte[] file = aiff(comm(1, 4, 16, 44100), ssnd(data));
+        ByteBuffer.wrap(file).putInt(file.length - 16, 1000);
+        try (PcmReader reader = open("cut.aiff", Arrays.copyOf(file, file.length - 1))) {
+            assertFormat(reader, 1, 1, 44100);
+            assertSamples(new float[]{0.25f}, reader);
+        }
+    }
+
+    @Test
+    void aifcSowt() throws Exception {
+        // little endian samples in a big endian container
+        final ByteBuffer data = little(4).putShort((short) 16384).putShort((short) -16384);
+        try (PcmReader reader = open("sowt.aifc", aifc(comm(1, 2, 16, 44100, "sowt"), ssnd(data)))) {
+            assertFormat(reader, 2, 1, 44100);
+            assertSamples(new float[]{0.5f, -0.5f}, reader);
+        }
+    }
+
+    @Test
+    void aifcFloat() throws Exception {
+        final ByteBuffer data = big(8).putFloat(0.75f).putFloat(-0.125f);
+        try (PcmReader reader = open("fl32.aifc", aifc(comm(1, 2, 32, 48000, "fl32"), ssnd(data)))) {
+            assertFormat(reader, 2, 1, 48000);
+            assertSamples(new float[]{0.75f, -0.125f}, reader);
+        }
+    }
+
+    @Test
+    void aifcDouble() throws Exception {
+        final ByteBuffer data = big(16).putDouble(-0.75).putDouble(0.5);
+        try (PcmReader reader = open("fl64.aifc", aifc(comm(1, 2, 64, 48000, "fl64"), ssnd(data)))) {
+            assertFormat(reader, 2, 1, 48000);
+            assertSamples(new float[]{-0.75f, 0.5f}, reader);
+        }
+    }
+
+    @Test
+    void aifcUncompressed() throws Exception {
+        final ByteBuffer data = big(2).putShort((short) 16384);
+        try (PcmReader reader = open("none.aifc", aifc(comm(1, 1, 16, 44100, "NONE"), ssnd(data)))) {
+            assertFormat(reader, 1, 1, 44100);
+            assertSamples(new float[]{0.5f}, reader);
+        }
+    }
+
+    @Test
+    void unsupportedFormats() throws Exception {
+        final ByteBuffer data = little(4);
+        final Path adpcm = write("adpcm.wav", wav(fmt(2, 1, 44100, 4), chunk("data", data)));
+        final Path ulaw = write("ulaw.aifc", aifc(comm(1, 4, 8, 44100, "ulaw"), ssnd(data)));
+        final Path noData = write("nodata.wav", wav(fmt(FORMAT_PCM, 1, 44100, 16)));
+        final Path oddBits = write("20.wav", wav(fmt(FORMAT_PCM, 1, 44100, 20), chunk("data", data)));
+        final Path neither = write("neither.wav", "not a sound file at all".getBytes(StandardCharsets.US_ASCII));
+
+        for (Path file : new Path[]{adpcm, ulaw, noData, oddBits, neither}) {
+            assertThrows(UnsupportedAudioException.class, () -> PcmReader.open(file).close(), file.toString());
+        }
+    }
+
+    @Test
+    void unsupportedFormatsFallBackToOkwt() throws Exception {
+        final WavetableEngine engine = new WavetableEngine(logger, new ProcessSupervisor(logger, new Metrics(logger)));
+        engine.setEnabled(true);
+
+        final ByteBuffer data = little(4);
+        final Path adpcm = write("fallback.wav", wav(fmt(2, 1, 44100, 4), chunk("data", data)));
+        final Path ulaw = write("fallback.aif", aifc(comm(1, 4, 8, 44100, "ulaw"), ssnd(data)));
+
+        for (Path file : new Path[]{adpcm, ulaw}) {
+            final Path output = workDirectory.resolve("fallback-out.wav");
+            final ConversionCommandBuilder options = ConversionCommandBuilder.builder()
+                    .resizeAlgorithm(ResizeAlgorithm.truncate)
+                    .inFile(file.toString())
+                    .outFile(output.toString())
+                    .build();
+            assertNull(engine.convert(options, file, output, Optional.empty()), file + " is left to okwt");
+        }
+    }
+
+    private static void assertFormat(final PcmReader reader, final long frames, final int channels,
+                                     final int sampleRate) {
+        assertEquals(frames, reader.getFrames(), "frames");
+        assertEquals(channels, reader.getChannels(), "channels");
+        assertEquals(sampleRate, reader.getSampleRate(), "sample rate");
+    }
+
+    private static void assertSamples(final float[] expected, final PcmReader reader) {
+        assertArrayEquals(expected, reader.read(0, expected.length), "samples");
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], reader.frame(i), "frame " + i);
+        }
+    }
+
+    private static PcmReader open(final String name, final byte[] file) throws IOException {
+        return PcmReader.open(write(name, file));
+    }
+
+    private static Path write(final String name, final byte[] file) throws IOException {
+        return Files.write(workDirectory.resolve(name), file);
+    }
+
+    private static byte[] wav(final byte[]... chunks) {
+        return container("RIFF", "WAVE", ByteOrder.LITTLE_ENDIAN, chunks);
+    }
+
+    private static byte[] aiff(final byte[]... chunks) {
+        return container("FORM", "AIFF", ByteOrder.BIG_ENDIAN, chunks);
+    }
+
+    private static byte[] aifc(final byte[]... chunks) {
+        return container("FORM", "AIFC", ByteOrder.BIG_ENDIAN, chunks);
+    }
+
+    private static byte[] container(final String id, final String type, final ByteOrder order, final byte[]... chunks) {
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.writeBytes(type.getBytes(StandardCharsets.US_ASCII));
+        for (byte[] chunk : chunks) {
+            body.writeBytes(chunk);
+        }
+
+        return chunk(id, body.toByteArray(), order);
+    }
+
+    private static byte[] fmt(final int format, final int channels, final int sampleRate, final int bitsPerSample) {
+        final int blockAlign = channels * ((bitsPerSample + 7) / 8);
+        return chunk("fmt ", little(16)
+                .putShort((short) format).putShort((short) channels).putInt(sampleRate).putInt(sampleRate * blockAlign)
+                .putShort((short) blockAlign).putShort((short) bitsPerSample));
+    }
+
+    private static byte[] comm(final int channels, final int frames, final int bitsPerSample, final int sampleRate) {
+        return bigChunk("COMM", commBody(channels, frames, bitsPerSample, sampleRate, 18).array());
+    }
+
+    private static byte[] comm(final int channels, final int frames, final int bitsPerSample, final int sampleRate,
+                               final String compression) {
+        // the compression type is followed by its name as a Pascal string, left empty
+        return bigChunk("COMM", commBody(channels, frames, bitsPerSample, sampleRate, 24)
+                .put(compression.getBytes(StandardCharsets.US_ASCII)).put((byte) 0).put((byte) 0).array());
+    }
+
+    private static ByteBuffer commBody(final int channels, final int frames, final int bitsPerSample,
+                                       final int sampleRate, final int size) {
+        // the sample rate is an 80-bit extended float with an explicit integer bit
+        final int shift = Long.numberOfLeadingZeros(sampleRate);
+        return big(size).putShort((short) channels).putInt(frames).putShort((short) bitsPerSample)
+                .putShort((short) (16383 + 63 - shift)).putLong((long) sampleRate << shift);
+    }
+
+    private static byte[] ssnd(final ByteBuffer data) {
+        return ssnd(data.array());
+    }
+
+    // no offset and no block size
+    private static byte[] ssnd(final byte[] data) {
+        return bigChunk("SSND", big(8 + data.length).putInt(0).putInt(0).put(data).array());
+    }
+
+    private static byte[] chunk(final String id, final ByteBuffer body) {
+        return chunk(id, body.array(), ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static byte[] chunk(final String id, final byte[] body) {
+        return chunk(id, body, ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static byte[] bigChunk(final String id, final byte[] body) {
+        return chunk(id, body, ByteOrder.BIG_ENDIAN);
+    }
+
+    // odd sizes are followed by a pad byte that isn't part of the size
+    private static byte[] chunk(final String id, final byte[] body, final ByteOrder order) {
+        final ByteBuffer chunk = ByteBuffer.allocate(8 + body.length + (body.length & 1)).order(order);
+        chunk.put(id.getBytes(StandardCharsets.US_ASCII)).putInt(body.length).put(body);
+        return chunk.array();
+    }
+
+    private static ByteBuffer little(final int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static ByteBuffer big(final int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.BIG_ENDIAN);
+    }
+}
@@ -0,0 +1,221 @@
+package com.vokinpirks.wavetable;
+
+import com.bitwig.extension.controller.api.ControllerHost;
+import com.vokinpirks.ConsoleLogger;
+import com.vokinpirks.ConversionCommandBuilder;
+import com.vokinpirks.ProcessSupervisor;
+import com.vokinpirks.enums.CallResult;
+import com.vokinpirks.enums.ResizeAlgorithm;
+import com.vokinpirks.metrics.Metrics;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Compares the built-in engine with okwt, an option at a time and all of them together. The expected results are
+ * golden files in src/test/resources/golden, rendered by render.py next to them, which computes okwt's steps in
+ * float64 without the engine's shortcuts. A missing one is recorded by running okwt itself when {@code -Dokwt.path}
+ * points to its directory, otherwise the comparison is skipped.
+ * <p>
+ * Shuffling isn't covered, its result is random on purpose.
+ */
+class WavetableEngineGoldenTest {
+
+    private static final Path GOLDEN_DIRECTORY = Path.of("src", "test", "resources", "golden");
+
+    // okwt computes in float64, the engine in float32
+    private static final float TOLERANCE = 1e-4f;
+
+    private static final int SAMPLE_RATE = 44100;
+
+    @TempDir
+    static Path workDirectory;
+
+    private static ConsoleLogger logger;
+
+    private static WavetableEngine engine;
+
+    private static Path shortInput;
+
+    private static Path longInput;
+
+    @BeforeAll
+    static void setUp() throws IOException {
+        final ControllerHost host = (ControllerHost) Proxy.newProxyInstance(
+                WavetableEngineGoldenTest.class.getClassLoader(), new Class<?>[]{ControllerHost.class},
+                (proxy, method, args) -> null);
+        logger = new ConsoleLogger(host);
+        engine = new WavetableEngine(logger, new ProcessSupervisor(logger, new Metrics(logger)));
+        engine.setEnabled(true);
+
+        // silence around, frames of different loudness in between, not a whole number of frames
+        shortInput = writeInput(workDirectory.resolve("short.wav"), 5 * Wavetable.FRAME_SIZE + 700, 900);
+        // much longer than the table it's squeezed into, so only the frames next to each target sample are read
+        longInput = writeInput(workDirectory.resolve("long.wav"), 300 * Wavetable.FRAME_SIZE + 1234, 0);
+    }
+
+    @AfterAll
+    static void tearDown() {
+        logger.close();
+    }
+
+    @Test
+    void truncate() throws Exception {
+        compare("truncate", shortInput, options(ResizeAlgorithm.truncate));
+    }
+
+    @Test
+    void linear() throws Exception {
+        compare("linear", shortInput, options(ResizeAlgorithm.linear));
+    }
+
+    @Test
+    void bicubic() throws Exception {
+        compare("bicubic", shortInput, options(ResizeAlgorithm.bicubic));
+    }
+
+    @Test
+    void truncateLong() throws Exception {
+        compare("truncate-long", longInput, options(ResizeAlgorithm.truncate).frames(16));
+    }
+
+    @Test
+    void linearLong() throws Exception {
+        compare("linear-long", longInput, options(ResizeAlgorithm.linear).frames(16));
+    }
+
+    @Test
+    void bicubicLong() throws Exception {
+        compare("bicubic-long", longInput, options(ResizeAlgorithm.bicubic).frames(16));
+    }
+
+    @Test
+    void frames() throws Exception {
+        compare("frames", shortInput, options(ResizeAlgorithm.truncate).frames(3));
+    }
+
+    @Test
+    void trim() throws Exception {
+        compare("trim", shortInput, options(ResizeAlgorithm.truncate).trim(true));
+    }
+
+    @Test
+    void fade() throws Exception {
+        compare("fade", shortInput, options(ResizeAlgorithm.truncate).fade(64));
+    }
+
+    @Test
+    void longFade() throws Exception {
+        compare("fade-long", shortInput, options(ResizeAlgorithm.truncate).fade(1500));
+    }
+
+    @Test
+    void maximize() throws Exception {
+        compare("maximize", shortInput, options(ResizeAlgorithm.truncate).maximize(true));
+    }
+
+    @Test
+    void normalize() throws Exception {
+        compare("normalize", shortInput, options(ResizeAlgorithm.truncate).normalize(true));
+    }
+
+    // tells whether the steps are applied in okwt's order
+    @Test
+    void everything() throws Exception {
+        compare("everything", shortInput, options(ResizeAlgorithm.bicubic)
+                .trim(true).fade(64).maximize(true).normalize(true));
+    }
+
+    private static ConversionCommandBuilder.ConversionCommandBuilderBuilder options(final ResizeAlgorithm resizeAlgorithm) {
+        return ConversionCommandBuilder.builder()
+                .resizeAlgorithm(resizeAlgorithm)
+                .trim(false)
+                .trimThreshold(0.05)
+                .shuffle(false)
+                .shuffleChunks(0)
+                .fade(0)
+                .normalize(false)
+                .maximize(false);
+    }
+
+    private static void compare(final String name, final Path input,
+                                final ConversionCommandBuilder.ConversionCommandBuilderBuilder options) throws Exception {
+        final Path golden = GOLDEN_DIRECTORY.resolve(name + ".wav");
+        if (!Files.exists(golden)) {
+            record(golden, input, options);
+        }
+
+        final Path output = workDirectory.resolve(name + ".wav");
+        final CallResult result = engine.convert(options.inFile(input.toString()).outFile(output.toString()).build(),
+                input, output, Optional.empty());
+        assertEquals(CallResult.SUCCESS, result);
+
+        try (PcmReader expected = PcmReader.open(golden); PcmReader actual = PcmReader.open(output)) {
+            assertEquals(expected.getFrames(), actual.getFrames(), "table length");
+
+            for (long i = 0; i < expected.getFrames(); i++) {
+                final float difference = Math.abs(expected.frame(i) - actual.frame(i));
+                final long index = i;
+                assertTrue(difference <= TOLERANCE, () -> String.format("sample %s of frame %s: okwt %s, engine %s",
+                        index % Wavetable.FRAME_SIZE, index / Wavetable.FRAME_SIZE, expected.frame(index), actual.frame(index)));
+            }
+        }
+    }
+
+    private static void record(final Path golden, final Path input,
+                               final ConversionCommandBuilder.ConversionCommandBuilderBuilder options) throws Exception {
+        final String okwtPath = System.getProperty("okwt.path", "");
+        assumeTrue(!okwtPath.isBlank(), golden + " is missing, run with -Dokwt.path=<the directory of okwt> to record it");
+
+        final Path output = workDirectory.resolve("okwt-" + golden.getFileName());
+        final Process process = new ProcessBuilder(options
+                .okwtPath(Path.of(okwtPath).resolve("okwt").toString())
+                .inFile(input.toString())
+                .outFile(output.toString())
+                .build().build())
+                .inheritIO()
+                .start();
+        assertTrue(process.waitFor(5, TimeUnit.MINUTES), "okwt has timed out");
+        assertEquals(0, process.exitValue(), "okwt has failed");
+
+        Files.createDirectories(golden.getParent());
+        Files.copy(output, golden, REPLACE_EXISTING);
+    }
+
+    /**
+     * 16-bit mono, every frame is a sine of its own pitch and loudness, with silence at both ends.
+     */
+    private static Path writeInput(final Path file, final int length, final int silence) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(44 + 2 * length).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(0x46464952).putInt(36 + 2 * length).putInt(0x45564157);
+        buffer.putInt(0x20746d66).putInt(16).putShort((short) 1).putShort((short) 1)
+                .putInt(SAMPLE_RATE).putInt(SAMPLE_RATE * 2).putShort((short) 2).putShort((short) 16);
+        buffer.putInt(0x61746164).putInt(2 * length);
+
+        for (int i = 0; i < length; i++) {
+            final int frame = i / Wavetable.FRAME_SIZE;
+            final boolean isSilent = i < silence || i >= length - silence;
+            final double amplitude = 0.2 + 0.7 * ((frame * 37) % 11) / 10.0;
+            final double sample = isSilent ? 0.0 : amplitude * Math.sin(2 * Math.PI * (frame + 1) * i / Wavetable.FRAME_SIZE);
+            buffer.putShort((short) Math.round(sample * Short.MAX_VALUE));
+        }
+
+        Files.write(file, buffer.array());
+        return file;
+    }
+}
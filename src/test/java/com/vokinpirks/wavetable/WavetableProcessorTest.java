@@ -0,0 +1,183 @@
+package com.vokinpirks.wavetable;
+
+import com.vokinpirks.ConversionCommandBuilder;
+import com.vokinpirks.enums.ResizeAlgorithm;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import static com.vokinpirks.wavetable.Wavetable.FRAME_SIZE;
+import static com.vokinpirks.wavetable.Wavetable.MAX_FRAMES;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * The processing steps on their own, with inputs simple enough to know the result without okwt.
+ */
+class WavetableProcessorTest {
+
+    @Test
+    void fadeRampsBothEndsOfEveryFrame() {
+        final Wavetable wavetable = new Wavetable(filled(2 * FRAME_SIZE, 1.0f));
+        WavetableProcessor.fade(wavetable, 64);
+
+        final float[] samples = wavetable.getSamples();
+        for (int frame = 0; frame < 2; frame++) {
+            final int offset = wavetable.frameOffset(frame);
+            assertEquals(0.0f, samples[offset], "first sample of frame " + frame);
+            assertEquals(63.0f / 64, samples[offset + 63], "last sample of the fade in of frame " + frame);
+            assertEquals(1.0f, samples[offset + 64], "first sample after the fade in of frame " + frame);
+            assertEquals(1.0f, samples[offset + FRAME_SIZE - 65], "last sample before the fade out of frame " + frame);
+            assertEquals(63.0f / 64, samples[offset + FRAME_SIZE - 64], "first sample of the fade out of frame " + frame);
+            assertEquals(0.0f, samples[offset + FRAME_SIZE - 1], "last sample of frame " + frame);
+        }
+    }
+
+    @Test
+    void fadeLongerThanHalfAFrame() {
+        final Wavetable wavetable = new Wavetable(filled(FRAME_SIZE, 1.0f));
+        WavetableProcessor.fade(wavetable, 10 * FRAME_SIZE);
+
+        // the fades meet in the middle rather than overlap
+        final float[] samples = wavetable.getSamples();
+        assertEquals(0.0f, samples[0], "first sample");
+        assertEquals(1023.0f / 1024, samples[FRAME_SIZE / 2 - 1], "end of the fade in");
+        assertEquals(1023.0f / 1024, samples[FRAME_SIZE / 2], "start of the fade out");
+        assertEquals(0.0f, samples[FRAME_SIZE - 1], "last sample");
+    }
+
+    @Test
+    void maximizeBringsEveryFramePeakToFullScale() {
+        final float[] samples = new float[3 * FRAME_SIZE];
+        samples[10] = 0.25f;
+        samples[20] = -0.125f;
+        samples[FRAME_SIZE + 30] = -0.5f;
+        // the last frame is silent
+
+        final Wavetable wavetable = new Wavetable(samples);
+        WavetableProcessor.maximize(wavetable);
+
+        assertEquals(1.0f, samples[10], "peak of the first frame");
+        assertEquals(-0.5f, samples[20], "the rest of the first frame");
+        assertEquals(-1.0f, samples[FRAME_SIZE + 30], "peak of the second frame");
+        assertEquals(0.0f, peak(samples, 2 * FRAME_SIZE, 3 * FRAME_SIZE), "peak of the silent frame");
+    }
+
+    @Test
+    void normalizeBringsTheTablePeakToFullScale() {
+        final float[] samples = new float[2 * FRAME_SIZE];
+        samples[10] = 0.25f;
+        samples[FRAME_SIZE + 30] = -0.5f;
+
+        final Wavetable wavetable = new Wavetable(samples);
+        WavetableProcessor.normalize(wavetable);
+
+        // the balance between frames is kept
+        assertEquals(0.5f, samples[10], "peak of the first frame");
+        assertEquals(-1.0f, samples[FRAME_SIZE + 30], "peak of the second frame");
+    }
+
+    @Test
+    void trimCutsAtTheThreshold() {
+        final float[] samples = new float[1000];
+        Arrays.fill(samples, 0.05f);
+        samples[100] = -0.2f;
+        samples[101] = 0.1f;
+        samples[500] = 0.15f;
+
+        final Wavetable wavetable = WavetableEngine.process(options(ResizeAlgorithm.truncate)
+                .trim(true)
+                .trimThreshold(0.1)
+                .build(), new DecodedAudio(samples, samples.length));
+
+        final float[] table = wavetable.getSamples();
+        assertEquals(1, wavetable.getFrameCount(), "frame count");
+        assertEquals(-0.2f, table[0], "first sample above the threshold");
+        // not above the threshold but between louder samples
+        assertEquals(0.1f, table[1], "second sample");
+        assertEquals(0.15f, table[400], "last sample above the threshold");
+        assertEquals(0.0f, peak(table, 401, FRAME_SIZE), "padding");
+    }
+
+    @Test
+    void trimKeepsSilenceAsItIs() {
+        final float[] samples = filled(100, 0.05f);
+
+        final Wavetable wavetable = WavetableEngine.process(options(ResizeAlgorithm.truncate)
+                .trim(true)
+                .trimThreshold(0.1)
+                .build(), new DecodedAudio(samples, samples.length));
+
+        assertEquals(0.05f, wavetable.getSamples()[99], "last sample");
+    }
+
+    @Test
+    void truncatePadsTheLastFrame() {
+        final Wavetable wavetable = WavetableProcessor.truncate(filled(FRAME_SIZE + 10, 0.5f), MAX_FRAMES);
+
+        final float[] samples = wavetable.getSamples();
+        assertEquals(2, wavetable.getFrameCount(), "frame count");
+        assertEquals(0.5f, samples[FRAME_SIZE + 9], "last sample of the input");
+        assertEquals(0.0f, peak(samples, FRAME_SIZE + 10, 2 * FRAME_SIZE), "padding");
+    }
+
+    @Test
+    void truncateKeepsTheBeginning() {
+        final float[] input = new float[5 * FRAME_SIZE];
+        for (int i = 0; i < input.length; i++) {
+            input[i] = i / FRAME_SIZE;
+        }
+
+        final Wavetable wavetable = WavetableProcessor.truncate(input, 3);
+
+        assertEquals(3, wavetable.getFrameCount(), "frame count");
+        assertEquals(2.0f, wavetable.getSamples()[3 * FRAME_SIZE - 1], "last sample");
+    }
+
+    @Test
+    void resizeToTheFrameCount() {
+        final float[] input = filled(5 * FRAME_SIZE + 1, 0.5f);
+
+        assertEquals(6, WavetableProcessor.linear(input, MAX_FRAMES).getFrameCount(), "linear, rounded up");
+        assertEquals(3, WavetableProcessor.linear(input, 3).getFrameCount(), "linear, limited");
+        assertEquals(6, WavetableProcessor.bicubic(input, MAX_FRAMES).getFrameCount(), "bicubic, rounded up");
+        assertEquals(3, WavetableProcessor.bicubic(input, 3).getFrameCount(), "bicubic, limited");
+    }
+
+    @Test
+    void framesOptionIsLimitedToTheLargestTable() {
+        final float[] input = filled((MAX_FRAMES + 10) * FRAME_SIZE, 0.5f);
+
+        final Wavetable wavetable = WavetableEngine.process(options(ResizeAlgorithm.truncate)
+                .frames(1000)
+                .build(), new DecodedAudio(input, input.length));
+
+        assertEquals(MAX_FRAMES, wavetable.getFrameCount(), "frame count");
+    }
+
+    private static ConversionCommandBuilder.ConversionCommandBuilderBuilder options(final ResizeAlgorithm resizeAlgorithm) {
+        return ConversionCommandBuilder.builder()
+                .resizeAlgorithm(resizeAlgorithm)
+                .trim(false)
+                .trimThreshold(0.0)
+                .shuffle(false)
+                .shuffleChunks(0)
+                .fade(0)
+                .normalize(false)
+                .maximize(false);
+    }
+
+    private static float[] filled(final int length, final float value) {
+        final float[] samples = new float[length];
+        Arrays.fill(samples, value);
+        return samples;
+    }
+
+    private static float peak(final float[] samples, final int from, final int to) {
+        float peak = 0.0f;
+        for (int i = from; i < to; i++) {
+            peak = Math.max(peak, Math.abs(samples[i]));
+        }
+
+        return peak;
+    }
+}
@@ -0,0 +1,59 @@
+package com.vokinpirks.wavetable;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class WavetableWriterTest {
+
+    @TempDir
+    static Path workDirectory;
+
+    @Test
+    void wtRoundTrip() throws Exception {
+        final Wavetable wavetable = wavetable(3);
+        final Path file = workDirectory.resolve("table.wt");
+        WavetableWriter.writeWt(wavetable, file);
+
+        final ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file)).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(12 + wavetable.getSamples().length * 4, buffer.capacity(), "file size");
+        assertEquals(PcmReader.fourCc("vawt"), buffer.getInt(), "magic");
+        assertEquals(Wavetable.FRAME_SIZE, buffer.getInt(), "frame size");
+        assertEquals(3, buffer.getShort(), "frame count");
+        assertEquals(0, buffer.getShort(), "flags");
+
+        final float[] samples = new float[wavetable.getSamples().length];
+        buffer.asFloatBuffer().get(samples);
+        assertArrayEquals(wavetable.getSamples(), samples, "samples");
+    }
+
+    @Test
+    void wavRoundTrip() throws Exception {
+        final Wavetable wavetable = wavetable(2);
+        final Path file = workDirectory.resolve("table.wav");
+        WavetableWriter.writeWav(wavetable, file);
+
+        try (PcmReader reader = PcmReader.open(file)) {
+            assertEquals(wavetable.getSamples().length, reader.getFrames(), "frames");
+            assertEquals(1, reader.getChannels(), "channels");
+            assertEquals(44100, reader.getSampleRate(), "sample rate");
+            assertArrayEquals(wavetable.getSamples(), reader.read(0, wavetable.getSamples().length), "samples");
+        }
+    }
+
+    private static Wavetable wavetable(final int frames) {
+        final float[] samples = new float[frames * Wavetable.FRAME_SIZE];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = (float) Math.sin(i * 0.01) * (1 + i / Wavetable.FRAME_SIZE) / frames;
+        }
+
+        return new Wavetable(samples);
+    }
+}
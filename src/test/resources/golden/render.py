@@ -0,0 +1,145 @@
+"""Renders the golden files of WavetableEngineGoldenTest without okwt.
+
+okwt's processing steps written out in float64 pure Python, as the engine reads them: the same inputs as the test,
+trimmed, resized, faded, maximized and normalized, written as 32-bit float WAV files. Unlike the engine nothing is
+computed in float32 and long inputs are resampled as a whole. Run it from this directory:
+
+    python3 render.py
+
+To compare with okwt itself instead, delete the files and run the test with -Dokwt.path, which records them again.
+"""
+
+import math
+import struct
+
+FRAME_SIZE = 2048
+MAX_FRAMES = 256
+SAMPLE_RATE = 44100
+TRIM_THRESHOLD = 0.05
+
+
+def write_input(length, silence):
+    """Same as WavetableEngineGoldenTest.writeInput, decoded the way a 16-bit WAV file is read."""
+    samples = []
+    for i in range(length):
+        frame = i // FRAME_SIZE
+        is_silent = i < silence or i >= length - silence
+        amplitude = 0.2 + 0.7 * ((frame * 37) % 11) / 10.0
+        sample = 0.0 if is_silent else amplitude * math.sin(2 * math.pi * (frame + 1) * i / FRAME_SIZE)
+        # Java's Math.round
+        samples.append(math.floor(sample * 32767 + 0.5) / 32768.0)
+    return samples
+
+
+def trim(samples):
+    loud = [i for i, sample in enumerate(samples) if abs(sample) > TRIM_THRESHOLD]
+    return samples[loud[0]:loud[-1] + 1] if loud else samples
+
+
+def table_length(length, max_frames):
+    return min(max_frames, max(1, (length + FRAME_SIZE - 1) // FRAME_SIZE)) * FRAME_SIZE
+
+
+def truncate(samples, max_frames):
+    table = samples[:max_frames * FRAME_SIZE]
+    return table + [0.0] * (table_length(len(table), max_frames) - len(table))
+
+
+def linear(samples, max_frames):
+    length = table_length(len(samples), max_frames)
+    step = (len(samples) - 1) / (length - 1)
+    table = []
+    for i in range(length):
+        position = i * step
+        index = min(int(position), len(samples) - 2)
+        fraction = position - index
+        table.append(samples[index] + (samples[index + 1] - samples[index]) * fraction)
+    return table
+
+
+def bicubic(samples, max_frames):
+    length = table_length(len(samples), max_frames)
+    step = (len(samples) - 1) / (length - 1)
+    last = len(samples) - 1
+    table = []
+    for i in range(length):
+        position = i * step
+        index = min(int(position), last - 1)
+        t = position - index
+        # Catmull-Rom, the edges are extended by repeating the outermost samples
+        p0 = samples[max(index - 1, 0)]
+        p1 = samples[index]
+        p2 = samples[index + 1]
+        p3 = samples[min(index + 2, last)]
+        a = -0.5 * p0 + 1.5 * p1 - 1.5 * p2 + 0.5 * p3
+        b = p0 - 2.5 * p1 + 2.0 * p2 - 0.5 * p3
+        c = -0.5 * p0 + 0.5 * p2
+        table.append(((a * t + b) * t + c) * t + p1)
+    return table
+
+
+def fade(table, length):
+    length = min(length, FRAME_SIZE // 2)
+    for offset in range(0, len(table), FRAME_SIZE):
+        for i in range(length):
+            table[offset + i] *= i / length
+            table[offset + FRAME_SIZE - 1 - i] *= i / length
+
+
+def scale_to_full(table, start, end):
+    peak = max(abs(sample) for sample in table[start:end])
+    if peak > 0:
+        for i in range(start, end):
+            table[i] /= peak
+
+
+def maximize(table):
+    for offset in range(0, len(table), FRAME_SIZE):
+        scale_to_full(table, offset, offset + FRAME_SIZE)
+
+
+def normalize(table):
+    scale_to_full(table, 0, len(table))
+
+
+def render(name, samples, resize, frames=MAX_FRAMES, trimmed=False, fade_length=0, maximized=False,
+           normalized=False):
+    if trimmed:
+        samples = trim(samples)
+    table = resize(samples, frames)
+    if fade_length > 0:
+        fade(table, fade_length)
+    if maximized:
+        maximize(table)
+    if normalized:
+        normalize(table)
+
+    data = struct.pack("<%sf" % len(table), *table)
+    with open(name + ".wav", "wb") as file:
+        file.write(struct.pack("<4sI4s", b"RIFF", 36 + len(data), b"WAVE"))
+        file.write(struct.pack("<4sIHHIIHH", b"fmt ", 16, 3, 1, SAMPLE_RATE, SAMPLE_RATE * 4, 4, 32))
+        file.write(struct.pack("<4sI", b"data", len(data)))
+        file.write(data)
+
+
+def main():
+    short = write_input(5 * FRAME_SIZE + 700, 900)
+    long = write_input(300 * FRAME_SIZE + 1234, 0)
+
+    render("truncate", short, truncate)
+    render("linear", short, linear)
+    render("bicubic", short, bicubic)
+    render("truncate-long", long, truncate, frames=16)
+    render("linear-long", long, linear, frames=16)
+    render("bicubic-long", long, bicubic, frames=16)
+    render("frames", short, truncate, frames=3)
+    render("trim", short, truncate, trimmed=True)
+    render("fade", short, truncate, fade_length=64)
+    render("fade-long", short, truncate, fade_length=1500)
+    render("maximize", short, truncate, maximized=True)
+    render("normalize", short, truncate, normalized=True)
+    render("everything", short, bicubic, trimmed=True, fade_length=64, maximized=True, normalized=True)
+
+
+if __name__ == "__main__":
+    main()